@@ -0,0 +1,84 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+import ru.locker.service.NoOpDeadLockPreventor;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bytes per uncontended execute, single thread.
+ * {@link #main} fails, if gc profiler sees allocation on the path, it is run by checkAllocation task,
+ * gradle check runs it with -PcheckAllocation
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AllocationBenchmark {
+
+    //gc profiler has error of a few bytes per op on short runs
+    private static final double MAX_BYTES_PER_OP = 1.0;
+
+    @Param({"READ", "WRITE"})
+    private LockType lockType;
+
+    @Param({"LIST", "NOOP"})
+    private LockManagerBenchmark.Preventor preventor;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    //ids above Integer cache, they are boxed once here
+    private final BenchmarkEntity[] entities = {new BenchmarkEntity(1000), new BenchmarkEntity(2000)};
+    private int cursor;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(preventor == LockManagerBenchmark.Preventor.LIST
+                ? new ListBasedDeadLockPreventor<>() : new NoOpDeadLockPreventor<>());
+    }
+
+    //payload stays zero, so boxing of result hits Long cache
+    @Benchmark
+    public long execute() {
+        return lockManager.execute(entities[cursor++ & 1], lockType, BenchmarkEntity::getPayload);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        var results = new Runner(new OptionsBuilder()
+                .include(AllocationBenchmark.class.getSimpleName())
+                .forks(1)
+                //bytes/op don't depend on timing, short iterations are enough
+                .warmupIterations(2)
+                .warmupTime(TimeValue.seconds(1))
+                .measurementIterations(3)
+                .measurementTime(TimeValue.seconds(1))
+                .timeUnit(TimeUnit.NANOSECONDS)
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+        for (RunResult result : results) {
+            result.getSecondaryResults().forEach((label, value) -> {
+                if (label.endsWith("gc.alloc.rate.norm") && value.getScore() > MAX_BYTES_PER_OP) {
+                    throw new IllegalStateException(result.getParams().getBenchmark()
+                            + " " + result.getParams().getParam("lockType")
+                            + " " + result.getParams().getParam("preventor")
+                            + " allocates " + value.getScore() + " bytes/op");
+                }
+            });
+        }
+    }
+}
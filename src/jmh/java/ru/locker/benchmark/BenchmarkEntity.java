@@ -0,0 +1,26 @@
+package ru.locker.benchmark;
+
+import ru.locker.domain.Lockable;
+
+public class BenchmarkEntity implements Lockable<Integer> {
+
+    private final Integer id;
+    private long payload;
+
+    public BenchmarkEntity(Integer id) {
+        this.id = id;
+    }
+
+    @Override
+    public Integer getId() {
+        return id;
+    }
+
+    public long getPayload() {
+        return payload;
+    }
+
+    public long increment() {
+        return ++payload;
+    }
+}
@@ -0,0 +1,26 @@
+package ru.locker.benchmark;
+
+import ru.locker.domain.LongLockable;
+
+public class BenchmarkLongEntity implements LongLockable {
+
+    private final long id;
+    private long payload;
+
+    public BenchmarkLongEntity(long id) {
+        this.id = id;
+    }
+
+    @Override
+    public long getLongId() {
+        return id;
+    }
+
+    public long getPayload() {
+        return payload;
+    }
+
+    public long increment() {
+        return ++payload;
+    }
+}
@@ -0,0 +1,66 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WRITE execute against combining mode on one hot id, like counter of testExecuteWithLock
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class CombiningBenchmark {
+
+    //work inside of lock, in Blackhole.consumeCPU tokens
+    @Param({"0", "100"})
+    private long work;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity entity;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(new ListBasedDeadLockPreventor<>());
+        entity = new BenchmarkEntity(1);
+    }
+
+    @Benchmark
+    public long write() {
+        return lockManager.execute(entity, LockType.WRITE, this::increment);
+    }
+
+    @Benchmark
+    public long combining() {
+        return lockManager.executeCombining(entity, this::increment);
+    }
+
+    private long increment(BenchmarkEntity e) {
+        Blackhole.consumeCPU(work);
+        return e.increment();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(CombiningBenchmark.class.getSimpleName())
+                .forks(1)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,72 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.GlobalLockResolver;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput of row locks on disjoint ids, while no GLOBAL request is pending.
+ * Run {@link #main} to get scaling from 1 to 64 threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class GlobalLockScalingBenchmark {
+
+    private final AtomicInteger ids = new AtomicInteger();
+
+    private GlobalLockResolver resolver;
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+
+    @State(Scope.Thread)
+    public static class ThreadEntity {
+        BenchmarkEntity entity;
+
+        @Setup
+        public void setUp(GlobalLockScalingBenchmark benchmark) {
+            entity = new BenchmarkEntity(benchmark.ids.incrementAndGet());
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        resolver = new GlobalLockResolver();
+        lockManager = new LockManagerImpl<>(new ListBasedDeadLockPreventor<>());
+    }
+
+    @Benchmark
+    public void resolverOnly() {
+        resolver.checkForGlobalWaiting(LockType.WRITE);
+        resolver.processGlobalUnlocking(LockType.WRITE);
+    }
+
+    @Benchmark
+    public long executeDisjointIds(ThreadEntity state) {
+        return lockManager.execute(state.entity, LockType.WRITE, BenchmarkEntity::increment);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads = 1; threads <= 64; threads *= 2) {
+            new Runner(new OptionsBuilder()
+                    .include(GlobalLockScalingBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build())
+                    .run();
+        }
+    }
+}
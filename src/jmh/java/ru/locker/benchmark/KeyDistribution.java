@@ -0,0 +1,48 @@
+package ru.locker.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Distribution of locked ids, sequences are generated before measurement
+ */
+public enum KeyDistribution {
+
+    HOT {
+        @Override
+        int[] sequence(int keys, int length, Random random) {
+            return new int[length];
+        }
+    },
+    UNIFORM {
+        @Override
+        int[] sequence(int keys, int length, Random random) {
+            var res = new int[length];
+            for (int i = 0; i < length; i++) {
+                res[i] = random.nextInt(keys);
+            }
+            return res;
+        }
+    },
+    ZIPFIAN {
+        private static final double EXPONENT = 0.99;
+
+        @Override
+        int[] sequence(int keys, int length, Random random) {
+            var cdf = new double[keys];
+            double sum = 0;
+            for (int i = 0; i < keys; i++) {
+                sum += 1 / Math.pow(i + 1.0, EXPONENT);
+                cdf[i] = sum;
+            }
+            var res = new int[length];
+            for (int i = 0; i < length; i++) {
+                int idx = Arrays.binarySearch(cdf, random.nextDouble() * sum);
+                res[i] = Math.min(idx >= 0 ? idx : -idx - 1, keys - 1);
+            }
+            return res;
+        }
+    };
+
+    abstract int[] sequence(int keys, int length, Random random);
+}
@@ -0,0 +1,106 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.DeadLockPreventor;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+import ru.locker.service.NoOpDeadLockPreventor;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Hot paths of LockManagerImpl.execute: throughput, latency percentiles and, with gc profiler, bytes/op.
+ * Run {@link #main} for 1, 4, 16 and 64 threads or use jmh task with -t
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LockManagerBenchmark {
+
+    private static final int SEQUENCE_LENGTH = 1 << 16;
+
+    public enum Preventor {
+        LIST(ListBasedDeadLockPreventor::new),
+        NOOP(NoOpDeadLockPreventor::new);
+
+        private final Supplier<DeadLockPreventor<Integer>> factory;
+
+        Preventor(Supplier<DeadLockPreventor<Integer>> factory) {
+            this.factory = factory;
+        }
+    }
+
+    @Param({"READ", "WRITE", "GLOBAL"})
+    private LockType lockType;
+
+    @Param({"HOT", "UNIFORM", "ZIPFIAN"})
+    private KeyDistribution keyDistribution;
+
+    @Param({"LIST", "NOOP"})
+    private Preventor preventor;
+
+    @Param({"10000"})
+    private int keys;
+
+    private final AtomicInteger seeds = new AtomicInteger();
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @State(Scope.Thread)
+    public static class ThreadKeys {
+        int[] sequence;
+        int cursor;
+
+        @Setup
+        public void setUp(LockManagerBenchmark benchmark) {
+            sequence = benchmark.keyDistribution.sequence(benchmark.keys, SEQUENCE_LENGTH,
+                    new Random(benchmark.seeds.incrementAndGet()));
+        }
+
+        BenchmarkEntity next(BenchmarkEntity[] entities) {
+            return entities[sequence[cursor++ & (SEQUENCE_LENGTH - 1)]];
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(preventor.factory.get());
+        entities = new BenchmarkEntity[keys];
+        for (int i = 0; i < keys; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    public long execute(ThreadKeys threadKeys) {
+        return lockManager.execute(threadKeys.next(entities), lockType, BenchmarkEntity::increment);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, 4, 16, 64}) {
+            new Runner(new OptionsBuilder()
+                    .include(LockManagerBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .addProfiler(GCProfiler.class)
+                    .build())
+                    .run();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockPolicy;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tail latency of every LockType under mixed load on few hot ids: many readers, some writers and one GLOBAL.
+ * SampleTime reports p0.99, p0.999 and max per method of group, it is time of waiting plus holding the lock
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LockPolicyBenchmark {
+
+    @Param({"NON_FAIR", "READER_PREFERENCE", "WRITER_PREFERENCE", "PHASE_FAIR", "BOUNDED_BYPASS"})
+    private LockPolicy policy;
+
+    @Param({"16"})
+    private int keys;
+
+    //work inside of lock, in Blackhole.consumeCPU tokens
+    @Param({"100"})
+    private long work;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        lockManager = LockManagerImpl.<BenchmarkEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .lockPolicy(policy)
+                .build();
+        entities = new BenchmarkEntity[keys];
+        for (int i = 0; i < keys; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(6)
+    public long read() {
+        return execute(LockType.READ);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(2)
+    public long write() {
+        return execute(LockType.WRITE);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public long global() {
+        return execute(LockType.GLOBAL);
+    }
+
+    private long execute(LockType lockType) {
+        var entity = entities[ThreadLocalRandom.current().nextInt(keys)];
+        return lockManager.execute(entity, lockType, e -> {
+            Blackhole.consumeCPU(work);
+            return lockType == LockType.READ ? e.getPayload() : e.increment();
+        });
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LockPolicyBenchmark.class.getSimpleName())
+                .forks(1)
+                .build())
+                .run();
+    }
+}
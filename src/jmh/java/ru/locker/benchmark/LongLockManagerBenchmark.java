@@ -0,0 +1,91 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.LockManagerImpl;
+import ru.locker.service.LongLockManager;
+import ru.locker.service.LongWaitForGraphDeadLockPreventor;
+import ru.locker.service.WaitForGraphDeadLockPreventor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generic LockManagerImpl with Long ids against LongLockManager, single and nested locks
+ * with wait-for graph preventor. Compare gc.alloc.rate.norm of gc profiler
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class LongLockManagerBenchmark {
+
+    @Param({"READ", "WRITE"})
+    private LockType lockType;
+
+    //ids above Long cache, so generic manager really boxes them
+    @Param({"100000"})
+    private int keys;
+
+    private LockManagerImpl<BenchmarkLongEntity, Long> genericManager;
+    private LongLockManager<BenchmarkLongEntity> longManager;
+    private BenchmarkLongEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        genericManager = new LockManagerImpl<>(new WaitForGraphDeadLockPreventor<>());
+        longManager = new LongLockManager<>(new LongWaitForGraphDeadLockPreventor());
+        entities = new BenchmarkLongEntity[keys];
+        for (int i = 0; i < keys; i++) {
+            entities[i] = new BenchmarkLongEntity(1000L + i);
+        }
+    }
+
+    @Benchmark
+    public long generic() {
+        return genericManager.execute(next(), lockType, BenchmarkLongEntity::increment);
+    }
+
+    @Benchmark
+    public long primitive() {
+        return longManager.execute(next(), lockType, BenchmarkLongEntity::increment);
+    }
+
+    @Benchmark
+    public long genericNested() {
+        var second = next();
+        return genericManager.execute(next(), lockType,
+                e -> genericManager.execute(second, lockType, BenchmarkLongEntity::increment));
+    }
+
+    @Benchmark
+    public long primitiveNested() {
+        var second = next();
+        return longManager.execute(next(), lockType,
+                e -> longManager.execute(second, lockType, BenchmarkLongEntity::increment));
+    }
+
+    private BenchmarkLongEntity next() {
+        return entities[ThreadLocalRandom.current().nextInt(keys)];
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(LongLockManagerBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build())
+                .run();
+    }
+}
@@ -0,0 +1,58 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import ru.locker.domain.LockType;
+import ru.locker.service.LockManagerImpl;
+import ru.locker.service.NoOpDeadLockPreventor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * OPTIMISTIC_READ against READ on a few hot entities with 90/10 and 99/1 read/write mixes
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(8)
+public class OptimisticReadBenchmark {
+
+    @Param({"READ", "OPTIMISTIC_READ"})
+    private LockType readType;
+
+    @Param({"10", "1"})
+    private int writePercent;
+
+    @Param({"16"})
+    private int keys;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(new NoOpDeadLockPreventor<>());
+        entities = new BenchmarkEntity[keys];
+        for (int i = 0; i < keys; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    public long mixed() {
+        var random = ThreadLocalRandom.current();
+        var entity = entities[random.nextInt(keys)];
+        if (random.nextInt(100) < writePercent) {
+            return lockManager.execute(entity, LockType.WRITE, BenchmarkEntity::increment);
+        }
+        return lockManager.execute(entity, readType, BenchmarkEntity::getPayload);
+    }
+}
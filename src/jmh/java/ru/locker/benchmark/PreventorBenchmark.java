@@ -0,0 +1,86 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.DeadLockPreventor;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+import ru.locker.service.OrderedDeadLockPreventor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Nested WRITE locks in ascending order of ids through list based and ordered preventors.
+ * Chains start at random id, so threads mostly take different ids and measure preventor, not lock waiting.
+ * Run {@link #main} for 1 thread and cpus count threads
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class PreventorBenchmark {
+
+    public enum Preventor {
+        LIST(ListBasedDeadLockPreventor::new),
+        ORDERED(OrderedDeadLockPreventor::new);
+
+        private final Supplier<DeadLockPreventor<Integer>> factory;
+
+        Preventor(Supplier<DeadLockPreventor<Integer>> factory) {
+            this.factory = factory;
+        }
+    }
+
+    @Param({"LIST", "ORDERED"})
+    private Preventor preventor;
+
+    @Param({"2", "4", "6", "8", "10"})
+    private int depth;
+
+    @Param({"10000"})
+    private int keys;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(preventor.factory.get());
+        entities = new BenchmarkEntity[keys + depth];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    public long nested() {
+        return lock(ThreadLocalRandom.current().nextInt(keys), depth);
+    }
+
+    private long lock(int id, int rest) {
+        return lockManager.execute(entities[id], LockType.WRITE,
+                e -> rest == 1 ? e.increment() : lock(id + 1, rest - 1));
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : new int[]{1, Runtime.getRuntime().availableProcessors()}) {
+            new Runner(new OptionsBuilder()
+                    .include(PreventorBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build())
+                    .run();
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Range lock against batch of row locks of the same ids, mixed with single id writes.
+ * Range costs the same for any width, batch grows with it
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class RangeBenchmark {
+
+    private static final int IDS = 100_000;
+
+    @Param({"10", "100", "1000"})
+    private int width;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(new ListBasedDeadLockPreventor<>());
+        entities = new BenchmarkEntity[IDS];
+        for (int i = 0; i < IDS; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    public long range() {
+        int from = ThreadLocalRandom.current().nextInt(IDS - width);
+        return lockManager.executeRange(from, from + width - 1, LockType.WRITE,
+                () -> entities[from].increment());
+    }
+
+    @Benchmark
+    public long batch() throws TimeoutException {
+        int from = ThreadLocalRandom.current().nextInt(IDS - width);
+        List<BenchmarkEntity> batch = new ArrayList<>(width);
+        for (int i = from; i < from + width; i++) {
+            batch.add(entities[i]);
+        }
+        return lockManager.executeAll(batch, LockType.WRITE, 0L, b -> entities[from].increment());
+    }
+
+    @Benchmark
+    public long single() {
+        var entity = entities[ThreadLocalRandom.current().nextInt(IDS)];
+        return lockManager.execute(entity, LockType.WRITE, BenchmarkEntity::increment);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(RangeBenchmark.class.getSimpleName())
+                .forks(1)
+                .build())
+                .run();
+    }
+}
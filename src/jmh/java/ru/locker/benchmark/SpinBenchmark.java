@@ -0,0 +1,100 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive spin-then-park against pure parking on few hot ids.
+ * Run {@link #main} for threads from cpus count up to oversubscribed 4x cpus
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class SpinBenchmark {
+
+    /**
+     * Work inside of lock, in Blackhole.consumeCPU tokens
+     */
+    public enum HoldTime {
+        //below a microsecond
+        SHORT(10, 10),
+        //mostly short with rare long holds
+        BIMODAL(10, 5000),
+        //tens of microseconds, spinning must switch itself off
+        LONG(5000, 5000);
+
+        private final long usual;
+        private final long rare;
+
+        HoldTime(long usual, long rare) {
+            this.usual = usual;
+            this.rare = rare;
+        }
+
+        long next() {
+            return ThreadLocalRandom.current().nextInt(100) == 0 ? rare : usual;
+        }
+    }
+
+    @Param({"false", "true"})
+    private boolean adaptiveSpin;
+
+    @Param({"SHORT", "BIMODAL", "LONG"})
+    private HoldTime holdTime;
+
+    @Param({"4"})
+    private int keys;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        lockManager = LockManagerImpl.<BenchmarkEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .adaptiveSpin(adaptiveSpin)
+                .build();
+        entities = new BenchmarkEntity[keys];
+        for (int i = 0; i < keys; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+    }
+
+    @Benchmark
+    public long execute() {
+        var entity = entities[ThreadLocalRandom.current().nextInt(keys)];
+        long work = holdTime.next();
+        return lockManager.execute(entity, LockType.WRITE, e -> {
+            Blackhole.consumeCPU(work);
+            return e.increment();
+        });
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        for (int threads : new int[]{cpus, cpus * 2, cpus * 4}) {
+            new Runner(new OptionsBuilder()
+                    .include(SpinBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .forks(1)
+                    .build())
+                    .run();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package ru.locker.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.locker.domain.LockType;
+import ru.locker.service.ListBasedDeadLockPreventor;
+import ru.locker.service.LockManagerImpl;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryType;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * LockManagerImpl on virtual thread per task executor, platform thread per task is the baseline.
+ * Pinned carrier threads are printed by jdk.tracePinnedThreads, heap retained after last GC is aux counter.
+ * Virtual threads need JDK 21, on older JDK setup of VIRTUAL fails and only PLATFORM is measured
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Djdk.tracePinnedThreads=short")
+public class VirtualThreadBenchmark {
+
+    @Param({"100000"})
+    private int tasks;
+
+    @Param({"1000"})
+    private int ids;
+
+    @Param({"VIRTUAL", "PLATFORM"})
+    private Threads threads;
+
+    private LockManagerImpl<BenchmarkEntity, Integer> lockManager;
+    private BenchmarkEntity[] entities;
+    private ExecutorService executor;
+
+    @Setup
+    public void setUp() {
+        lockManager = new LockManagerImpl<>(new ListBasedDeadLockPreventor<>());
+        entities = new BenchmarkEntity[ids];
+        for (int i = 0; i < ids; i++) {
+            entities[i] = new BenchmarkEntity(i);
+        }
+        executor = threads == Threads.VIRTUAL ? virtualThreadPerTaskExecutor() : Executors.newCachedThreadPool();
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Benchmark
+    public void nestedLocks(Heap heap) throws InterruptedException {
+        var latch = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            var first = entities[i % ids];
+            var second = entities[(i + 1) % ids];
+            executor.execute(() -> {
+                try {
+                    lockManager.execute(first, LockType.WRITE, e ->
+                            lockManager.execute(second, LockType.READ, BenchmarkEntity::getId));
+                } catch (RuntimeException e) {
+                    //possible deadlock, it's expected for opposite order
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        heap.retainedKb = retainedHeap() / 1024;
+    }
+
+    /**
+     * Heap used after the last GC, it doesn't trigger GC
+     */
+    private static long retainedHeap() {
+        long used = 0L;
+        for (var pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            var usage = pool.getType() == MemoryType.HEAP ? pool.getCollectionUsage() : null;
+            if (usage != null) {
+                used += usage.getUsed();
+            }
+        }
+        return used;
+    }
+
+    private static ExecutorService virtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Virtual threads need JDK 21", e);
+        }
+    }
+
+    public enum Threads {
+        VIRTUAL,
+        PLATFORM
+    }
+
+    /**
+     * Retained heap at the end of iteration, it stays flat, if finished threads leave nothing behind
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Heap {
+        public long retainedKb;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            retainedKb = 0L;
+        }
+    }
+}
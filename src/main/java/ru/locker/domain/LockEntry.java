@@ -0,0 +1,262 @@
+package ru.locker.domain;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Row lock with count of threads, which hold or wait it, and queue of async waiters
+ */
+public class LockEntry {
+
+    private static final AtomicIntegerFieldUpdater<LockEntry> HAND_OFF =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "handOff");
+    private static final AtomicLongFieldUpdater<LockEntry> RELEASES =
+            AtomicLongFieldUpdater.newUpdater(LockEntry.class, "releases");
+    private static final AtomicIntegerFieldUpdater<LockEntry> LEASE_EXPIRIES =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "leaseExpiries");
+    private static final AtomicIntegerFieldUpdater<LockEntry> EXPIRED_OWNERS =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "expiredOwners");
+    private static final AtomicLongFieldUpdater<LockEntry> POINTS =
+            AtomicLongFieldUpdater.newUpdater(LockEntry.class, "points");
+    private static final AtomicIntegerFieldUpdater<LockEntry> UPGRADING =
+            AtomicIntegerFieldUpdater.newUpdater(LockEntry.class, "upgrading");
+    private static final AtomicReferenceFieldUpdater<LockEntry, AtomicReferenceArray> COMBINING =
+            AtomicReferenceFieldUpdater.newUpdater(LockEntry.class, AtomicReferenceArray.class, "combining");
+    //count of combining slots, it bounds count of waiters, which are served by lock holder
+    private static final int COMBINING_SLOTS = 32;
+    //WRITE points are counted in high half of points, READ ones in low half
+    private static final long WRITE_POINT = 1L << 32;
+
+    private final ReadWriteLock lock;
+    //write stamp is taken by outermost writer, it invalidates optimistic reads
+    private final StampedLock version = new StampedLock();
+    //guarded by write lock
+    private long writeStamp;
+    private int writeDepth;
+    private final Queue<LockWaiter> waiters = new ConcurrentLinkedQueue<>();
+    //threads blocked on lock, while leases are used, expired lease interrupts them
+    private final Queue<BlockedWaiter> blocked = new ConcurrentLinkedQueue<>();
+
+    //guarded by lock table
+    int references;
+
+    //hand-off to async waiters is in progress
+    private volatile int handOff;
+    //releases seen by async waiters
+    private volatile long releases;
+    //expired leases of owners, waiters, which see a new one, fail fast
+    private volatile int leaseExpiries;
+    //owners with expired lease, which still hold the lock, new waiters fail at once
+    private volatile int expiredOwners;
+    //row points in flight, which aren't registered by range locks, ranges over id drain them
+    private volatile long points;
+    //reader, which upgrades to write, only one at a time
+    private volatile int upgrading;
+    //requests of combining mode, created by first combining call and kept with pooled entry
+    private volatile AtomicReferenceArray<Object> combining;
+    //moving average of hold time in nanos, written by owners without sync, so it's approximate
+    private volatile long holdNanos;
+
+    public LockEntry() {
+        this(LockPolicy.NON_FAIR);
+    }
+
+    public LockEntry(LockPolicy policy) {
+        this.lock = policy.newLock();
+    }
+
+    public ReadWriteLock getLock() {
+        return lock;
+    }
+
+    /**
+     * Must be called under write lock, after acquire
+     */
+    public void beginWrite() {
+        if (writeDepth++ == 0) {
+            writeStamp = version.writeLock();
+        }
+    }
+
+    /**
+     * Must be called under write lock, before release
+     */
+    public void endWrite() {
+        if (--writeDepth == 0) {
+            version.unlockWrite(writeStamp);
+        }
+    }
+
+    /**
+     * @return zero, if write is in progress
+     */
+    public long tryOptimisticRead() {
+        return version.tryOptimisticRead();
+    }
+
+    public boolean validate(long stamp) {
+        return version.validate(stamp);
+    }
+
+    public Queue<LockWaiter> getWaiters() {
+        return waiters;
+    }
+
+    public boolean scheduleHandOff() {
+        return HAND_OFF.compareAndSet(this, 0, 1);
+    }
+
+    public void finishHandOff() {
+        handOff = 0;
+    }
+
+    public long getReleases() {
+        return releases;
+    }
+
+    public void released() {
+        RELEASES.incrementAndGet(this);
+    }
+
+    /**
+     * Waiter remembers count before waiting and fails, if it is changed.
+     * Counter isn't reset by owner, so waiter, which gets the lock right after expired owner, sees it too
+     */
+    public int getLeaseExpiries() {
+        return leaseExpiries;
+    }
+
+    /**
+     * Owner is flagged as expired till {@link #expiredOwnerReleased}, blocked waiters are interrupted
+     */
+    public void expireLease() {
+        EXPIRED_OWNERS.incrementAndGet(this);
+        LEASE_EXPIRIES.incrementAndGet(this);
+        for (BlockedWaiter waiter : blocked) {
+            waiter.wake();
+        }
+    }
+
+    /**
+     * Must be called by expired owner before release
+     */
+    public void expiredOwnerReleased() {
+        EXPIRED_OWNERS.decrementAndGet(this);
+    }
+
+    public boolean hasExpiredOwner() {
+        return expiredOwners != 0;
+    }
+
+    /**
+     * Current thread is going to block on lock, expired lease of owner interrupts it
+     * @return token for {@link #endBlocking}
+     */
+    public Object beginBlocking() {
+        var waiter = new BlockedWaiter();
+        blocked.add(waiter);
+        return waiter;
+    }
+
+    /**
+     * @return true, if waiter was interrupted by expired lease, its interrupt is cleared then
+     */
+    public boolean endBlocking(Object token) {
+        var waiter = (BlockedWaiter) token;
+        blocked.remove(waiter);
+        return waiter.finish();
+    }
+
+    public long getHoldNanos() {
+        return holdNanos;
+    }
+
+    /**
+     * Exponential moving average with weight 1/8 of the new hold
+     */
+    public void recordHold(long nanos) {
+        long average = holdNanos;
+        holdNanos = average + ((nanos - average) >> 3);
+    }
+
+    public void enterPoint(boolean exclusive) {
+        POINTS.addAndGet(this, exclusive ? WRITE_POINT : 1L);
+    }
+
+    public void exitPoint(boolean exclusive) {
+        POINTS.addAndGet(this, exclusive ? -WRITE_POINT : -1L);
+    }
+
+    /**
+     * @param exclusive - range is WRITE, it conflicts with READ points too
+     * @return true, if points in flight conflict with range
+     */
+    public boolean hasPoints(boolean exclusive) {
+        long count = points;
+        return exclusive ? count != 0 : count >>> 32 != 0;
+    }
+
+    /**
+     * @return false, if other reader is upgrading
+     */
+    public boolean tryBeginUpgrade() {
+        return UPGRADING.compareAndSet(this, 0, 1);
+    }
+
+    public void endUpgrade() {
+        upgrading = 0;
+    }
+
+    public boolean isUpgrading() {
+        return upgrading != 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public AtomicReferenceArray<Object> getCombiningSlots() {
+        var slots = combining;
+        if (slots == null) {
+            COMBINING.compareAndSet(this, null, new AtomicReferenceArray<>(COMBINING_SLOTS));
+            slots = combining;
+        }
+        return slots;
+    }
+
+    /**
+     * Thread blocked on lock, it is interrupted once, only while it waits
+     */
+    private static final class BlockedWaiter {
+        private static final int WAITING = 0;
+        private static final int WAKING = 1;
+        private static final int WOKEN = 2;
+        private static final int FINISHED = 3;
+
+        private final Thread thread = Thread.currentThread();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        void wake() {
+            if (state.compareAndSet(WAITING, WAKING)) {
+                thread.interrupt();
+                state.set(WOKEN);
+            }
+        }
+
+        boolean finish() {
+            if (state.compareAndSet(WAITING, FINISHED)) {
+                return false;
+            }
+            while (state.get() == WAKING) {
+                Thread.onSpinWait();
+            }
+            //interrupt was sent by lease, not by caller
+            Thread.interrupted();
+            return true;
+        }
+    }
+}
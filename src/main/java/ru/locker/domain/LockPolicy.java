@@ -0,0 +1,36 @@
+package ru.locker.domain;
+
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Order, in which row lock admits readers and writers under contention
+ */
+public enum LockPolicy {
+    /**
+     * Non-fair ReentrantReadWriteLock, the fastest one. New readers give way to writer at head of queue only,
+     * so waiting time isn't bounded
+     */
+    NON_FAIR,
+    /**
+     * Readers enter while lock isn't written, writer waits until there is no reader at all
+     */
+    READER_PREFERENCE,
+    /**
+     * Waiting writer stops new readers, readers wait until there is no writer at all
+     */
+    WRITER_PREFERENCE,
+    /**
+     * Read and write phases alternate: readers, which came during write, enter together after it,
+     * then the next writer enters. Waiting time of both is bounded by one phase of other side
+     */
+    PHASE_FAIR,
+    /**
+     * Reader preference, but new readers can bypass waiting writer only limited number of times
+     */
+    BOUNDED_BYPASS;
+
+    public ReadWriteLock newLock() {
+        return this == NON_FAIR ? new ReentrantReadWriteLock() : new PolicyReadWriteLock(this);
+    }
+}
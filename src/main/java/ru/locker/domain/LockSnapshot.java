@@ -0,0 +1,106 @@
+package ru.locker.domain;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Owners and waiters of locked ids, taken by lock manager for diagnosis of stalls.
+ * Owners and waiters of GLOBAL lock are entry with null id
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public class LockSnapshot<ID> {
+
+    private final List<Entry<ID>> entries;
+
+    public LockSnapshot(List<Entry<ID>> entries) {
+        this.entries = List.copyOf(entries);
+    }
+
+    public List<Entry<ID>> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return entry of id, or null, if nobody holds or waits for it
+     */
+    public Entry<ID> find(ID id) {
+        for (Entry<ID> entry : entries) {
+            if (Objects.equals(entry.id, id)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return entry of GLOBAL lock, or null, if nobody holds or waits for it
+     */
+    public Entry<ID> findGlobal() {
+        return find(null);
+    }
+
+    @Override
+    public String toString() {
+        var res = new StringBuilder();
+        for (Entry<ID> entry : entries) {
+            res.append(entry).append('\n');
+        }
+        return res.toString();
+    }
+
+    /**
+     * Threads, which hold id, threads, which wait for it, and count of async waiters queued for it
+     */
+    public static class Entry<ID> {
+        private final ID id;
+        private final List<Thread> owners;
+        private final List<Thread> waiters;
+        private final int queued;
+
+        public Entry(ID id, List<Thread> owners, List<Thread> waiters) {
+            this(id, owners, waiters, 0);
+        }
+
+        public Entry(ID id, List<Thread> owners, List<Thread> waiters, int queued) {
+            this.id = id;
+            this.owners = List.copyOf(owners);
+            this.waiters = List.copyOf(waiters);
+            this.queued = queued;
+        }
+
+        public ID getId() {
+            return id;
+        }
+
+        public List<Thread> getOwners() {
+            return owners;
+        }
+
+        public List<Thread> getWaiters() {
+            return waiters;
+        }
+
+        /**
+         * @return count of async waiters, they have no threads while queued
+         */
+        public int getQueued() {
+            return queued;
+        }
+
+        @Override
+        public String toString() {
+            return (id == null ? "GLOBAL" : id) + ": owners " + names(owners) + ", waiters " + names(waiters)
+                    + ", queued " + queued;
+        }
+
+        private static String names(List<Thread> threads) {
+            var res = new StringBuilder("[");
+            for (int i = 0; i < threads.size(); i++) {
+                res.append(i == 0 ? "" : ", ").append(threads.get(i).getName());
+            }
+            return res.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package ru.locker.domain;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Table of row locks with reference counted entries.
+ * Entry is created by first acquire and removed, when no thread holds or waits on it,
+ * so table size is bounded by count of concurrently locked ids.
+ * Segments with open addressing and pool of removed entries, acquire and release
+ * of uncontended id don't allocate in steady state
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public class LockTable<ID> {
+
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int POOL_SIZE = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public LockTable() {
+        this(LockPolicy.NON_FAIR);
+    }
+
+    /**
+     * @param policy - policy of row locks
+     */
+    public LockTable(LockPolicy policy) {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(policy);
+        }
+    }
+
+    public LockEntry acquire(ID id) {
+        int hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            return segment.acquire(id, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void release(ID id) {
+        int hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            segment.release(id, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int res = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                res += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Ids, which are locked or waited for, with count of async waiters queued in their entries.
+     * Segments are copied one by one, so it isn't atomic
+     */
+    @SuppressWarnings("unchecked")
+    public Map<ID, Integer> queuedWaiters() {
+        var res = new LinkedHashMap<ID, Integer>();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                for (int i = 0; i < segment.keys.length; i++) {
+                    if (segment.keys[i] != null) {
+                        res.put((ID) segment.keys[i], segment.values[i].getWaiters().size());
+                    }
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Scan of the whole table, which size is bounded by count of concurrently locked ids
+     * @param exclusive - range is WRITE, it drains READ points too
+     * @return entries, which ids match filter and which have points in flight conflicting with range
+     */
+    public List<LockEntry> pointsOf(Predicate<? super ID> filter, boolean exclusive) {
+        var res = new ArrayList<LockEntry>();
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.collectPoints(filter, exclusive, res);
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return res;
+    }
+
+    private Segment segmentOf(int hash) {
+        return segments[hash >>> 26];
+    }
+
+    private static int hash(Object id) {
+        //spread bad hash codes, segment is taken from high bits, slot from low bits
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    private static class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final LockPolicy policy;
+        private Object[] keys = new Object[INITIAL_CAPACITY];
+        private LockEntry[] values = new LockEntry[INITIAL_CAPACITY];
+        private int size;
+        private final LockEntry[] pool = new LockEntry[POOL_SIZE];
+        private int poolSize;
+
+        Segment(LockPolicy policy) {
+            this.policy = policy;
+        }
+
+        LockEntry acquire(Object id, int hash) {
+            int mask = keys.length - 1;
+            int i = hash & mask;
+            for (; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(id)) {
+                    values[i].references++;
+                    return values[i];
+                }
+            }
+            var entry = poolSize > 0 ? pool[--poolSize] : new LockEntry(policy);
+            entry.references = 1;
+            keys[i] = id;
+            values[i] = entry;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return entry;
+        }
+
+        void release(Object id, int hash) {
+            int mask = keys.length - 1;
+            for (int i = hash & mask; keys[i] != null; i = (i + 1) & mask) {
+                if (keys[i].equals(id)) {
+                    var entry = values[i];
+                    if (--entry.references == 0) {
+                        remove(i);
+                        if (poolSize < POOL_SIZE) {
+                            pool[poolSize++] = entry;
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        <ID> void collectPoints(Predicate<? super ID> filter, boolean exclusive, List<LockEntry> res) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && values[i].hasPoints(exclusive) && filter.test((ID) keys[i])) {
+                    res.add(values[i]);
+                }
+            }
+        }
+
+        //backward shift deletion, no tombstones
+        private void remove(int slot) {
+            int mask = keys.length - 1;
+            int free = slot;
+            keys[free] = null;
+            values[free] = null;
+            size--;
+            for (int i = (free + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+                int ideal = hash(keys[i]) & mask;
+                boolean movable = free <= i ? (ideal <= free || ideal > i) : (ideal <= free && ideal > i);
+                if (movable) {
+                    keys[free] = keys[i];
+                    values[free] = values[i];
+                    keys[i] = null;
+                    values[i] = null;
+                    free = i;
+                }
+            }
+        }
+
+        private void resize() {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new Object[oldKeys.length * 2];
+            values = new LockEntry[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldKeys[j] != null) {
+                    int i = hash(oldKeys[j]) & mask;
+                    while (keys[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,22 @@
 package ru.locker.domain;
 
 public enum LockType {
-    READ,WRITE,GLOBAL
+    READ,WRITE,GLOBAL,
+    /**
+     * Function runs without lock and is validated afterwards, it falls back to READ on conflict with WRITE or GLOBAL.
+     * Function may see inconsistent state and may run twice, so it must be side effect free
+     */
+    OPTIMISTIC_READ,
+    /**
+     * Shared lock of partition of {@link PartitionedLockable}: blocks row writes of the partition only
+     */
+    PARTITION_READ,
+    /**
+     * Exclusive lock of partition of {@link PartitionedLockable}: blocks all row locks of the partition only
+     */
+    PARTITION_WRITE;
+
+    public boolean isPartition() {
+        return this == PARTITION_READ || this == PARTITION_WRITE;
+    }
 }
@@ -0,0 +1,15 @@
+package ru.locker.domain;
+
+/**
+ * Queued request for a row lock, which is resumed when lock is handed off to it
+ */
+public interface LockWaiter {
+
+    LockType getLockType();
+
+    /**
+     * Move waiter to running state
+     * @return false, if waiter was expired or cancelled
+     */
+    boolean start();
+}
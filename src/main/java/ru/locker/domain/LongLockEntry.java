@@ -0,0 +1,20 @@
+package ru.locker.domain;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Row lock of primitive lock table with owners of lock.
+ * Entries are reused by table, all fields except lock are guarded by table segment
+ */
+public class LongLockEntry {
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    int references;
+    Object[] owners = new Object[2];
+    int ownerCount;
+
+    public ReentrantReadWriteLock getLock() {
+        return lock;
+    }
+}
@@ -0,0 +1,238 @@
+package ru.locker.domain;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock table for primitive ids.
+ * Segments with open addressing over long[] keys, entries are reference counted,
+ * removed entries are pooled, so acquire and release don't box or allocate in steady state.
+ * Entry also keeps owners of its lock for deadlock preventor
+ */
+public class LongLockTable {
+
+    private static final int SEGMENTS = 64;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int POOL_SIZE = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+
+    public LongLockTable() {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    public LongLockEntry acquire(long id) {
+        long hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            return segment.acquire(id, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public void release(long id) {
+        long hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            segment.release(id, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Acquire entry and add owner to it
+     */
+    public void acquireOwner(long id, Object owner) {
+        long hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            var entry = segment.acquire(id, hash);
+            if (entry.ownerCount == entry.owners.length) {
+                var owners = new Object[entry.owners.length * 2];
+                System.arraycopy(entry.owners, 0, owners, 0, entry.ownerCount);
+                entry.owners = owners;
+            }
+            entry.owners[entry.ownerCount++] = owner;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Remove owner from entry and release it
+     */
+    public void releaseOwner(long id, Object owner) {
+        long hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            var entry = segment.find(id, hash);
+            if (entry == null) {
+                return;
+            }
+            for (int i = entry.ownerCount - 1; i >= 0; i--) {
+                if (entry.owners[i] == owner) {
+                    entry.owners[i] = entry.owners[--entry.ownerCount];
+                    entry.owners[entry.ownerCount] = null;
+                    break;
+                }
+            }
+            segment.release(id, hash);
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    /**
+     * Visit owners of id under segment lock, visitor must be short and must not touch table
+     * @return true, if visitor returned true for some owner
+     */
+    public boolean anyOwner(long id, OwnerVisitor visitor) {
+        long hash = hash(id);
+        var segment = segmentOf(hash);
+        segment.lock.lock();
+        try {
+            var entry = segment.find(id, hash);
+            if (entry == null) {
+                return false;
+            }
+            for (int i = 0; i < entry.ownerCount; i++) {
+                if (visitor.visit(entry.owners[i])) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    public int size() {
+        int res = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                res += segment.size;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        return res;
+    }
+
+    private Segment segmentOf(long hash) {
+        return segments[(int) (hash >>> 58)];
+    }
+
+    private static long hash(long id) {
+        //murmur3 finalizer
+        long h = id;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    public interface OwnerVisitor {
+        boolean visit(Object owner);
+    }
+
+    private static class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private long[] keys = new long[INITIAL_CAPACITY];
+        private LongLockEntry[] values = new LongLockEntry[INITIAL_CAPACITY];
+        private int size;
+        private final LongLockEntry[] pool = new LongLockEntry[POOL_SIZE];
+        private int poolSize;
+
+        LongLockEntry find(long id, long hash) {
+            int mask = keys.length - 1;
+            for (int i = (int) hash & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    return values[i];
+                }
+            }
+            return null;
+        }
+
+        LongLockEntry acquire(long id, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    values[i].references++;
+                    return values[i];
+                }
+            }
+            var entry = poolSize > 0 ? pool[--poolSize] : new LongLockEntry();
+            entry.references = 1;
+            keys[i] = id;
+            values[i] = entry;
+            if (++size * 2 > keys.length) {
+                resize();
+            }
+            return entry;
+        }
+
+        void release(long id, long hash) {
+            int mask = keys.length - 1;
+            int i = (int) hash & mask;
+            for (; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == id) {
+                    var entry = values[i];
+                    if (--entry.references == 0) {
+                        remove(i);
+                        if (poolSize < POOL_SIZE) {
+                            pool[poolSize++] = entry;
+                        }
+                    }
+                    return;
+                }
+            }
+        }
+
+        //backward shift deletion, no tombstones
+        private void remove(int slot) {
+            int mask = keys.length - 1;
+            int free = slot;
+            values[free] = null;
+            size--;
+            for (int i = (free + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+                int ideal = (int) hash(keys[i]) & mask;
+                boolean movable = free <= i ? (ideal <= free || ideal > i) : (ideal <= free && ideal > i);
+                if (movable) {
+                    keys[free] = keys[i];
+                    values[free] = values[i];
+                    values[i] = null;
+                    free = i;
+                }
+            }
+        }
+
+        private void resize() {
+            var oldKeys = keys;
+            var oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new LongLockEntry[oldKeys.length * 2];
+            int mask = keys.length - 1;
+            for (int j = 0; j < oldKeys.length; j++) {
+                if (oldValues[j] != null) {
+                    int i = (int) hash(oldKeys[j]) & mask;
+                    while (values[i] != null) {
+                        i = (i + 1) & mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    values[i] = oldValues[j];
+                }
+            }
+        }
+    }
+}
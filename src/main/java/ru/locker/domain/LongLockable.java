@@ -0,0 +1,14 @@
+package ru.locker.domain;
+
+/**
+ * Entity with primitive long id, it can be locked without boxing
+ */
+public interface LongLockable extends Lockable<Long> {
+
+    long getLongId();
+
+    @Override
+    default Long getId() {
+        return getLongId();
+    }
+}
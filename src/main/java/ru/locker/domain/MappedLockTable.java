@@ -0,0 +1,348 @@
+package ru.locker.domain;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Lock table shared by processes of one host through memory-mapped file.
+ * File is fixed-size hashed table of slots, ids with the same hash share one slot.
+ * Every slot takes one cache line: writer word, waiting writer word and reader entries,
+ * words are changed by CAS through VarHandle, so processes don't call into kernel for locking.
+ * Word holds owner token: pid, hash of process start time and nonce of table instance.
+ * Owner of a word, which process is dead, is recovered by CAS to zero by the next waiter.
+ * Table coordinates processes only, threads of one process are serialized by caller,
+ * so one table instance holds at most one writer or one reader entry of a slot
+ */
+public class MappedLockTable implements Closeable {
+
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    //"LOCKER01"
+    private static final long MAGIC = 0x4c4f434b45523031L;
+    private static final int LINE = 64;
+    //header: magic, count of slots, GLOBAL owner
+    private static final int MAGIC_OFFSET = 0;
+    private static final int SLOTS_OFFSET = 8;
+    private static final int GLOBAL_OFFSET = 16;
+    //slot: writer, waiting writer, reader entries
+    private static final int WRITER = 0;
+    private static final int WAITER = 8;
+    private static final int READERS = 16;
+    private static final int READER_ENTRIES = 6;
+    //owners are checked for liveness on every n-th pause, it costs a syscall
+    private static final int LIVENESS_PERIOD = 64;
+    //creator publishes magic right after count of slots
+    private static final long MAGIC_WAIT_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slots;
+    private final long token;
+
+    /**
+     * @param file - file of table, it is created by the first process
+     * @param slots - count of slots, power of two, all processes must use the same count
+     * @throws IllegalStateException, if file isn't lock table or has other count of slots
+     */
+    public MappedLockTable(Path file, int slots) throws IOException {
+        if (Integer.bitCount(slots) != 1) {
+            throw new IllegalArgumentException("Count of slots must be power of two");
+        }
+        this.slots = slots;
+        this.channel = FileChannel.open(file, CREATE, READ, WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, LINE + (long) slots * LINE);
+        this.token = newToken();
+        long magic = (long) LONGS.getVolatile(buffer, MAGIC_OFFSET);
+        if (magic != 0L && magic != MAGIC) {
+            channel.close();
+            throw new IllegalStateException("File " + file + " isn't a lock table");
+        }
+        if (LONGS.compareAndSet(buffer, SLOTS_OFFSET, 0L, (long) slots)) {
+            LONGS.setVolatile(buffer, MAGIC_OFFSET, MAGIC);
+        } else if (!awaitMagic()) {
+            channel.close();
+            throw new IllegalStateException("File " + file + " isn't a lock table");
+        }
+        long existing = (long) LONGS.getVolatile(buffer, SLOTS_OFFSET);
+        if (existing != slots) {
+            channel.close();
+            throw new IllegalStateException("Lock file has " + existing + " slots, expected " + slots);
+        }
+    }
+
+    /**
+     * Table is created by other process, its magic can be not published yet
+     */
+    private boolean awaitMagic() {
+        long deadline = nanoTime() + MAGIC_WAIT_NANOS;
+        long magic;
+        while ((magic = (long) LONGS.getVolatile(buffer, MAGIC_OFFSET)) == 0L && nanoTime() - deadline < 0) {
+            Thread.onSpinWait();
+        }
+        return magic == MAGIC;
+    }
+
+    public int slotOf(Object id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (slots - 1);
+    }
+
+    /**
+     * Acquire writer word of slot and wait for readers drain.
+     * Waiting writer publishes itself in waiter word, so new readers don't overtake it
+     * @param deadline - nanoTime of deadline, used only if timed
+     * @return false on timeout
+     */
+    public boolean lockWrite(int slot, boolean timed, long deadline) {
+        int base = base(slot);
+        var backoff = new Backoff(timed, deadline);
+        boolean waiter = false;
+        try {
+            while (true) {
+                if (!foreignGlobal(backoff.checkOwners()) && LONGS.compareAndSet(buffer, base + WRITER, 0L, token)) {
+                    //writer word stops new readers, wait for old ones
+                    if (!awaitReaders(base, backoff)) {
+                        unlockWrite(slot);
+                        return false;
+                    }
+                    if (!foreignGlobal(false)) {
+                        return true;
+                    }
+                    //give way to GLOBAL of other process
+                    unlockWrite(slot);
+                } else {
+                    if (!waiter) {
+                        waiter = LONGS.compareAndSet(buffer, base + WAITER, 0L, token);
+                    }
+                    if (backoff.checkOwners()) {
+                        recover(base + WRITER, (long) LONGS.getVolatile(buffer, base + WRITER));
+                    }
+                }
+                if (!backoff.pause()) {
+                    return false;
+                }
+            }
+        } finally {
+            if (waiter) {
+                LONGS.compareAndSet(buffer, base + WAITER, token, 0L);
+            }
+        }
+    }
+
+    public void unlockWrite(int slot) {
+        LONGS.setVolatile(buffer, base(slot) + WRITER, 0L);
+    }
+
+    /**
+     * Take reader entry of slot, readers give way to writers and waiting writers
+     * @return index of reader entry, or -1 on timeout
+     */
+    public int lockRead(int slot, boolean timed, long deadline) {
+        int base = base(slot);
+        var backoff = new Backoff(timed, deadline);
+        while (true) {
+            boolean checkOwners = backoff.checkOwners();
+            if (free(base + WRITER, checkOwners) && free(base + WAITER, checkOwners) && !foreignGlobal(checkOwners)) {
+                int entry = claimReaderEntry(base, checkOwners);
+                if (entry >= 0) {
+                    //recheck after publishing, writer could come between check and claim
+                    if ((long) LONGS.getVolatile(buffer, base + WRITER) == 0L && !foreignGlobal(false)) {
+                        return entry;
+                    }
+                    unlockRead(slot, entry);
+                }
+            }
+            if (!backoff.pause()) {
+                return -1;
+            }
+        }
+    }
+
+    public void unlockRead(int slot, int entry) {
+        LONGS.setVolatile(buffer, base(slot) + READERS + entry * 8, 0L);
+    }
+
+    /**
+     * Acquire GLOBAL word and wait, until other processes release all slots
+     */
+    public boolean lockGlobal(boolean timed, long deadline) {
+        var backoff = new Backoff(timed, deadline);
+        if (!acquireWord(GLOBAL_OFFSET, backoff)) {
+            return false;
+        }
+        for (int slot = 0; slot < slots; slot++) {
+            int base = base(slot);
+            while (foreignOwner(base + WRITER, backoff.checkOwners()) || hasReaders(base, backoff.checkOwners())) {
+                if (!backoff.pause()) {
+                    unlockGlobal();
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public void unlockGlobal() {
+        LONGS.setVolatile(buffer, GLOBAL_OFFSET, 0L);
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean acquireWord(int offset, Backoff backoff) {
+        while (true) {
+            long owner = (long) LONGS.getVolatile(buffer, offset);
+            if (owner == 0L) {
+                if (LONGS.compareAndSet(buffer, offset, 0L, token)) {
+                    return true;
+                }
+            } else if (backoff.checkOwners()) {
+                recover(offset, owner);
+            }
+            if (owner != 0L && !backoff.pause()) {
+                return false;
+            }
+        }
+    }
+
+    private boolean awaitReaders(int base, Backoff backoff) {
+        while (hasReaders(base, backoff.checkOwners())) {
+            if (!backoff.pause()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasReaders(int base, boolean checkOwners) {
+        boolean res = false;
+        for (int i = 0; i < READER_ENTRIES; i++) {
+            res |= !free(base + READERS + i * 8, checkOwners);
+        }
+        return res;
+    }
+
+    private int claimReaderEntry(int base, boolean checkOwners) {
+        for (int i = 0; i < READER_ENTRIES; i++) {
+            int offset = base + READERS + i * 8;
+            if (free(offset, checkOwners) && LONGS.compareAndSet(buffer, offset, 0L, token)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean foreignGlobal(boolean checkOwners) {
+        return foreignOwner(GLOBAL_OFFSET, checkOwners);
+    }
+
+    /**
+     * GLOBAL of own table excludes own rows by process barrier, so own token isn't foreign
+     */
+    private boolean foreignOwner(int offset, boolean checkOwners) {
+        long owner = (long) LONGS.getVolatile(buffer, offset);
+        return owner != 0L && owner != token && !(checkOwners && recover(offset, owner));
+    }
+
+    private boolean free(int offset, boolean checkOwners) {
+        long owner = (long) LONGS.getVolatile(buffer, offset);
+        return owner == 0L || checkOwners && recover(offset, owner);
+    }
+
+    /**
+     * @return true, if owner was dead and word is cleared
+     */
+    private boolean recover(int offset, long owner) {
+        if (owner == 0L || alive(owner)) {
+            return false;
+        }
+        return LONGS.compareAndSet(buffer, offset, owner, 0L);
+    }
+
+    private boolean alive(long owner) {
+        if (owner == token) {
+            return true;
+        }
+        long pid = owner & 0xffffffffL;
+        int startHash = (int) (owner >>> 32) & 0xffff;
+        return ProcessHandle.of(pid)
+                .filter(ProcessHandle::isAlive)
+                .map(process -> startHash == 0 || startHash == startHash(process))
+                .orElse(false);
+    }
+
+    private int base(int slot) {
+        return LINE + slot * LINE;
+    }
+
+    private static long newToken() {
+        var current = ProcessHandle.current();
+        long nonce = ThreadLocalRandom.current().nextInt(1, 1 << 15);
+        return nonce << 48 | (long) startHash(current) << 32 | current.pid();
+    }
+
+    private static int startHash(ProcessHandle process) {
+        //zero means unknown start time, such owner is checked by pid only
+        return process.info().startInstant()
+                .map(start -> Long.hashCode(start.toEpochMilli()) & 0xffff)
+                .orElse(0);
+    }
+
+    /**
+     * Spin, then yield, then park with growing pause up to a millisecond
+     */
+    private static class Backoff {
+        private static final int SPINS = 64;
+        private static final long MAX_PARK = 1_000_000L;
+
+        private final boolean timed;
+        private final long deadline;
+        private int pauses;
+        private long park = 1_000L;
+
+        Backoff(boolean timed, long deadline) {
+            this.timed = timed;
+            this.deadline = deadline;
+        }
+
+        boolean checkOwners() {
+            return pauses % LIVENESS_PERIOD == LIVENESS_PERIOD - 1;
+        }
+
+        /**
+         * @return false, if deadline is reached or thread is interrupted
+         */
+        boolean pause() {
+            if (timed && nanoTime() - deadline >= 0 || Thread.currentThread().isInterrupted()) {
+                return false;
+            }
+            pauses++;
+            if (pauses < SPINS) {
+                Thread.onSpinWait();
+            } else if (pauses < SPINS * 2) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(park);
+                park = Math.min(park * 2, MAX_PARK);
+            }
+            return true;
+        }
+    }
+}
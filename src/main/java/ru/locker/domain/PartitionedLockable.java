@@ -0,0 +1,12 @@
+package ru.locker.domain;
+
+/**
+ * Entity inside of partition, e.g. tenant. Row locks of it take intention locks of partition
+ *
+ * @param <ID>
+ * @param <P> - partition key
+ */
+@SuppressWarnings("java:S119")
+public interface PartitionedLockable<ID, P> extends Lockable<ID> {
+    P getPartition();
+}
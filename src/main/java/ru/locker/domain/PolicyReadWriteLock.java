@@ -0,0 +1,474 @@
+package ru.locker.domain;
+
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant read-write lock with admission order of {@link LockPolicy}.
+ * State is guarded by mutex, so the lock is slower than ReentrantReadWriteLock,
+ * but policy decides every admission and waiting time can be bounded.
+ * Nested read of reader or writer enters at once, otherwise it would wait for itself.
+ * Non-blocking tryLock doesn't count itself as waiter, so spinning callers don't change admission.
+ * Write lock supports conditions as ReentrantReadWriteLock does, read lock doesn't
+ */
+class PolicyReadWriteLock implements ReadWriteLock {
+
+    //new readers can bypass waiting writer this number of times with BOUNDED_BYPASS
+    static final int BYPASS_LIMIT = 32;
+    //read holds of current thread for all locks, one thread local, whatever count of locks is
+    private static final ThreadLocal<ReadHolds> READ_HOLDS = ThreadLocal.withInitial(ReadHolds::new);
+
+    private final LockPolicy policy;
+    private final ReentrantLock mutex = new ReentrantLock();
+    private final Condition changed = mutex.newCondition();
+    private final Lock readLock = new ReadLock();
+    private final Lock writeLock = new WriteLock();
+
+    //guarded by mutex
+    private Thread writer;
+    private int writeHolds;
+    private int readers;
+    private int waitingReaders;
+    private int waitingWriters;
+    //PHASE_FAIR: readers, which waited before the phase, are admitted before the next writer
+    private long readPhase;
+    private int admitted;
+    //BOUNDED_BYPASS: readers, which entered past waiting writer
+    private int bypassed;
+
+    PolicyReadWriteLock(LockPolicy policy) {
+        this.policy = policy;
+    }
+
+    @Override
+    public Lock readLock() {
+        return readLock;
+    }
+
+    @Override
+    public Lock writeLock() {
+        return writeLock;
+    }
+
+    private boolean canRead(long phase) {
+        if (writer != null) {
+            return false;
+        }
+        switch (policy) {
+            case WRITER_PREFERENCE:
+                return waitingWriters == 0;
+            case PHASE_FAIR:
+                return waitingWriters == 0 || phase < readPhase;
+            case BOUNDED_BYPASS:
+                return waitingWriters == 0 || bypassed < BYPASS_LIMIT;
+            case READER_PREFERENCE:
+            default:
+                return true;
+        }
+    }
+
+    private boolean canWrite() {
+        if (writer != null || readers > 0) {
+            return false;
+        }
+        switch (policy) {
+            case READER_PREFERENCE:
+                return waitingReaders == 0;
+            case PHASE_FAIR:
+                return admitted == 0;
+            default:
+                return true;
+        }
+    }
+
+    private void enterRead(ReadHolds holds, long phase, boolean waited) {
+        if (policy == LockPolicy.PHASE_FAIR && waited && phase < readPhase) {
+            admitted--;
+        } else if (policy == LockPolicy.BOUNDED_BYPASS && waitingWriters > 0) {
+            bypassed++;
+        }
+        readers++;
+        holds.increment(this);
+    }
+
+    private void enterWrite() {
+        writer = Thread.currentThread();
+        writeHolds = 1;
+        bypassed = 0;
+    }
+
+    private void leaveWrite() {
+        writer = null;
+        if (policy == LockPolicy.PHASE_FAIR && waitingReaders > 0) {
+            //open read phase for readers, which came during write
+            readPhase++;
+            admitted = waitingReaders;
+        }
+        changed.signalAll();
+    }
+
+    /**
+     * @param timed - false means infinity wait
+     * @return false on timeout
+     */
+    private boolean acquireRead(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        var holds = READ_HOLDS.get();
+        mutex.lock();
+        try {
+            if (holds.count(this) > 0 || writer == Thread.currentThread()) {
+                readers++;
+                holds.increment(this);
+                return true;
+            }
+            long phase = readPhase;
+            if (canRead(phase)) {
+                enterRead(holds, phase, false);
+                return true;
+            }
+            if (timed && nanos <= 0) {
+                return false;
+            }
+            waitingReaders++;
+            boolean entered = false;
+            try {
+                while (!canRead(phase)) {
+                    if (timed && nanos <= 0) {
+                        return false;
+                    }
+                    nanos = await(interruptible, timed, nanos);
+                }
+                enterRead(holds, phase, true);
+                entered = true;
+                return true;
+            } finally {
+                waitingReaders--;
+                if (!entered && policy == LockPolicy.PHASE_FAIR && phase < readPhase) {
+                    //admitted reader leaves without entering, it mustn't block writers
+                    admitted--;
+                }
+                if (!entered) {
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private boolean acquireWrite(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        mutex.lock();
+        try {
+            if (writer == Thread.currentThread()) {
+                writeHolds++;
+                return true;
+            }
+            if (canWrite()) {
+                enterWrite();
+                return true;
+            }
+            if (timed && nanos <= 0) {
+                return false;
+            }
+            waitingWriters++;
+            try {
+                while (!canWrite()) {
+                    if (timed && nanos <= 0) {
+                        return false;
+                    }
+                    nanos = await(interruptible, timed, nanos);
+                }
+                enterWrite();
+                return true;
+            } finally {
+                waitingWriters--;
+                if (writer == null) {
+                    //readers could wait for this writer
+                    changed.signalAll();
+                }
+            }
+        } finally {
+            mutex.unlock();
+        }
+    }
+
+    private long await(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+        if (timed) {
+            return changed.awaitNanos(nanos);
+        }
+        if (interruptible) {
+            changed.await();
+        } else {
+            changed.awaitUninterruptibly();
+        }
+        return nanos;
+    }
+
+    private final class ReadLock implements Lock {
+
+        @Override
+        public void lock() {
+            try {
+                acquireRead(false, false, 0L);
+            } catch (InterruptedException e) {
+                //impossible, wait is uninterruptible
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            acquireRead(true, false, 0L);
+        }
+
+        @Override
+        public boolean tryLock() {
+            try {
+                return acquireRead(false, true, 0L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return acquireRead(true, true, unit.toNanos(time));
+        }
+
+        @Override
+        public void unlock() {
+            var holds = READ_HOLDS.get();
+            if (holds.count(PolicyReadWriteLock.this) == 0) {
+                throw new IllegalMonitorStateException("Read lock isn't held by current thread");
+            }
+            mutex.lock();
+            try {
+                holds.decrement(PolicyReadWriteLock.this);
+                if (--readers == 0) {
+                    changed.signalAll();
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private final class WriteLock implements Lock {
+
+        @Override
+        public void lock() {
+            try {
+                acquireWrite(false, false, 0L);
+            } catch (InterruptedException e) {
+                //impossible, wait is uninterruptible
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            acquireWrite(true, false, 0L);
+        }
+
+        @Override
+        public boolean tryLock() {
+            try {
+                return acquireWrite(false, true, 0L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+
+        @Override
+        public boolean tryLock(long time, TimeUnit unit) throws InterruptedException {
+            return acquireWrite(true, true, unit.toNanos(time));
+        }
+
+        @Override
+        public void unlock() {
+            mutex.lock();
+            try {
+                if (writer != Thread.currentThread()) {
+                    throw new IllegalMonitorStateException("Write lock isn't held by current thread");
+                }
+                if (--writeHolds == 0) {
+                    leaveWrite();
+                }
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        @Override
+        public Condition newCondition() {
+            return new WriteCondition();
+        }
+    }
+
+    /**
+     * Condition of write lock: await releases all write holds and takes them back before return
+     */
+    private final class WriteCondition implements Condition {
+
+        private final Condition condition = mutex.newCondition();
+
+        @Override
+        public void await() throws InterruptedException {
+            awaitWrite(true, false, 0L);
+        }
+
+        @Override
+        public void awaitUninterruptibly() {
+            try {
+                awaitWrite(false, false, 0L);
+            } catch (InterruptedException e) {
+                //impossible, wait is uninterruptible
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public long awaitNanos(long nanosTimeout) throws InterruptedException {
+            return awaitWrite(true, true, nanosTimeout);
+        }
+
+        @Override
+        public boolean await(long time, TimeUnit unit) throws InterruptedException {
+            return awaitWrite(true, true, unit.toNanos(time)) > 0;
+        }
+
+        @Override
+        public boolean awaitUntil(Date deadline) throws InterruptedException {
+            long millis = deadline.getTime() - System.currentTimeMillis();
+            return awaitWrite(true, true, TimeUnit.MILLISECONDS.toNanos(millis)) > 0;
+        }
+
+        @Override
+        public void signal() {
+            mutex.lock();
+            try {
+                checkWriter();
+                condition.signal();
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            mutex.lock();
+            try {
+                checkWriter();
+                condition.signalAll();
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        /**
+         * @return rest of timeout
+         */
+        private long awaitWrite(boolean interruptible, boolean timed, long nanos) throws InterruptedException {
+            mutex.lock();
+            try {
+                checkWriter();
+                int holds = writeHolds;
+                writeHolds = 0;
+                leaveWrite();
+                InterruptedException interrupted = null;
+                try {
+                    if (timed) {
+                        nanos = condition.awaitNanos(nanos);
+                    } else if (interruptible) {
+                        condition.await();
+                    } else {
+                        condition.awaitUninterruptibly();
+                    }
+                } catch (InterruptedException e) {
+                    interrupted = e;
+                }
+                //write holds are taken back even on interrupt
+                waitingWriters++;
+                try {
+                    while (!canWrite()) {
+                        changed.awaitUninterruptibly();
+                    }
+                    enterWrite();
+                    writeHolds = holds;
+                } finally {
+                    waitingWriters--;
+                }
+                if (interrupted != null) {
+                    throw interrupted;
+                }
+                return nanos;
+            } finally {
+                mutex.unlock();
+            }
+        }
+
+        private void checkWriter() {
+            if (writer != Thread.currentThread()) {
+                throw new IllegalMonitorStateException("Write lock isn't held by current thread");
+            }
+        }
+    }
+
+    /**
+     * Thread holds a few locks at once, so they are found by scan. Lock is forgotten with its last hold,
+     * so pooled locks aren't kept by threads
+     */
+    private static final class ReadHolds {
+        private PolicyReadWriteLock[] locks = new PolicyReadWriteLock[4];
+        private int[] counts = new int[4];
+        private int size;
+
+        int count(PolicyReadWriteLock lock) {
+            int i = indexOf(lock);
+            return i < 0 ? 0 : counts[i];
+        }
+
+        void increment(PolicyReadWriteLock lock) {
+            int i = indexOf(lock);
+            if (i >= 0) {
+                counts[i]++;
+                return;
+            }
+            if (size == locks.length) {
+                locks = Arrays.copyOf(locks, size * 2);
+                counts = Arrays.copyOf(counts, size * 2);
+            }
+            locks[size] = lock;
+            counts[size++] = 1;
+        }
+
+        void decrement(PolicyReadWriteLock lock) {
+            int i = indexOf(lock);
+            if (--counts[i] == 0) {
+                locks[i] = locks[--size];
+                counts[i] = counts[size];
+                locks[size] = null;
+            }
+        }
+
+        private int indexOf(PolicyReadWriteLock lock) {
+            for (int i = 0; i < size; i++) {
+                if (locks[i] == lock) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
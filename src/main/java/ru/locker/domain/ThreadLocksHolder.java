@@ -1,80 +1,223 @@
 package ru.locker.domain;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
-
-import static java.lang.Thread.currentThread;
-import static java.util.Collections.emptyList;
-import static java.util.stream.Collectors.toList;
-import static org.apache.commons.collections4.CollectionUtils.isEmpty;
+import java.util.Arrays;
 
+/**
+ * Locks of threads.
+ * List of thread locks lives in ThreadLocal and is collected together with thread,
+ * id -> holders is kept only while id is locked.
+ * Index is open addressing table with pooled holders, so lock and unlock don't allocate in steady state.
+ * Not thread safe, all calls are guarded by caller lock, monitors are not used
+ *
+ * @param <ID>
+ */
 @SuppressWarnings("java:S119")
 public class ThreadLocksHolder<ID> {
 
-    private final Map<Long, List<ID>> threadIdtoIdLocks = new ConcurrentHashMap<>();
-    private final Map<ID, List<Long>> idToThreadIdLocks = new ConcurrentHashMap<>();
-
-    public synchronized void updateLocks(ID to) {
-        idToThreadIdLocks.compute(to,
-                (k,v) ->
-                {
-                    if (v == null) {
-                        var res = new CopyOnWriteArrayList<Long>();
-                        res.add(currentThread().getId());
-                        return res;
-                    } else {
-                        v.add(currentThread().getId());
-                        return v;
-                    }
-                });
-        threadIdtoIdLocks.compute(currentThread().getId(),
-                (aLong, ids) -> {
-                    if (ids == null) {
-                        var res = new CopyOnWriteArrayList<ID>();
-                        res.add(to);
-                        return res;
-                    } else {
-                        ids.add(to);
-                        return ids;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int POOL_SIZE = 16;
+
+    private final ThreadLocal<ThreadLocks<ID>> threadLocks = ThreadLocal.withInitial(ThreadLocks::new);
+    //id -> holders
+    private Object[] keys = new Object[INITIAL_CAPACITY];
+    private Holders<ID>[] values = newHolders(INITIAL_CAPACITY);
+    private int size;
+    private final Holders<ID>[] pool = newHolders(POOL_SIZE);
+    private int poolSize;
+
+    public void updateLocks(ID to) {
+        var myLocks = threadLocks.get();
+        int held = myLocks.indexOf(to);
+        if (held >= 0) {
+            //re-entry is counted, thread is already in holders of id
+            myLocks.holds[held]++;
+            return;
+        }
+        myLocks.add(to);
+        int mask = keys.length - 1;
+        int i = hash(to) & mask;
+        for (; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(to)) {
+                values[i].add(myLocks);
+                return;
+            }
+        }
+        var holders = poolSize > 0 ? pool[--poolSize] : new Holders<ID>();
+        holders.add(myLocks);
+        keys[i] = to;
+        values[i] = holders;
+        if (++size * 2 > keys.length) {
+            resize();
+        }
+    }
+
+    public ThreadLocks<ID> findCurrentThreadLocks() {
+        return threadLocks.get();
+    }
+
+    public void deleteThreadLocks(ID to) {
+        var myLocks = threadLocks.get();
+        int held = myLocks.indexOf(to);
+        if (held < 0 || --myLocks.holds[held] > 0) {
+            return;
+        }
+        myLocks.removeAt(held);
+        int mask = keys.length - 1;
+        for (int i = hash(to) & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(to)) {
+                var holders = values[i];
+                holders.remove(myLocks);
+                //empty holders are removed, otherwise index grows with every locked id
+                if (holders.size == 0) {
+                    remove(i);
+                    if (poolSize < POOL_SIZE) {
+                        pool[poolSize++] = holders;
                     }
                 }
-        );
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return holders of id, current thread included, or null. Valid only under caller lock
+     */
+    public Holders<ID> findHolders(ID to) {
+        int mask = keys.length - 1;
+        for (int i = hash(to) & mask; keys[i] != null; i = (i + 1) & mask) {
+            if (keys[i].equals(to)) {
+                return values[i];
+            }
+        }
+        return null;
+    }
+
+    //backward shift deletion, no tombstones
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int free = slot;
+        keys[free] = null;
+        values[free] = null;
+        size--;
+        for (int i = (free + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int ideal = hash(keys[i]) & mask;
+            boolean movable = free <= i ? (ideal <= free || ideal > i) : (ideal <= free && ideal > i);
+            if (movable) {
+                keys[free] = keys[i];
+                values[free] = values[i];
+                keys[i] = null;
+                values[i] = null;
+                free = i;
+            }
+        }
+    }
+
+    private void resize() {
+        var oldKeys = keys;
+        var oldValues = values;
+        keys = new Object[oldKeys.length * 2];
+        values = newHolders(oldKeys.length * 2);
+        int mask = keys.length - 1;
+        for (int j = 0; j < oldKeys.length; j++) {
+            if (oldKeys[j] != null) {
+                int i = hash(oldKeys[j]) & mask;
+                while (keys[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    private static int hash(Object id) {
+        int h = id.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
     }
 
-    public List<ID> findLockByThreadId(Long threadId) {
-        return threadIdtoIdLocks.get(threadId);
+    @SuppressWarnings("unchecked")
+    private static <ID> Holders<ID>[] newHolders(int length) {
+        return new Holders[length];
     }
 
+    /**
+     * Locks of one thread in locking order with hold counts, every id is kept once
+     */
+    public static class ThreadLocks<ID> {
+        private Object[] ids = new Object[4];
+        private int[] holds = new int[4];
+        private int size;
+
+        public int size() {
+            return size;
+        }
 
-    public synchronized void deleteThreadLocks(ID to) {
-        idToThreadIdLocks.computeIfPresent(to, (k, v) -> {
-            v.remove(currentThread().getId());
-            return v;
-        });
-        threadIdtoIdLocks.computeIfPresent(currentThread().getId(),
-                (aLong, ids) -> {
-                    ids.remove(to);
-                    return ids;
+        @SuppressWarnings("unchecked")
+        public ID get(int index) {
+            return (ID) ids[index];
+        }
+
+        public int getHoldCount(int index) {
+            return holds[index];
+        }
+
+        public int indexOf(Object id) {
+            for (int i = 0; i < size; i++) {
+                if (ids[i].equals(id)) {
+                    return i;
                 }
-        );
+            }
+            return -1;
+        }
+
+        private void add(Object id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                holds = Arrays.copyOf(holds, size * 2);
+            }
+            holds[size] = 1;
+            ids[size++] = id;
+        }
+
+        private void removeAt(int index) {
+            System.arraycopy(ids, index + 1, ids, index, size - index - 1);
+            System.arraycopy(holds, index + 1, holds, index, size - index - 1);
+            ids[--size] = null;
+        }
     }
 
-    public List<List<ID>> findLocksBlockedWithCurrentLock(ID to) {
-        var threadList = idToThreadIdLocks.get(to);
-        if (isEmpty(threadList)) {
-            return emptyList();
+    /**
+     * Threads, which hold one id
+     */
+    public static class Holders<ID> {
+        private ThreadLocks<?>[] locks = new ThreadLocks<?>[2];
+        private int size;
+
+        public int size() {
+            return size;
         }
-        var res = threadList.stream().filter(thread -> !thread.equals(currentThread().getId())).collect(toList());
-        if (isEmpty(res)) {
-            return emptyList();
+
+        @SuppressWarnings("unchecked")
+        public ThreadLocks<ID> get(int index) {
+            return (ThreadLocks<ID>) locks[index];
+        }
+
+        private void add(ThreadLocks<?> holder) {
+            if (size == locks.length) {
+                locks = Arrays.copyOf(locks, size * 2);
+            }
+            locks[size++] = holder;
         }
 
-        var result =new ArrayList<List<ID>>();
-        res.forEach(threadId -> result.add(threadIdtoIdLocks.get(threadId)));
-        return result;
+        private void remove(ThreadLocks<?> holder) {
+            for (int i = 0; i < size; i++) {
+                if (locks[i] == holder) {
+                    locks[i] = locks[--size];
+                    locks[size] = null;
+                    return;
+                }
+            }
+        }
     }
 
 }
@@ -0,0 +1,15 @@
+package ru.locker.exception;
+
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deadline of current thread is exceeded: lock isn't acquired, its wait was cut by deadline or wasn't started.
+ * It is timeout of lock, so timed calls declare it. Untimed calls throw it wrapped in
+ * {@link UncheckedDeadlineExceededException}
+ */
+public class DeadlineExceededException extends TimeoutException {
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
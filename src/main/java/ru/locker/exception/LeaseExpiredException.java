@@ -0,0 +1,11 @@
+package ru.locker.exception;
+
+/**
+ * Lease of lock owner is expired: owner gets it after function, waiters get it instead of waiting
+ */
+public class LeaseExpiredException extends RuntimeException {
+
+    public LeaseExpiredException(String message) {
+        super(message);
+    }
+}
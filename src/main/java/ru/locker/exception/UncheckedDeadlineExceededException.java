@@ -0,0 +1,17 @@
+package ru.locker.exception;
+
+/**
+ * Deadline of current thread is exceeded in untimed call, which doesn't declare {@link DeadlineExceededException}.
+ * Cause is the checked exception, {@link ru.locker.service.Deadline#within} unwraps it
+ */
+public class UncheckedDeadlineExceededException extends RuntimeException {
+
+    public UncheckedDeadlineExceededException(DeadlineExceededException cause) {
+        super(cause.getMessage(), cause);
+    }
+
+    @Override
+    public synchronized DeadlineExceededException getCause() {
+        return (DeadlineExceededException) super.getCause();
+    }
+}
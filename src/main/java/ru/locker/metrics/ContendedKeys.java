@@ -0,0 +1,74 @@
+package ru.locker.metrics;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded top-K of contended ids, space-saving algorithm over fixed arrays.
+ * Record never blocks: event is skipped, when another thread updates table,
+ * so counts are approximate under heavy contention
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public class ContendedKeys<ID> {
+
+    private final Object[] keys;
+    private final long[] counts;
+    private final Lock lock = new ReentrantLock();
+
+    public ContendedKeys(int capacity) {
+        this.keys = new Object[capacity];
+        this.counts = new long[capacity];
+    }
+
+    public void record(ID id) {
+        if (!lock.tryLock()) {
+            return;
+        }
+        try {
+            int min = 0;
+            for (int i = 0; i < keys.length; i++) {
+                if (id.equals(keys[i])) {
+                    counts[i]++;
+                    return;
+                }
+                if (counts[i] < counts[min]) {
+                    min = i;
+                }
+            }
+            //new id replaces the least contended one and inherits its count
+            keys[min] = id;
+            counts[min]++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return ids with contention counts, the most contended first
+     */
+    @SuppressWarnings("unchecked")
+    public Map<ID, Long> top() {
+        var indexes = new ArrayList<Integer>(keys.length);
+        lock.lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null) {
+                    indexes.add(i);
+                }
+            }
+            indexes.sort((a, b) -> Long.compare(counts[b], counts[a]));
+            var res = new LinkedHashMap<ID, Long>();
+            for (int i : indexes) {
+                res.put((ID) keys[i], counts[i]);
+            }
+            return res;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+@Name("ru.locker.DeadLockRejected")
+@Label("Deadlock Rejected")
+@Category("Locker")
+@Description("Lock is rejected by deadlock preventor")
+final class DeadLockRejectedEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    String id;
+
+    @Label("Lock Type")
+    String lockType;
+
+    @Label("Held Ids")
+    @Description("Locks of thread in locking order")
+    String heldIds;
+}
@@ -0,0 +1,15 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("ru.locker.GlobalDrain")
+@Label("Global Drain")
+@Category("Locker")
+@Description("GLOBAL lock waits for row locks in flight, new row locks wait for GLOBAL meanwhile")
+@Threshold("10 ms")
+final class GlobalDrainEvent extends jdk.jfr.Event {
+}
@@ -0,0 +1,116 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import ru.locker.domain.LockType;
+
+import java.util.Arrays;
+
+/**
+ * Flight recorder events of locks.
+ * Event is created only while its type is enabled in recording, and duration events are committed
+ * only above threshold of recording settings, so short waits and holds don't allocate and aren't written.
+ * Ids are converted to strings on commit only
+ */
+public final class LockEvents {
+
+    private static final EventType WAIT = EventType.getEventType(LockWaitEvent.class);
+    private static final EventType HOLD = EventType.getEventType(LockHoldEvent.class);
+    private static final EventType TIMEOUT = EventType.getEventType(LockTimeoutEvent.class);
+    private static final EventType DEADLOCK = EventType.getEventType(DeadLockRejectedEvent.class);
+    private static final EventType GLOBAL_DRAIN = EventType.getEventType(GlobalDrainEvent.class);
+
+    private LockEvents() {
+    }
+
+    /**
+     * @return started wait, or null, if waits aren't recorded
+     */
+    public static Event beginWait() {
+        if (!WAIT.isEnabled()) {
+            return null;
+        }
+        var event = new LockWaitEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endWait(Event wait, Object id, LockType lockType) {
+        if (wait == null) {
+            return;
+        }
+        var event = (LockWaitEvent) wait;
+        event.end();
+        if (event.shouldCommit()) {
+            event.id = String.valueOf(id);
+            event.lockType = String.valueOf(lockType);
+            event.commit();
+        }
+    }
+
+    /**
+     * @return started hold, or null, if holds aren't recorded
+     */
+    public static Event beginHold(LockType lockType) {
+        if (!HOLD.isEnabled()) {
+            return null;
+        }
+        var event = new LockHoldEvent();
+        event.lockType = String.valueOf(lockType);
+        event.begin();
+        return event;
+    }
+
+    public static void endHold(Event hold, Object id) {
+        if (hold == null) {
+            return;
+        }
+        var event = (LockHoldEvent) hold;
+        event.end();
+        if (event.shouldCommit()) {
+            event.id = String.valueOf(id);
+            event.commit();
+        }
+    }
+
+    public static void timeout(Object id, LockType lockType, long timeoutMillis) {
+        if (TIMEOUT.isEnabled()) {
+            var event = new LockTimeoutEvent();
+            event.id = String.valueOf(id);
+            event.lockType = String.valueOf(lockType);
+            event.timeout = timeoutMillis;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param heldIds - locks of thread, first count of them are used
+     */
+    public static void deadLockRejected(Object id, LockType lockType, Object[] heldIds, int count) {
+        if (DEADLOCK.isEnabled()) {
+            var event = new DeadLockRejectedEvent();
+            event.id = String.valueOf(id);
+            event.lockType = String.valueOf(lockType);
+            event.heldIds = Arrays.toString(Arrays.copyOf(heldIds, count));
+            event.commit();
+        }
+    }
+
+    /**
+     * @return started drain of row locks by GLOBAL, or null, if it isn't recorded
+     */
+    public static Event beginGlobalDrain() {
+        if (!GLOBAL_DRAIN.isEnabled()) {
+            return null;
+        }
+        var event = new GlobalDrainEvent();
+        event.begin();
+        return event;
+    }
+
+    public static void endGlobalDrain(Event drain) {
+        if (drain != null) {
+            drain.commit();
+        }
+    }
+}
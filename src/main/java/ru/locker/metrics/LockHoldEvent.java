@@ -0,0 +1,21 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("ru.locker.LockHold")
+@Label("Lock Hold")
+@Category("Locker")
+@Description("Hold of lock from acquire to release, stack trace is taken at release")
+@Threshold("100 ms")
+final class LockHoldEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    String id;
+
+    @Label("Lock Type")
+    String lockType;
+}
@@ -0,0 +1,32 @@
+package ru.locker.metrics;
+
+import ru.locker.domain.LockType;
+
+/**
+ * Listener of lock events. Methods are called on lock path, so they must be cheap and must not throw
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public interface LockListener<ID> {
+
+    LockListener<Object> NO_OP = new LockListener<>() {
+    };
+
+    @SuppressWarnings("unchecked")
+    static <ID> LockListener<ID> noOp() {
+        return (LockListener<ID>) NO_OP;
+    }
+
+    default void onAcquired(ID id, LockType lockType, long waitNanos) {
+    }
+
+    default void onReleased(ID id, LockType lockType, long holdNanos) {
+    }
+
+    default void onTimeout(ID id, LockType lockType, long waitNanos) {
+    }
+
+    default void onDeadLockRejected(ID id, LockType lockType) {
+    }
+}
@@ -0,0 +1,96 @@
+package ru.locker.metrics;
+
+import ru.locker.domain.LockType;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock metrics per lock type: wait and hold time histograms, timeouts, deadlock rejections,
+ * and top of contended ids. Recording doesn't allocate
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public class LockMetrics<ID> implements LockListener<ID> {
+
+    private static final int DEFAULT_TOP_SIZE = 16;
+    private static final long DEFAULT_CONTENTION_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    private final TypeMetrics[] metrics = new TypeMetrics[LockType.values().length];
+    private final ContendedKeys<ID> contendedKeys;
+    private final long contentionThresholdNanos;
+
+    public LockMetrics() {
+        this(DEFAULT_TOP_SIZE, DEFAULT_CONTENTION_THRESHOLD_NANOS);
+    }
+
+    /**
+     * @param topSize - size of contended ids top
+     * @param contentionThresholdNanos - wait time, after which acquire is counted as contended
+     */
+    public LockMetrics(int topSize, long contentionThresholdNanos) {
+        for (int i = 0; i < metrics.length; i++) {
+            metrics[i] = new TypeMetrics();
+        }
+        this.contendedKeys = new ContendedKeys<>(topSize);
+        this.contentionThresholdNanos = contentionThresholdNanos;
+    }
+
+    @Override
+    public void onAcquired(ID id, LockType lockType, long waitNanos) {
+        metrics[lockType.ordinal()].waitTime.record(waitNanos);
+        if (waitNanos >= contentionThresholdNanos && id != null) {
+            contendedKeys.record(id);
+        }
+    }
+
+    @Override
+    public void onReleased(ID id, LockType lockType, long holdNanos) {
+        metrics[lockType.ordinal()].holdTime.record(holdNanos);
+    }
+
+    @Override
+    public void onTimeout(ID id, LockType lockType, long waitNanos) {
+        metrics[lockType.ordinal()].timeouts.increment();
+        if (id != null) {
+            contendedKeys.record(id);
+        }
+    }
+
+    @Override
+    public void onDeadLockRejected(ID id, LockType lockType) {
+        metrics[lockType.ordinal()].deadLocks.increment();
+    }
+
+    public LatencyHistogram getWaitTime(LockType lockType) {
+        return metrics[lockType.ordinal()].waitTime;
+    }
+
+    public LatencyHistogram getHoldTime(LockType lockType) {
+        return metrics[lockType.ordinal()].holdTime;
+    }
+
+    public long getTimeouts(LockType lockType) {
+        return metrics[lockType.ordinal()].timeouts.sum();
+    }
+
+    public long getDeadLocks(LockType lockType) {
+        return metrics[lockType.ordinal()].deadLocks.sum();
+    }
+
+    /**
+     * @return the most contended ids with approximate counts
+     */
+    public Map<ID, Long> getContendedKeys() {
+        return contendedKeys.top();
+    }
+
+    private static class TypeMetrics {
+        private final LatencyHistogram waitTime = new LatencyHistogram();
+        private final LatencyHistogram holdTime = new LatencyHistogram();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder deadLocks = new LongAdder();
+    }
+}
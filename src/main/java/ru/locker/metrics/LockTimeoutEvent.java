@@ -0,0 +1,22 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+@Name("ru.locker.LockTimeout")
+@Label("Lock Timeout")
+@Category("Locker")
+final class LockTimeoutEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    String id;
+
+    @Label("Lock Type")
+    String lockType;
+
+    @Label("Timeout")
+    @Timespan(Timespan.MILLISECONDS)
+    long timeout;
+}
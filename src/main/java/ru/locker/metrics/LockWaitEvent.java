@@ -0,0 +1,21 @@
+package ru.locker.metrics;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Threshold;
+
+@Name("ru.locker.LockWait")
+@Label("Lock Wait")
+@Category("Locker")
+@Description("Wait for lock, which is acquired at the end")
+@Threshold("10 ms")
+final class LockWaitEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    String id;
+
+    @Label("Lock Type")
+    String lockType;
+}
@@ -0,0 +1,251 @@
+package ru.locker.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockTable;
+import ru.locker.domain.LockType;
+import ru.locker.domain.LockWaiter;
+import ru.locker.domain.Lockable;
+import ru.locker.metrics.LockListener;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Async row locks without blocking threads.
+ * Waiter is queued in lock entry, hand-off task tries to acquire lock for queue head on executor
+ * and runs function there, so lock is acquired and released by the same thread.
+ * Every release of entry lock schedules next hand-off, while queue isn't empty.
+ * Lock is held through {@link LockHelper}, so nested calls of function see it as own lock.
+ * Async waiters are not registered in deadlock preventor, they don't hold other locks
+ *
+ * @param <E>
+ * @param <ID>
+ */
+@Slf4j
+@RequiredArgsConstructor
+@SuppressWarnings("java:S119")
+public class AsyncLockExecutor<E extends Lockable<ID>, ID> {
+
+    private final LockTable<ID> locks;
+    private final LockHelper<ID> locker;
+    private final GlobalLockResolver globalLockResolver;
+    private final PartitionLockResolver partitionLockResolver;
+    private final RangeLockResolver rangeLockResolver;
+    private final Executor executor;
+    private final LockListener<ID> lockListener;
+    private final boolean metricsEnabled;
+
+    private static final int WAITING = 0;
+    private static final int RUNNING = 1;
+    private static final int EXPIRED = 2;
+
+    //hand-offs met on thread with locks, they are scheduled after its last release
+    private final ThreadLocal<ArrayDeque<LockEntry>> deferred = ThreadLocal.withInitial(ArrayDeque::new);
+    //count of deferred hand-offs of all threads, release skips thread local while it is zero
+    private final AtomicInteger deferredCount = new AtomicInteger();
+
+    public <R> CompletableFuture<R> submit(E entity, LockType lockType, long timeout, Function<E, R> function) {
+        var entry = locks.acquire(entity.getId());
+        var waiter = new Waiter<>(entity, lockType, function, entry);
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, MILLISECONDS, executor).execute(waiter::expire);
+        }
+        entry.getWaiters().add(waiter);
+        signal(entry);
+        return waiter.future;
+    }
+
+    /**
+     * Must be called after every release of entry lock
+     */
+    public void onRelease(LockEntry entry) {
+        if (!entry.getWaiters().isEmpty()) {
+            entry.released();
+            signal(entry);
+        }
+        if (deferredCount.get() > 0 && !locker.holdsLocks()) {
+            var queue = deferred.get();
+            LockEntry next;
+            while ((next = queue.poll()) != null) {
+                deferredCount.decrementAndGet();
+                signal(next);
+            }
+        }
+    }
+
+    private void signal(LockEntry entry) {
+        if (!entry.getWaiters().isEmpty() && entry.scheduleHandOff()) {
+            executor.execute(() -> handOff(entry));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void handOff(LockEntry entry) {
+        long releases = entry.getReleases();
+        var waiter = (Waiter<Object>) entry.getWaiters().peek();
+        if (waiter == null) {
+            entry.finishHandOff();
+            signal(entry);
+            return;
+        }
+        if (locker.holdsLocks()) {
+            //direct executor runs hand-off on thread with locks, async function can't be nested into them,
+            //hand-off is repeated on the same executor after the last release of thread
+            entry.finishHandOff();
+            deferred.get().add(entry);
+            deferredCount.incrementAndGet();
+            return;
+        }
+        var id = waiter.entity.getId();
+        var lock = globalLockResolver.getLock(entry.getLock(), waiter.getLockType());
+        if (!locker.tryLockNow(lock, id, waiter.getLockType())) {
+            entry.finishHandOff();
+            //lock was released after attempt, its release didn't schedule hand-off
+            if (entry.getReleases() != releases) {
+                signal(entry);
+            }
+            return;
+        }
+        if (!globalLockResolver.tryCheckForGlobalWaiting()) {
+            locker.unlock(id, lock);
+            entry.finishHandOff();
+            globalLockResolver.onGlobalRelease(() -> signal(entry));
+            return;
+        }
+        var partition = PartitionLockResolver.partitionOf(waiter.entity);
+        if (partition != null && !partitionLockResolver.tryEnterRow(partition, waiter.getLockType())) {
+            globalLockResolver.processGlobalUnlocking(waiter.getLockType());
+            locker.unlock(id, lock);
+            entry.finishHandOff();
+            partitionLockResolver.onPartitionRelease(partition, waiter.getLockType(), () -> signal(entry));
+            return;
+        }
+        var point = rangeLockResolver.tryEnterPoint(id, entry, waiter.getLockType());
+        if (point == null) {
+            if (partition != null) {
+                partitionLockResolver.exitRow(partition, waiter.getLockType());
+            }
+            globalLockResolver.processGlobalUnlocking(waiter.getLockType());
+            locker.unlock(id, lock);
+            entry.finishHandOff();
+            rangeLockResolver.onRangeRelease(() -> signal(entry));
+            return;
+        }
+        boolean started = waiter.start();
+        if (started) {
+            entry.getWaiters().remove(waiter);
+        }
+        entry.finishHandOff();
+        //next waiter, e.g. reader, can be resumed in parallel
+        signal(entry);
+        long acquired = 0L;
+        if (started && metricsEnabled) {
+            acquired = nanoTime();
+            lockListener.onAcquired(waiter.entity.getId(), waiter.getLockType(), acquired - waiter.submitted);
+        }
+        boolean write = started && waiter.getLockType() == LockType.WRITE;
+        try {
+            if (write) {
+                entry.beginWrite();
+            }
+            if (started) {
+                waiter.run();
+            }
+        } finally {
+            if (write) {
+                entry.endWrite();
+            }
+            globalLockResolver.processGlobalUnlocking(waiter.getLockType());
+            locker.unlock(id, lock);
+            rangeLockResolver.exitPoint(id, point, waiter.getLockType());
+            if (partition != null) {
+                partitionLockResolver.exitRow(partition, waiter.getLockType());
+            }
+            if (started) {
+                locks.release(waiter.entity.getId());
+                if (metricsEnabled) {
+                    lockListener.onReleased(waiter.entity.getId(), waiter.getLockType(), nanoTime() - acquired);
+                }
+            }
+            onRelease(entry);
+        }
+        if (started) {
+            //completion is seen after release, as return of sync execute
+            waiter.complete();
+        }
+    }
+
+    private class Waiter<R> implements LockWaiter {
+
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private final E entity;
+        private final LockType lockType;
+        private final Function<E, R> function;
+        private final LockEntry entry;
+        private final long submitted = metricsEnabled ? nanoTime() : 0L;
+        //outcome of function, future is completed after lock release
+        private R result;
+        private Throwable failure;
+
+        Waiter(E entity, LockType lockType, Function<E, R> function, LockEntry entry) {
+            this.entity = entity;
+            this.lockType = lockType;
+            this.function = function;
+            this.entry = entry;
+        }
+
+        @Override
+        public LockType getLockType() {
+            return lockType;
+        }
+
+        @Override
+        public boolean start() {
+            if (future.isDone()) {
+                //cancelled by caller
+                expire();
+                return false;
+            }
+            return state.compareAndSet(WAITING, RUNNING);
+        }
+
+        void run() {
+            try {
+                result = function.apply(entity);
+            } catch (Throwable t) {
+                log.debug("Async function failed for id {}", entity.getId());
+                failure = t;
+            }
+        }
+
+        void complete() {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        }
+
+        void expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                if (metricsEnabled) {
+                    lockListener.onTimeout(entity.getId(), lockType, nanoTime() - submitted);
+                }
+                future.completeExceptionally(new TimeoutException("Failed to acquire the lock in the specified time"));
+                if (entry.getWaiters().remove(this)) {
+                    locks.release(entity.getId());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,282 @@
+package ru.locker.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockTable;
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+import ru.locker.metrics.LockListener;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Flat combining of write functions on hot id.
+ * Caller, which can't take write lock at once, publishes its function in combining slot of lock entry
+ * and parks. Owner of write lock runs published functions one by one before release,
+ * so lock and entity stay in cache of one thread. Each caller gets its own result, exception or timeout.
+ * Callers must hold no other locks, functions are run on thread of combiner within deadline of their callers.
+ * Each served function is reported to listener as own acquire and release
+ *
+ * @param <E>
+ * @param <ID>
+ */
+@Slf4j
+@RequiredArgsConstructor
+@SuppressWarnings("java:S119")
+public class CombiningExecutor<E extends Lockable<ID>, ID> {
+
+    //combiner serves at most so many functions of others, then lock is released
+    private static final int MAX_BATCH = 64;
+    //waiter retries lock with this period, if no combiner has woken it
+    private static final long MAX_PARK_NANOS = MILLISECONDS.toNanos(1);
+
+    private final LockTable<ID> locks;
+    private final LockHelper<ID> locker;
+    private final GlobalLockResolver globalLockResolver;
+    private final PartitionLockResolver partitionLockResolver;
+    private final RangeLockResolver rangeLockResolver;
+    private final AsyncLockExecutor<E, ID> asyncLocker;
+    private final LockListener<ID> lockListener;
+    private final boolean metricsEnabled;
+
+    /**
+     * @param timeout - timeout in ms, zero is infinity wait
+     */
+    public <R> R execute(E entity, long timeout, Function<E, R> function) throws TimeoutException {
+        var id = entity.getId();
+        boolean timed = timeout > 0;
+        long start = nanoTime();
+        long deadline = start + MILLISECONDS.toNanos(timeout);
+        var partition = PartitionLockResolver.partitionOf(entity);
+        if (partition != null && !partitionLockResolver.enterRow(partition, LockType.WRITE, timed, deadline)) {
+            throw timeout(id, start);
+        }
+        var entry = locks.acquire(id);
+        Object point = null;
+        try {
+            point = rangeLockResolver.enterPoint(id, entry, LockType.WRITE, false, timed, deadline);
+            if (point == null) {
+                throw timeout(id, start);
+            }
+            var request = new Request<>(entity, function, start);
+            var lock = entry.getLock().writeLock();
+            var slots = entry.getCombiningSlots();
+            if (locker.tryLockNow(lock, id, LockType.WRITE)) {
+                return combine(id, entry, lock, slots, request, start);
+            }
+            if (!publish(slots, request)) {
+                log.debug("Combining slots are busy, waiting for lock of id {}", id);
+                long rest = timed ? Math.max(1L, NANOSECONDS.toMillis(deadline - nanoTime())) : 0L;
+                if (!locker.tryLock(rest, lock, id, LockType.WRITE, entry)) {
+                    throw timeout(id, start);
+                }
+                return combine(id, entry, lock, slots, request, start);
+            }
+            return await(id, entry, lock, slots, request, timed, deadline, start);
+        } finally {
+            if (point != null) {
+                rangeLockResolver.exitPoint(id, point, LockType.WRITE);
+            }
+            locks.release(id);
+            if (partition != null) {
+                partitionLockResolver.exitRow(partition, LockType.WRITE);
+            }
+        }
+    }
+
+    private <R> R await(ID id, LockEntry entry, Lock lock, AtomicReferenceArray<Object> slots, Request<E, R> request,
+                        boolean timed, long deadline, long start) throws TimeoutException {
+        while (true) {
+            if (request.state == Request.DONE) {
+                return request.result();
+            }
+            //lock is free, but nobody has served request
+            if (locker.tryLockNow(lock, id, LockType.WRITE)) {
+                return combine(id, entry, lock, slots, request, start);
+            }
+            long park = MAX_PARK_NANOS;
+            if (timed) {
+                long rest = deadline - nanoTime();
+                if (rest > 0) {
+                    park = Math.min(park, rest);
+                } else if (request.cancel()) {
+                    slots.compareAndSet(request.slot, request, null);
+                    throw timeout(id, start);
+                }
+                //else combiner runs function already, its result is waited
+            }
+            LockSupport.parkNanos(this, park);
+        }
+    }
+
+    /**
+     * Run own function, if it isn't run yet, and functions of others under write lock, then release it
+     */
+    private <R> R combine(ID id, LockEntry entry, Lock lock, AtomicReferenceArray<Object> slots,
+                          Request<E, R> request, long start) {
+        globalLockResolver.checkForGlobalWaiting(LockType.WRITE);
+        long acquired = 0L;
+        if (metricsEnabled) {
+            acquired = nanoTime();
+            lockListener.onAcquired(id, LockType.WRITE, acquired - start);
+        }
+        try {
+            entry.beginWrite();
+            if (request.claim()) {
+                if (request.slot >= 0) {
+                    slots.compareAndSet(request.slot, request, null);
+                }
+                request.run();
+            }
+            serve(id, slots);
+        } finally {
+            entry.endWrite();
+            globalLockResolver.processGlobalUnlocking(LockType.WRITE);
+            locker.unlock(id, lock);
+            asyncLocker.onRelease(entry);
+            if (metricsEnabled) {
+                lockListener.onReleased(id, LockType.WRITE, nanoTime() - acquired);
+            }
+            wakeNext(slots);
+        }
+        return request.result();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void serve(ID id, AtomicReferenceArray<Object> slots) {
+        int served = 0;
+        boolean found = true;
+        while (found && served < MAX_BATCH) {
+            found = false;
+            for (int i = 0; i < slots.length() && served < MAX_BATCH; i++) {
+                var request = (Request<E, ?>) slots.get(i);
+                if (request != null && request.claim()) {
+                    slots.compareAndSet(i, request, null);
+                    long begin = 0L;
+                    if (metricsEnabled) {
+                        begin = nanoTime();
+                        lockListener.onAcquired(id, LockType.WRITE, begin - request.published);
+                    }
+                    request.run();
+                    if (metricsEnabled) {
+                        lockListener.onReleased(id, LockType.WRITE, nanoTime() - begin);
+                    }
+                    served++;
+                    found = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waiter of remaining request becomes next combiner
+     */
+    private static void wakeNext(AtomicReferenceArray<Object> slots) {
+        for (int i = 0; i < slots.length(); i++) {
+            var request = (Request<?, ?>) slots.get(i);
+            if (request != null && request.state == Request.PENDING) {
+                LockSupport.unpark(request.waiter);
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return false, if all slots are busy
+     */
+    private static boolean publish(AtomicReferenceArray<Object> slots, Request<?, ?> request) {
+        int mask = slots.length() - 1;
+        int first = (int) request.waiter.getId() & mask;
+        for (int i = 0; i < slots.length(); i++) {
+            int slot = (first + i) & mask;
+            request.slot = slot;
+            if (slots.compareAndSet(slot, null, request)) {
+                return true;
+            }
+        }
+        request.slot = -1;
+        return false;
+    }
+
+    private TimeoutException timeout(ID id, long start) {
+        if (metricsEnabled) {
+            lockListener.onTimeout(id, LockType.WRITE, nanoTime() - start);
+        }
+        return new TimeoutException("Failed to acquire the lock in the specified time");
+    }
+
+    private static final class Request<E, R> {
+
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int DONE = 2;
+        private static final int CANCELLED = 3;
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Request> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Request.class, "state");
+
+        private final E entity;
+        private final Function<E, R> function;
+        private final Thread waiter = Thread.currentThread();
+        //deadline of caller, function of others is run within it
+        private final Deadline deadline = Deadline.current();
+        private final long published;
+        //index of published request, -1 for own request of combiner
+        private int slot = -1;
+        private volatile int state;
+        //published by write of state
+        private R result;
+        private Throwable failure;
+
+        private Request(E entity, Function<E, R> function, long published) {
+            this.entity = entity;
+            this.function = function;
+            this.published = published;
+        }
+
+        private boolean claim() {
+            return STATE.compareAndSet(this, PENDING, RUNNING);
+        }
+
+        private boolean cancel() {
+            return STATE.compareAndSet(this, PENDING, CANCELLED);
+        }
+
+        /**
+         * Exception of function belongs to its caller, combiner goes on
+         */
+        @SuppressWarnings("java:S1181")
+        private void run() {
+            try {
+                result = waiter == Thread.currentThread()
+                        ? function.apply(entity)
+                        : Deadline.callWithin(deadline, () -> function.apply(entity));
+            } catch (Throwable e) {
+                failure = e;
+            }
+            state = DONE;
+            if (waiter != Thread.currentThread()) {
+                LockSupport.unpark(waiter);
+            }
+        }
+
+        @SneakyThrows
+        private R result() {
+            if (failure != null) {
+                throw failure;
+            }
+            return result;
+        }
+    }
+}
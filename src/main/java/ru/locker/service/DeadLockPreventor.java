@@ -1,11 +1,41 @@
 package ru.locker.service;
 
-import java.util.function.BooleanSupplier;
-
+/**
+ * Preventor is called around locking without lambdas, so locking path doesn't allocate
+ */
 @SuppressWarnings("java:S119")
 public interface DeadLockPreventor<ID> {
 
-    boolean registerLock(ID id, BooleanSupplier locker);
+    /**
+     * Called before locking
+     * @throws ru.locker.exception.PossibleDeadLockException, if lock could close a cycle
+     */
+    void registerLock(ID id);
+
+    /**
+     * Called after successful locking of registered id
+     */
+    void lockAcquired(ID id);
+
+    /**
+     * Called after failed locking of registered id, registration must be forgotten
+     */
+    void lockFailed(ID id);
+
+    /**
+     * Called before unlocking
+     */
+    void deregisterLock(ID id);
+
+    /**
+     * Called before waiting for write lock of id, which current thread holds by read lock.
+     * Id stays registered, upgrade doesn't change order of locks
+     * @throws ru.locker.exception.PossibleDeadLockException, if waiting could close a cycle
+     */
+    void registerUpgrade(ID id);
 
-    void deregisterLock(ID id, Runnable locker);
+    /**
+     * Called after upgrade waiting, successful or not
+     */
+    void upgradeFinished(ID id);
 }
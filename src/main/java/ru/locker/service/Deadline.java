@@ -0,0 +1,150 @@
+package ru.locker.service;
+
+import ru.locker.exception.DeadlineExceededException;
+import ru.locker.exception.UncheckedDeadlineExceededException;
+
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Absolute deadline of lock calls of current thread.
+ * Nested calls share it: timeout of each lock is cut to the rest of deadline, infinity one too,
+ * and lock fails at once with {@link DeadlineExceededException}, when less than a millisecond is left.
+ * It is {@link TimeoutException}, untimed calls throw it wrapped in {@link UncheckedDeadlineExceededException},
+ * {@link #within} unwraps it.
+ * Async functions run within deadline of their caller. Deadline is applied by {@link LockManagerImpl}
+ */
+public final class Deadline {
+
+    //timeouts are in ms, shorter rest can't be waited
+    private static final long MIN_BUDGET_NANOS = MILLISECONDS.toNanos(1);
+    private static final ThreadLocal<Deadline> CURRENT = new ThreadLocal<>();
+
+    private final long deadline;
+
+    private Deadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * Run function within deadline, nested deadline can't be later than outer one
+     * @param timeout - budget in ms of function and all its locks
+     * @throws DeadlineExceededException, if deadline of some lock is exceeded, timed or untimed one
+     * @throws TimeoutException, if timeout of some timed lock is exceeded
+     */
+    public static <R> R within(long timeout, TimedSupplier<R> function) throws TimeoutException {
+        if (timeout <= 0) {
+            throw new IllegalArgumentException("Timeout of deadline must be positive");
+        }
+        long deadline = nanoTime() + MILLISECONDS.toNanos(timeout);
+        var outer = CURRENT.get();
+        if (outer != null && outer.deadline - deadline <= 0) {
+            return get(function);
+        }
+        var previous = enter(new Deadline(deadline));
+        try {
+            return get(function);
+        } finally {
+            exit(previous);
+        }
+    }
+
+    private static <R> R get(TimedSupplier<R> function) throws TimeoutException {
+        try {
+            return function.get();
+        } catch (UncheckedDeadlineExceededException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @return deadline of current thread, or null
+     */
+    public static Deadline current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Run function within this deadline, e.g. on other thread of async chain
+     */
+    public <R> R call(Supplier<R> function) {
+        return callWithin(this, function);
+    }
+
+    /**
+     * Run function within deadline of other thread, e.g. function of other caller served by combiner
+     * @param deadline - deadline, which is captured on other thread, null means no deadline
+     */
+    static <R> R callWithin(Deadline deadline, Supplier<R> function) {
+        var previous = enter(deadline);
+        try {
+            return function.get();
+        } finally {
+            exit(previous);
+        }
+    }
+
+    /**
+     * @return deadline, which was set before
+     */
+    private static Deadline enter(Deadline deadline) {
+        var previous = CURRENT.get();
+        if (deadline == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(deadline);
+        }
+        return previous;
+    }
+
+    private static void exit(Deadline previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * @return rest of deadline in ms
+     */
+    public long remaining() {
+        return Math.max(0L, NANOSECONDS.toMillis(deadline - nanoTime()));
+    }
+
+    /**
+     * @param timeout - timeout of lock in ms, zero is infinity wait
+     * @return timeout cut to the rest of deadline
+     * @throws DeadlineExceededException, if less than a millisecond is left
+     */
+    long timeout(long timeout) throws DeadlineExceededException {
+        long rest = deadline - nanoTime();
+        if (rest < MIN_BUDGET_NANOS) {
+            throw new DeadlineExceededException("Deadline is exceeded before lock");
+        }
+        long restMillis = NANOSECONDS.toMillis(rest);
+        return timeout > 0 && timeout < restMillis ? timeout : restMillis;
+    }
+
+    /**
+     * Called on lock timeout, it was caused by deadline, if deadline is exceeded
+     * @throws DeadlineExceededException, if less than a millisecond is left
+     */
+    void checkExceeded() throws DeadlineExceededException {
+        if (deadline - nanoTime() < MIN_BUDGET_NANOS) {
+            throw new DeadlineExceededException("Deadline is exceeded while waiting for lock");
+        }
+    }
+
+    /**
+     * Function within deadline, it can call timed locks
+     */
+    @FunctionalInterface
+    public interface TimedSupplier<R> {
+        R get() throws TimeoutException;
+    }
+}
@@ -2,45 +2,130 @@ package ru.locker.service;
 
 import lombok.SneakyThrows;
 import ru.locker.domain.LockType;
-import java.util.concurrent.atomic.AtomicInteger;
+import ru.locker.metrics.LockEvents;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
+/**
+ * Barrier between GLOBAL and row locks.
+ * Row lock publishes itself in striped in-flight counter and checks GLOBAL flag,
+ * GLOBAL sets flag and waits for counter drain, so row locks touch shared monitor
+ * only while GLOBAL request is pending
+ */
 public class GlobalLockResolver {
 
-    //global lock
+    //global lock, serializes GLOBAL requests
+    private final ReentrantLock globalLock;
     private volatile boolean globalLockAcquired = false;
-    private final AtomicInteger locksCount = new AtomicInteger();
-    private final Lock globalLock = new ReentrantLock();
-    private final Condition freeLock = globalLock.newCondition();
-    private final Condition freeGlobalLock = globalLock.newCondition();
+    private final InFlightCounter locksCount = new InFlightCounter();
+    //slow path, used only while GLOBAL request is pending
+    private final Lock barrierLock = new ReentrantLock();
+    private final Condition freeLock = barrierLock.newCondition();
+    private final Condition freeGlobalLock = barrierLock.newCondition();
+    //write stamp is held during GLOBAL, it invalidates optimistic reads
+    private final StampedLock version = new StampedLock();
+    //guarded by globalLock
+    private long globalStamp;
+    //async waiters, which are resumed after GLOBAL release
+    private final Queue<Runnable> globalReleaseActions = new ConcurrentLinkedQueue<>();
+
+    public GlobalLockResolver() {
+        this(false);
+    }
+
+    /**
+     * Pending GLOBAL stops new row locks at once and waits only for rows in flight,
+     * so only GLOBAL requests themselves can starve each other
+     * @param fair - GLOBAL requests are served in arrival order
+     */
+    public GlobalLockResolver(boolean fair) {
+        this.globalLock = new ReentrantLock(fair);
+    }
 
     public void checkForGlobalWaiting(LockType lockType) {
         if (lockType == LockType.GLOBAL) {
             waitReleaseOthers();
         } else {
-            waitReleaseGlobal();
-            locksCount.incrementAndGet();
+            while (true) {
+                waitReleaseGlobal();
+                locksCount.increment();
+                if (!globalLockAcquired) {
+                    return;
+                }
+                //GLOBAL came between check and increment, give way to it
+                releaseRowLock();
+            }
+        }
+    }
+
+    /**
+     * Non blocking version for row locks
+     * @return false, if GLOBAL request is pending
+     */
+    public boolean tryCheckForGlobalWaiting() {
+        if (globalLockAcquired) {
+            return false;
+        }
+        locksCount.increment();
+        if (!globalLockAcquired) {
+            return true;
+        }
+        releaseRowLock();
+        return false;
+    }
+
+    /**
+     * Run action after GLOBAL release, or now if there is no GLOBAL request
+     */
+    public void onGlobalRelease(Runnable action) {
+        globalReleaseActions.add(action);
+        if (!globalLockAcquired && globalReleaseActions.remove(action)) {
+            action.run();
         }
     }
 
     public void processGlobalUnlocking(LockType lockType) {
         if (lockType == LockType.GLOBAL) {
+            //nested GLOBAL, barrier belongs to outer one
+            if (globalLock.getHoldCount() > 1) {
+                return;
+            }
             globalLockAcquired = false;
-            freeGlobalLock.signalAll();
+            version.unlockWrite(globalStamp);
+            signal(freeGlobalLock);
+            Runnable action;
+            while ((action = globalReleaseActions.poll()) != null) {
+                action.run();
+            }
         } else {
-            locksCount.decrementAndGet();
-            syncOperation(freeLock::signalAll);
+            releaseRowLock();
         }
     }
 
+    /**
+     * @return zero, if GLOBAL is pending
+     */
+    public long tryOptimisticRead() {
+        return version.tryOptimisticRead();
+    }
+
+    public boolean validate(long stamp) {
+        return version.validate(stamp);
+    }
+
     public Lock getLock(ReadWriteLock lock, LockType lockType) {
         switch (lockType) {
             case GLOBAL:
                 return globalLock;
             case READ:
+            case OPTIMISTIC_READ:
+                //optimistic read falls back to read lock
                 return lock.readLock();
             case WRITE:
             default:
@@ -48,39 +133,57 @@ public class GlobalLockResolver {
         }
     }
 
+    private void releaseRowLock() {
+        locksCount.decrement();
+        if (globalLockAcquired) {
+            signal(freeLock);
+        }
+    }
+
     @SneakyThrows
-    @SuppressWarnings({"java:S2274", "java:S2142"})
     private void waitReleaseGlobal() {
-        //some microopmization
         //double check locking
         if (globalLockAcquired) {
-            syncOperation(() -> {
-                try {
+            barrierLock.lock();
+            try {
+                while (globalLockAcquired) {
                     freeGlobalLock.await();
-                } catch (InterruptedException e) {
-                    //TODO, in real world another exception
-                   throw new RuntimeException();
                 }
-            });
+            } finally {
+                barrierLock.unlock();
+            }
         }
     }
 
     @SneakyThrows
     private void waitReleaseOthers() {
+        if (globalLock.getHoldCount() > 1) {
+            //nested GLOBAL, barrier is held by outer one
+            return;
+        }
+        globalStamp = version.writeLock();
         globalLockAcquired = true;
-        while (locksCount.get() > 0) {
-            freeLock.await();
+        if (locksCount.isZero()) {
+            return;
+        }
+        var drain = LockEvents.beginGlobalDrain();
+        barrierLock.lock();
+        try {
+            while (!locksCount.isZero()) {
+                freeLock.await();
+            }
+        } finally {
+            barrierLock.unlock();
+            LockEvents.endGlobalDrain(drain);
         }
     }
 
-    private void syncOperation(Runnable apply) {
+    private void signal(Condition condition) {
+        barrierLock.lock();
         try {
-            globalLock.lock();
-            while (globalLockAcquired) {
-                apply.run();
-            }
+            condition.signalAll();
         } finally {
-            globalLock.unlock();
+            barrierLock.unlock();
         }
     }
 }
@@ -0,0 +1,205 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Hashed timer wheel with one worker thread.
+ * Timeout is put into bucket of its deadline tick with count of remaining rounds,
+ * schedule and cancel are O(1), cancelled timeouts are dropped, when worker visits their bucket.
+ * New timeouts go through queue, buckets are touched only by worker, so they need no locks.
+ * Tasks are run by worker thread and must be short. Own wheel must be closed, shared one lives with JVM
+ */
+@Slf4j
+public class HashedTimerWheel implements Closeable {
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+    private final long start = nanoTime();
+    private final Thread worker;
+    private volatile boolean closed;
+    //guarded by worker
+    private long tick;
+
+    /**
+     * @param tick - duration of one tick, it is precision of timeouts
+     * @param wheelSize - count of buckets, rounded up to power of two
+     */
+    public HashedTimerWheel(long tick, TimeUnit unit, int wheelSize) {
+        this.tickNanos = unit.toNanos(tick);
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.mask = size - 1;
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.worker = new Thread(this::work, "locker-timer-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Wheel for all lock managers, which don't have own one
+     */
+    public static HashedTimerWheel shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * @throws IllegalStateException, if wheel is closed, task would never run
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (closed) {
+            throw new IllegalStateException("Timer wheel is closed");
+        }
+        var timeout = new Timeout(task, nanoTime() - start + unit.toNanos(delay));
+        pending.add(timeout);
+        //close came after check
+        if (closed && pending.remove(timeout)) {
+            throw new IllegalStateException("Timer wheel is closed");
+        }
+        return timeout;
+    }
+
+    /**
+     * Stop worker, pending timeouts are never run, new ones are rejected
+     */
+    @Override
+    public void close() {
+        if (this == Shared.INSTANCE) {
+            throw new IllegalStateException("Shared timer wheel can't be closed");
+        }
+        closed = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void work() {
+        while (!closed) {
+            long deadline = (tick + 1) * tickNanos;
+            long now;
+            while ((now = nanoTime() - start) < deadline) {
+                if (closed) {
+                    return;
+                }
+                LockSupport.parkNanos(deadline - now);
+            }
+            transferPending();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        Timeout timeout;
+        while ((timeout = pending.poll()) != null) {
+            if (timeout.state.get() == CANCELLED) {
+                continue;
+            }
+            //expired already, it goes to current bucket
+            long deadlineTick = Math.max(timeout.deadline / tickNanos, tick);
+            timeout.rounds = (deadlineTick - tick) / wheel.length;
+            wheel[(int) (deadlineTick & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        var timeout = bucket.head;
+        while (timeout != null) {
+            var next = timeout.next;
+            if (timeout.state.get() == CANCELLED) {
+                bucket.remove(timeout);
+            } else if (timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                timeout.expire();
+            } else {
+                timeout.rounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    public static class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        //guarded by worker
+        private long rounds;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * @return false, if task is already run
+         */
+        public boolean cancel() {
+            return state.compareAndSet(WAITING, CANCELLED);
+        }
+
+        private void expire() {
+            if (state.compareAndSet(WAITING, EXPIRED)) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    log.error("Timer task failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts
+     */
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.prev = tail;
+            timeout.next = null;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.prev == null) {
+                head = timeout.next;
+            } else {
+                timeout.prev.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.prev;
+            } else {
+                timeout.next.prev = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+        }
+    }
+
+    private static class Shared {
+        //10ms precision, one round is about 5 seconds
+        private static final HashedTimerWheel INSTANCE = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 512);
+    }
+}
@@ -0,0 +1,57 @@
+package ru.locker.service;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static java.lang.Thread.currentThread;
+
+/**
+ * Striped counter of operations in flight.
+ * Every thread works with own cell, cells are padded to separate cache lines,
+ * so unrelated threads don't contend on one counter.
+ * Thread must decrement the same cell, which it incremented, so increment and decrement
+ * have to be called from one thread
+ */
+public class InFlightCounter {
+
+    //128 bytes between cells, it covers adjacent cache line prefetch
+    private static final int PADDING = 16;
+
+    private final AtomicLongArray cells;
+    private final int mask;
+
+    public InFlightCounter() {
+        this(Runtime.getRuntime().availableProcessors() * 2);
+    }
+
+    public InFlightCounter(int stripes) {
+        int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+        this.mask = size - 1;
+        this.cells = new AtomicLongArray(size * PADDING);
+    }
+
+    public void increment() {
+        cells.incrementAndGet(cell());
+    }
+
+    public void decrement() {
+        cells.decrementAndGet(cell());
+    }
+
+    /**
+     * Not atomic snapshot, but each cell is checked after caller published its intention,
+     * so operation started before that can't be missed
+     */
+    public boolean isZero() {
+        for (int i = 0; i <= mask; i++) {
+            if (cells.get(i * PADDING) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int cell() {
+        long hash = currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return ((int) (hash >>> 32) & mask) * PADDING;
+    }
+}
@@ -0,0 +1,563 @@
+package ru.locker.service;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Lock manager, which doesn't block threads on row locks.
+ * Each id is hashed to one of single-consumer lanes, WRITE functions of the lane are run one by one by its thread.
+ * Lane drains its queue in batch and parks only on empty queue, so busy lane isn't woken per function.
+ * READ is run by caller at once, while no WRITE is queued in its lane, otherwise it is queued too.
+ * GLOBAL and batches over several lanes stop their lanes at barrier one by one in order of index and run on caller.
+ * Locks are striped: ids of one lane exclude each other.
+ * Nested call stops lanes, which outer functions don't hold, in the same way, so lanes are taken as ordered locks.
+ * Nested call, which needs a lane before the last held one, fails with PossibleDeadLockException, use executeAsync
+ *
+ * @param <E>
+ * @param <ID>
+ */
+@Slf4j
+@SuppressWarnings("java:S119")
+public class LaneLockManager<E extends Lockable<ID>, ID> implements UpgradableLockManager<E, ID>, Closeable {
+
+    //lane, which waits for readers of callers, is woken by the last of them, pause is a safety net
+    private static final long READERS_PAUSE_NANOS = MILLISECONDS.toNanos(1);
+
+    private final Lane[] lanes;
+    private final int mask;
+    private final Executor asyncExecutor;
+    //lanes, which are held by function of current thread
+    private final ThreadLocal<Held> current = new ThreadLocal<>();
+    private volatile boolean closed;
+
+    public LaneLockManager() {
+        this(Runtime.getRuntime().availableProcessors(), null);
+    }
+
+    public LaneLockManager(int lanes) {
+        this(lanes, null);
+    }
+
+    /**
+     * @param lanes - count of lanes and their threads, it's rounded up to power of two
+     * @param asyncExecutor - executor for async GLOBAL, common pool by default
+     */
+    @SuppressWarnings("unchecked")
+    public LaneLockManager(int lanes, Executor asyncExecutor) {
+        int size = lanes <= 1 ? 1 : Integer.highestOneBit(lanes - 1) << 1;
+        this.lanes = new LaneLockManager.Lane[size];
+        this.mask = size - 1;
+        this.asyncExecutor = asyncExecutor != null ? asyncExecutor : ForkJoinPool.commonPool();
+        for (int i = 0; i < size; i++) {
+            this.lanes[i] = new Lane(i);
+        }
+        for (Lane lane : this.lanes) {
+            lane.thread.start();
+        }
+    }
+
+    @Override
+    public <R> R execute(E entity, LockType lockType, Function<E, R> function) {
+        try {
+            return execute(entity, lockType, 0L, function);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <R> R execute(E entity, LockType lockType, Long timeout, Function<E, R> function) throws TimeoutException {
+        checkPartition(lockType);
+        Supplier<R> task = () -> function.apply(entity);
+        var held = current.get();
+        if (lockType == LockType.GLOBAL) {
+            var all = Arrays.asList(lanes);
+            return held != null ? nested(held, all, true, timeout, task) : barrier(null, all, timeout, task);
+        }
+        var lane = laneOf(entity.getId());
+        boolean exclusive = lockType == LockType.WRITE;
+        if (held != null) {
+            return nested(held, List.of(lane), exclusive, timeout, task);
+        }
+        return exclusive ? await(lane.submit(task, true), timeout) : read(lane, timeout, task);
+    }
+
+    @Override
+    public <R> R executeUpgradable(E entity, BiFunction<E, UpgradableLock, R> function) {
+        try {
+            return executeUpgradable(entity, 0L, function);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Function is run by lane exclusively from the start, so upgrade never conflicts and function isn't repeated
+     */
+    @Override
+    public <R> R executeUpgradable(E entity, Long timeout, BiFunction<E, UpgradableLock, R> function)
+            throws TimeoutException {
+        return execute(entity, LockType.WRITE, timeout, e -> function.apply(e, new LaneUpgrade()));
+    }
+
+    @Override
+    public <R> R executeCombining(E entity, Function<E, R> function) {
+        return execute(entity, LockType.WRITE, function);
+    }
+
+    /**
+     * Lane runs queued functions back to back already
+     */
+    @Override
+    public <R> R executeCombining(E entity, Long timeout, Function<E, R> function) throws TimeoutException {
+        return execute(entity, LockType.WRITE, timeout, function);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Function<E, R> function) {
+        return executeAsync(entity, lockType, 0L, function);
+    }
+
+    /**
+     * Async READ is queued in lane too. GLOBAL waits for barrier in executor thread
+     */
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Long timeout, Function<E, R> function) {
+        checkPartition(lockType);
+        if (lockType == LockType.GLOBAL) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return barrier(null, Arrays.asList(lanes), timeout, () -> function.apply(entity));
+                } catch (TimeoutException e) {
+                    throw new CompletionException(e);
+                }
+            }, asyncExecutor);
+        }
+        var task = laneOf(entity.getId()).submit(() -> function.apply(entity), lockType == LockType.WRITE);
+        if (timeout > 0) {
+            CompletableFuture.delayedExecutor(timeout, MILLISECONDS).execute(task::expire);
+        }
+        return task.future;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        return executeAll(entities, lockType, timeout, (Comparator<ID>) Comparator.naturalOrder(), function);
+    }
+
+    /**
+     * Lanes of batch are stopped in order of their index, so order of ids isn't used
+     */
+    @Override
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout, Comparator<? super ID> order,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        if (lockType == LockType.GLOBAL || lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock doesn't depend on entities, use execute");
+        }
+        var stopped = lanesOf(entities);
+        boolean exclusive = lockType == LockType.WRITE;
+        Supplier<R> task = () -> function.apply(entities);
+        var held = current.get();
+        if (held != null) {
+            return nested(held, stopped, exclusive, timeout, task);
+        }
+        if (stopped.isEmpty()) {
+            return task.get();
+        }
+        if (stopped.size() == 1) {
+            var lane = stopped.get(0);
+            return exclusive ? await(lane.submit(task, true), timeout) : read(lane, timeout, task);
+        }
+        return barrier(null, stopped, timeout, task);
+    }
+
+    /**
+     * Stop lanes, new functions aren't run by them till release
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Lane lane : lanes) {
+            LockSupport.unpark(lane.thread);
+        }
+    }
+
+    /**
+     * Reader runs on caller, while no exclusive task is queued in lane
+     */
+    private <R> R read(Lane lane, long timeout, Supplier<R> function) throws TimeoutException {
+        lane.readers.incrementAndGet();
+        if (lane.exclusive.get() != 0) {
+            lane.releaseReader();
+            return await(lane.submit(function, false), timeout);
+        }
+        current.set(lane.shared);
+        try {
+            return function.get();
+        } finally {
+            current.remove();
+            lane.releaseReader();
+        }
+    }
+
+    /**
+     * Nested call is run inside of outer function, lanes, which aren't held, are stopped at barrier
+     * @param needed - lanes in order of index
+     */
+    private <R> R nested(Held held, List<Lane> needed, boolean exclusive, long timeout, Supplier<R> function)
+            throws TimeoutException {
+        var missing = new ArrayList<Lane>();
+        for (Lane lane : needed) {
+            var holder = held.holderOf(lane);
+            if (holder == null) {
+                missing.add(lane);
+            } else if (exclusive && !holder.exclusive) {
+                log.warn("Possible deadlock: write lock inside of read lock of the same lane");
+                throw new PossibleDeadLockException();
+            }
+        }
+        if (missing.isEmpty()) {
+            return function.get();
+        }
+        if (missing.get(0).index < held.last()) {
+            log.warn("Possible deadlock: function of lane waits for lane before the held ones");
+            throw new PossibleDeadLockException();
+        }
+        return barrier(held, missing, timeout, function);
+    }
+
+    /**
+     * Run function on current thread, while lanes are stopped at barrier.
+     * Lanes are stopped one by one in order of index, so barriers don't wait for each other in a cycle
+     * @param outer - lanes of outer function, null for outermost call
+     */
+    private <R> R barrier(Held outer, List<Lane> stopped, long timeout, Supplier<R> function)
+            throws TimeoutException {
+        boolean timed = timeout > 0;
+        long deadline = nanoTime() + MILLISECONDS.toNanos(timeout);
+        var release = new CompletableFuture<Void>();
+        try {
+            for (Lane lane : stopped) {
+                var arrived = new CountDownLatch(1);
+                lane.submit(() -> {
+                    arrived.countDown();
+                    return release.join();
+                }, true);
+                if (!awaitArrival(arrived, timed, deadline)) {
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+            }
+            current.set(new Held(stopped, true, outer));
+            try {
+                return function.get();
+            } finally {
+                if (outer != null) {
+                    current.set(outer);
+                } else {
+                    current.remove();
+                }
+            }
+        } finally {
+            //late lanes pass released barrier at once
+            release.complete(null);
+        }
+    }
+
+    @SneakyThrows
+    private static boolean awaitArrival(CountDownLatch arrived, boolean timed, long deadline) {
+        if (timed) {
+            return arrived.await(deadline - nanoTime(), NANOSECONDS);
+        }
+        arrived.await();
+        return true;
+    }
+
+    /**
+     * Queued function is cancelled after timeout, function, which is run already, is waited
+     */
+    @SneakyThrows
+    private static <R> R await(Task<R> task, long timeout) throws TimeoutException {
+        try {
+            if (timeout <= 0) {
+                return task.future.join();
+            }
+            try {
+                return task.future.get(timeout, MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (task.expire()) {
+                    throw e;
+                }
+                return task.future.join();
+            }
+        } catch (CompletionException | ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private Lane laneOf(ID id) {
+        int h = id.hashCode();
+        return lanes[(h ^ (h >>> 16)) & mask];
+    }
+
+    private List<Lane> lanesOf(Collection<E> entities) {
+        var used = new boolean[lanes.length];
+        for (E entity : entities) {
+            used[laneOf(entity.getId()).index] = true;
+        }
+        var res = new ArrayList<Lane>();
+        for (int i = 0; i < lanes.length; i++) {
+            if (used[i]) {
+                res.add(lanes[i]);
+            }
+        }
+        return res;
+    }
+
+    private static void checkPartition(LockType lockType) {
+        if (lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock isn't supported by lanes");
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        private final int index;
+        private final Thread thread;
+        private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+        //queued and running exclusive tasks, readers go to queue while it isn't zero
+        private final AtomicInteger exclusive = new AtomicInteger();
+        //readers, which are run by callers
+        private final AtomicInteger readers = new AtomicInteger();
+        private final Held owned = new Held(List.of(this), true);
+        private final Held shared = new Held(List.of(this), false);
+        private volatile boolean parked;
+
+        private Lane(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "lock-lane-" + index);
+            this.thread.setDaemon(true);
+        }
+
+        private <R> Task<R> submit(Supplier<R> function, boolean exclusive) {
+            if (closed) {
+                throw new IllegalStateException("Lock manager is closed");
+            }
+            var task = new Task<>(function, exclusive);
+            if (exclusive) {
+                this.exclusive.incrementAndGet();
+            }
+            queue.add(task);
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+            //lane has stopped before task was queued
+            if (closed && task.cancel()) {
+                task.future.completeExceptionally(new IllegalStateException("Lock manager is closed"));
+            }
+            return task;
+        }
+
+        private void releaseReader() {
+            if (readers.decrementAndGet() == 0 && exclusive.get() != 0) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                Task<?> task;
+                while ((task = queue.poll()) != null) {
+                    run(task);
+                }
+                parked = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+            Task<?> task;
+            while ((task = queue.poll()) != null) {
+                if (task.cancel()) {
+                    task.future.completeExceptionally(new IllegalStateException("Lock manager is closed"));
+                }
+            }
+        }
+
+        private void run(Task<?> task) {
+            try {
+                if (!task.start()) {
+                    //expired
+                    return;
+                }
+                if (task.exclusive) {
+                    while (readers.get() != 0) {
+                        LockSupport.parkNanos(this, READERS_PAUSE_NANOS);
+                    }
+                }
+                current.set(task.exclusive ? owned : shared);
+                try {
+                    task.run();
+                } finally {
+                    current.remove();
+                }
+            } finally {
+                if (task.exclusive) {
+                    exclusive.decrementAndGet();
+                }
+            }
+        }
+    }
+
+    private final class Held {
+
+        private final Collection<Lane> lanes;
+        private final boolean exclusive;
+        //lanes of outer function, null for outermost one
+        private final Held outer;
+
+        private Held(Collection<Lane> lanes, boolean exclusive) {
+            this(lanes, exclusive, null);
+        }
+
+        private Held(Collection<Lane> lanes, boolean exclusive, Held outer) {
+            this.lanes = lanes;
+            this.exclusive = exclusive;
+            this.outer = outer;
+        }
+
+        private Held holderOf(Lane lane) {
+            for (var held = this; held != null; held = held.outer) {
+                if (held.lanes.contains(lane)) {
+                    return held;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return max index of held lanes
+         */
+        private int last() {
+            int res = -1;
+            for (var held = this; held != null; held = held.outer) {
+                for (Lane lane : held.lanes) {
+                    res = Math.max(res, lane.index);
+                }
+            }
+            return res;
+        }
+    }
+
+    private static final class Task<R> {
+
+        private static final int PENDING = 0;
+        private static final int RUNNING = 1;
+        private static final int CANCELLED = 2;
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<Task> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Task.class, "state");
+
+        private final Supplier<R> function;
+        private final boolean exclusive;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private volatile int state;
+
+        private Task(Supplier<R> function, boolean exclusive) {
+            this.function = function;
+            this.exclusive = exclusive;
+        }
+
+        private boolean start() {
+            return STATE.compareAndSet(this, PENDING, RUNNING);
+        }
+
+        private boolean cancel() {
+            return STATE.compareAndSet(this, PENDING, CANCELLED);
+        }
+
+        /**
+         * @return false, if function is run already
+         */
+        private boolean expire() {
+            if (!cancel()) {
+                return false;
+            }
+            future.completeExceptionally(new TimeoutException("Failed to acquire the lock in the specified time"));
+            return true;
+        }
+
+        @SuppressWarnings("java:S1181")
+        private void run() {
+            try {
+                future.complete(function.get());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Lane function is exclusive already, handle only tracks mode for the function
+     */
+    private static final class LaneUpgrade implements UpgradableLock {
+
+        private boolean write;
+
+        @Override
+        public void upgrade() {
+            write = true;
+        }
+
+        @Override
+        public boolean tryUpgrade() {
+            write = true;
+            return true;
+        }
+
+        @Override
+        public void downgrade() {
+            write = false;
+        }
+
+        @Override
+        public boolean isWriteLocked() {
+            return write;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lease of lock owner. Java lock can't be taken from its owner, so expired lease
+ * flags entry till owner releases it, waiters of entry fail fast, and owner thread is interrupted.
+ * Owner, which is interrupted already, isn't interrupted by lease, so its own interrupt is kept after release
+ */
+@Slf4j
+class Lease implements Runnable {
+
+    private static final int ACTIVE = 0;
+    private static final int EXPIRING = 1;
+    private static final int EXPIRED = 2;
+    private static final int FINISHED = 3;
+
+    private final LockEntry entry;
+    private final Object id;
+    private final Thread owner = Thread.currentThread();
+    private final AtomicInteger state = new AtomicInteger(ACTIVE);
+    private final HashedTimerWheel.Timeout timeout;
+    //interrupt of owner is sent by lease, published by state
+    private boolean interrupted;
+
+    Lease(LockEntry entry, Object id, long lease, HashedTimerWheel wheel) {
+        this.entry = entry;
+        this.id = id;
+        this.timeout = wheel.schedule(this, lease, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void run() {
+        if (state.compareAndSet(ACTIVE, EXPIRING)) {
+            log.warn("Lease of lock is expired for id {}", id);
+            entry.expireLease();
+            if (!owner.isInterrupted()) {
+                interrupted = true;
+                owner.interrupt();
+            }
+            state.set(EXPIRED);
+        }
+    }
+
+    /**
+     * Called by owner after function, before unlock
+     * @return true, if lease was expired
+     */
+    boolean finish() {
+        if (state.compareAndSet(ACTIVE, FINISHED)) {
+            timeout.cancel();
+            return false;
+        }
+        while (state.get() == EXPIRING) {
+            Thread.onSpinWait();
+        }
+        entry.expiredOwnerReleased();
+        if (interrupted) {
+            Thread.interrupted();
+        }
+        return true;
+    }
+}
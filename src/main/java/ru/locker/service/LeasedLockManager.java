@@ -0,0 +1,28 @@
+package ru.locker.service;
+
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Lock manager, which can bound hold time of lock by lease.
+ * Owner of lease must be interruptible, so it's supported by in-process locks only
+ */
+@SuppressWarnings("java:S119")
+public interface LeasedLockManager<E extends Lockable<ID>, ID> extends LockManager<E, ID> {
+
+    /**
+     * Execute current row wih blocking on entity.id and lease of lock.
+     * After lease expiry waiters of entity fail with LeaseExpiredException, owner thread is interrupted
+     * and gets LeaseExpiredException after function
+     * @param entity - entity to block
+     * @param lockType - type of lock
+     * @param timeout - timeout in ms waiting for acquire lock, zero is infinity wait
+     * @param lease - lease of lock in ms, zero is infinity lease
+     * @param function - function
+     */
+    <R> R execute(E entity, LockType lockType, Long timeout, Long lease, Function<E, R> function)
+            throws TimeoutException;
+}
@@ -1,18 +1,12 @@
 package ru.locker.service;
 
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.collections4.CollectionUtils;
 import ru.locker.domain.ThreadLocksHolder;
+import ru.locker.domain.ThreadLocksHolder.ThreadLocks;
 import ru.locker.exception.PossibleDeadLockException;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
-import java.util.function.BooleanSupplier;
-
-import static java.lang.Thread.currentThread;
-import static java.util.stream.Collectors.toList;
-import static org.apache.commons.collections4.CollectionUtils.isEmpty;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Simple lock preventor, based on locks ordering
@@ -24,42 +18,66 @@ import static org.apache.commons.collections4.CollectionUtils.isEmpty;
 @SuppressWarnings("java:S119")
 public class ListBasedDeadLockPreventor<ID> implements DeadLockPreventor<ID> {
 
+    //guarded by registrationLock
     ThreadLocksHolder<ID> lockHolder = new ThreadLocksHolder<>();
+    //not a monitor, virtual threads are not pinned while waiting for it
+    private final Lock registrationLock = new ReentrantLock();
 
     @Override
-    public boolean registerLock(ID to, BooleanSupplier supplier) {
-        if (to != null) {
-            synchronized (this) {
-                if (!canLock(to)) {
-                    log.warn("Possible deadlock");
-                    throw new PossibleDeadLockException();
-                }
-                lockHolder.updateLocks(to);
+    public void registerLock(ID to) {
+        registrationLock.lock();
+        try {
+            if (!canLock(to)) {
+                log.warn("Possible deadlock");
+                throw new PossibleDeadLockException();
             }
+            lockHolder.updateLocks(to);
+        } finally {
+            registrationLock.unlock();
         }
-        return supplier.getAsBoolean();
     }
 
     @Override
-    public void deregisterLock(ID to, Runnable supplier) {
-           if (to != null) {
-               lockHolder.deleteThreadLocks(to);
-           }
-           supplier.run();
+    public void lockAcquired(ID to) {
+        //registered before locking
     }
 
-    private boolean canLock(ID to) {
-        List<List<ID>> currentLocks = lockHolder.findLocksBlockedWithCurrentLock(to);
-        if (isEmpty(currentLocks)) return true;
+    @Override
+    public void lockFailed(ID to) {
+        deregisterLock(to);
+    }
+
+    @Override
+    public void deregisterLock(ID to) {
+        registrationLock.lock();
+        try {
+            lockHolder.deleteThreadLocks(to);
+        } finally {
+            registrationLock.unlock();
+        }
+    }
+
+    @Override
+    public void registerUpgrade(ID to) {
+        //id is in thread locks already, order of locks isn't changed
+    }
 
-        List<ID> myLocks = lockHolder.findLockByThreadId(currentThread().getId());
-        if (isEmpty(myLocks)) return true;
+    @Override
+    public void upgradeFinished(ID to) {
+        //nothing to do
+    }
+
+    private boolean canLock(ID to) {
+        var holders = lockHolder.findHolders(to);
+        if (holders == null) return true;
 
-        List<ID> tmpLocks = new ArrayList<>(myLocks);
-        tmpLocks.add(to);
+        var myLocks = lockHolder.findCurrentThreadLocks();
+        //re-entry can't close a cycle
+        if (myLocks.size() == 0 || myLocks.indexOf(to) >= 0) return true;
 
-        for (List<ID> tmpList : currentLocks.stream().filter(l -> l.size() > 1).collect(toList())) {
-            if (!locksInRightOrder(tmpList, tmpLocks)) {
+        for (int i = 0; i < holders.size(); i++) {
+            var holder = holders.get(i);
+            if (holder != myLocks && holder.size() > 1 && !locksInRightOrder(holder, myLocks, to)) {
                 return false;
             }
         }
@@ -67,27 +85,25 @@ public class ListBasedDeadLockPreventor<ID> implements DeadLockPreventor<ID> {
 
     }
 
-    private boolean locksInRightOrder(List<ID> firstLocks, List<ID> secondLocks) {
-        Collection<ID> intersections = CollectionUtils.intersection(firstLocks, secondLocks);
-        //intersected id, must be always greater
-        //Maybe better to use trees
-        int firstListId = 0;
+    /**
+     * Common ids of first locks and second locks with next id must go in the same order
+     */
+    private boolean locksInRightOrder(ThreadLocks<ID> firstLocks, ThreadLocks<ID> secondLocks, ID next) {
         int secondListId = 0;
-        for (ID id : intersections) {
-            int tmpFirstId = firstLocks.indexOf(id);
-            if (checkOrder(firstListId, tmpFirstId)) {
-                firstListId = tmpFirstId;
-            } else {
-                return false;
-            }
-
+        for (int firstListId = 0; firstListId < firstLocks.size(); firstListId++) {
+            var id = firstLocks.get(firstListId);
             int tmpSecondId = secondLocks.indexOf(id);
+            if (tmpSecondId < 0 && id.equals(next)) {
+                tmpSecondId = secondLocks.size();
+            }
+            if (tmpSecondId < 0) {
+                continue;
+            }
             if (checkOrder(secondListId, tmpSecondId)) {
-                secondListId  = tmpSecondId;
+                secondListId = tmpSecondId;
             } else {
                 return false;
             }
-
         }
         return true;
     }
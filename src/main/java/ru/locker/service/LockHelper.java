@@ -1,44 +1,601 @@
 package ru.locker.service;
 
-import lombok.RequiredArgsConstructor;
+import jdk.jfr.Event;
 import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockSnapshot;
+import ru.locker.domain.LockType;
+import ru.locker.exception.LeaseExpiredException;
+import ru.locker.exception.PossibleDeadLockException;
+import ru.locker.metrics.LockEvents;
+import ru.locker.metrics.LockListener;
 
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 import java.util.concurrent.locks.Lock;
 
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+
+/**
+ * Locking through deadlock preventor.
+ * Thread without other locks can't close a cycle, so its first lock, or ordered batch of locks, is taken directly
+ * and registered in preventor lazily, only when thread goes for a lock out of them.
+ * With adaptive spinning waiter of row lock spins before parking, while recent hold time of id is short.
+ * Waits, holds, timeouts and deadlock rejections are flight recorder events, see {@link LockEvents},
+ * all rejections are reported to listener too.
+ * Locks of every thread are kept for snapshot of owners and waiters, see {@link #snapshot}.
+ * Threads are registered once, by their first lock, dead ones are swept by later registrations
+ *
+ * @param <ID>
+ */
 @Slf4j
-@RequiredArgsConstructor
 @SuppressWarnings("java:S119")
 public class LockHelper<ID> {
 
+    //longer holds are waited by parking, unpark costs less than such spin
+    private static final long MAX_SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+    private static final long MIN_SPIN_NANOS = 500L;
+    //spin on one cpu only delays owner
+    private static final boolean MULTI_CPU = Runtime.getRuntime().availableProcessors() > 1;
+    //dead threads aren't swept before so many registrations
+    private static final int MIN_SWEEP = 64;
+
     private final DeadLockPreventor<ID> deadLockPreventor;
+    private final boolean adaptiveSpin;
+    private final LockListener<ID> lockListener;
+    private final ThreadLocal<HeldLocks<ID>> heldLocks = ThreadLocal.withInitial(this::newHeldLocks);
+    //thread id -> locks of thread, registered once per thread
+    private final Map<Long, HeldLocks<ID>> threads = new ConcurrentHashMap<>();
+    //registrations since the last sweep of dead threads
+    private final AtomicInteger registrations = new AtomicInteger();
+    //blocked waiters are watched by leases only after the first leased lock
+    private volatile boolean leasesUsed;
 
-    public boolean tryLock(Long timeout, final Lock lock, ID id) {
-        if (timeout > 0) {
-            return tryLockWithTimeout(timeout, lock, id);
-        } else {
-            return deadLockPreventor.registerLock(id, () -> {
-                lock.lock();
-                return true;
-            });
+    public LockHelper(DeadLockPreventor<ID> deadLockPreventor) {
+        this(deadLockPreventor, false);
+    }
+
+    /**
+     * @param adaptiveSpin - spin before parking, budget follows hold time of id, see {@link LockEntry#recordHold}
+     */
+    public LockHelper(DeadLockPreventor<ID> deadLockPreventor, boolean adaptiveSpin) {
+        this(deadLockPreventor, adaptiveSpin, LockListener.noOp());
+    }
+
+    /**
+     * @param lockListener - listener of deadlock rejections
+     */
+    public LockHelper(DeadLockPreventor<ID> deadLockPreventor, boolean adaptiveSpin, LockListener<ID> lockListener) {
+        this.deadLockPreventor = deadLockPreventor;
+        this.adaptiveSpin = adaptiveSpin && MULTI_CPU;
+        this.lockListener = lockListener;
+    }
+
+    public boolean isAdaptiveSpin() {
+        return adaptiveSpin;
+    }
+
+    /**
+     * Blocked waiters are interrupted by expired leases of owners from now on
+     */
+    public void enableLeases() {
+        leasesUsed = true;
+    }
+
+    public boolean tryLock(long timeout, final Lock lock, ID id) {
+        return tryLock(timeout, lock, id, null, null);
+    }
+
+    /**
+     * @param lockType - READ, OPTIMISTIC_READ or WRITE lock can be re-entered by {@link #tryReenter}
+     * @param entry - entry of row lock, waiter spins by its hold time and checks lease of its owner.
+     *              Null for other locks
+     * @throws LeaseExpiredException, if lease of owner is expired while waiting
+     */
+    public boolean tryLock(long timeout, final Lock lock, ID id, LockType lockType, LockEntry entry) {
+        if (id == null) {
+            return lockWithoutPreventor(timeout, lock, entry);
+        }
+        var held = heldLocks.get();
+        if (held.count == 0) {
+            //fast path, no other locks
+            if (!lockRecorded(timeout, lock, id, lockType, entry, held)) {
+                return false;
+            }
+            held.push(id, lockType);
+            held.unregistered = 1;
+            return true;
+        }
+        registerHeld(held);
+        try {
+            deadLockPreventor.registerLock(id);
+        } catch (PossibleDeadLockException e) {
+            rejected(id, lockType, held);
+            throw e;
+        }
+        boolean locked = false;
+        try {
+            locked = lockRecorded(timeout, lock, id, lockType, entry, held);
+            return locked;
+        } finally {
+            if (locked) {
+                deadLockPreventor.lockAcquired(id);
+                held.push(id, lockType);
+            } else {
+                deadLockPreventor.lockFailed(id);
+            }
+        }
+    }
+
+    /**
+     * Acquire the only lock of thread without waiting, so preventor doesn't need to see it
+     * @return false, if lock is busy or thread holds other locks
+     */
+    public boolean tryLockNow(final Lock lock, ID id, LockType lockType) {
+        var held = heldLocks.get();
+        if (held.count != 0 || !lock.tryLock()) {
+            return false;
+        }
+        held.push(id, lockType);
+        held.unregistered = 1;
+        return true;
+    }
+
+    public boolean holdsLocks() {
+        return heldLocks.get().count != 0;
+    }
+
+    /**
+     * Acquire lock of batch without deadlock preventor, caller guarantees locks order,
+     * and thread held no locks before batch. Lock is held as own one, it is released by {@link #unlock}
+     */
+    public boolean tryLockOrdered(ID id, LockType lockType, boolean timed, long timeoutNanos, Lock lock) {
+        var held = heldLocks.get();
+        if (held.count != held.unregistered) {
+            return false;
+        }
+        held.waitFor(id, lockType);
+        try {
+            if (!tryLockOrdered(timed, timeoutNanos, lock)) {
+                return false;
+            }
+        } finally {
+            held.waitFor(null, null);
+        }
+        held.push(id, lockType);
+        held.unregistered++;
+        return true;
+    }
+
+    /**
+     * Acquire lock without deadlock preventor, caller guarantees locks order
+     */
+    public boolean tryLockOrdered(boolean timed, long timeoutNanos, Lock lock) {
+        if (!timed) {
+            lock.lock();
+            return true;
+        }
+        try {
+            return lock.tryLock(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            currentThread().interrupt();
+            log.info("Can't acquire lock", e);
+            return false;
+        }
+    }
+
+    /**
+     * Re-entry of READ or WRITE lock, which current thread holds already.
+     * It is nested into outer hold, so it takes no lock, isn't seen by preventor and needs no unlock
+     * @return false, if current thread doesn't hold such lock of id
+     * @throws PossibleDeadLockException on WRITE inside of own READ, such thread would wait for itself
+     */
+    public boolean tryReenter(ID id, LockType lockType) {
+        var held = heldLocks.get();
+        if (held.count == 0) {
+            return false;
         }
+        var mode = held.modeOf(id);
+        if (mode == null) {
+            return false;
+        }
+        if (lockType == LockType.WRITE && mode == LockType.READ) {
+            log.warn("Possible deadlock: write lock inside of read lock of the same id");
+            rejected(id, lockType, held);
+            throw new PossibleDeadLockException();
+        }
+        return true;
+    }
+
+    /**
+     * @return READ or WRITE, if current thread holds re-enterable lock of id, otherwise null
+     */
+    public LockType heldLockType(ID id) {
+        var held = heldLocks.get();
+        return held.count == 0 ? null : held.modeOf(id);
+    }
+
+    /**
+     * Current thread is going to wait for write lock of id, which it holds by read lock.
+     * Preventor doesn't see the only lock of thread, it can't close a cycle
+     */
+    public void registerUpgrade(ID id) {
+        var held = heldLocks.get();
+        if (held.unregistered == 0) {
+            try {
+                deadLockPreventor.registerUpgrade(id);
+            } catch (PossibleDeadLockException e) {
+                rejected(id, LockType.WRITE, held);
+                throw e;
+            }
+        }
+    }
+
+    public void upgradeFinished(ID id) {
+        if (heldLocks.get().unregistered == 0) {
+            deadLockPreventor.upgradeFinished(id);
+        }
+    }
+
+    /**
+     * Type of held lock is changed by upgrade or downgrade, it is re-entered with new type
+     */
+    public void changeLockType(ID id, LockType lockType) {
+        heldLocks.get().changeMode(id, lockType);
     }
 
     public void unlock(ID id, Lock lock) {
-        deadLockPreventor.deregisterLock(id, lock::unlock);
+        if (id != null) {
+            var held = heldLocks.get();
+            int index = held.pop(id);
+            if (index >= 0 && index < held.unregistered) {
+                //preventor hasn't seen it
+                held.unregistered--;
+            } else {
+                deadLockPreventor.deregisterLock(id);
+            }
+        }
+        //lock can be lost by failed upgrade
+        if (lock != null) {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Owners and waiters of ids for diagnosis of stalls on live system.
+     * It sees every lock taken through helper, the first lock of thread too, GLOBAL is entry with null id.
+     * Locks of each thread are consistent, they are copied by seqlock, threads are copied one by one
+     * @param queued - ids in use with count of async waiters queued for each, ids of held locks are added to them
+     */
+    @SuppressWarnings("unchecked")
+    public LockSnapshot<ID> snapshot(Map<ID, Integer> queued) {
+        var owners = new LinkedHashMap<Object, List<Thread>>();
+        var waiters = new LinkedHashMap<Object, List<Thread>>();
+        for (ID id : queued.keySet()) {
+            owners.put(id, new ArrayList<>());
+            waiters.put(id, new ArrayList<>());
+        }
+        for (var held : threads.values()) {
+            var locks = held.copy();
+            for (Object id : locks) {
+                addThread(owners, id, held.thread);
+                waiters.computeIfAbsent(id, k -> new ArrayList<>());
+            }
+            var waitingFor = held.waitingFor;
+            if (waitingFor != null) {
+                owners.computeIfAbsent(waitingFor, k -> new ArrayList<>());
+                addThread(waiters, waitingFor, held.thread);
+            }
+        }
+        var entries = new ArrayList<LockSnapshot.Entry<ID>>(owners.size());
+        owners.forEach((id, threadList) -> entries.add(new LockSnapshot.Entry<>(id == HeldLocks.GLOBAL ? null : (ID) id,
+                threadList, waiters.get(id), queued.getOrDefault(id, 0))));
+        return new LockSnapshot<>(entries);
+    }
+
+    private static void addThread(Map<Object, List<Thread>> threads, Object id, Thread thread) {
+        var list = threads.computeIfAbsent(id, k -> new ArrayList<>());
+        if (!list.contains(thread)) {
+            list.add(thread);
+        }
+    }
+
+    /**
+     * Sweep is amortized by registrations, so dead threads are at most about as many as live ones
+     */
+    private HeldLocks<ID> newHeldLocks() {
+        var thread = currentThread();
+        var held = new HeldLocks<ID>(thread);
+        threads.put(thread.getId(), held);
+        int registered = registrations.incrementAndGet();
+        if (registered >= MIN_SWEEP && registered * 2 >= threads.size()) {
+            registrations.set(0);
+            threads.values().removeIf(h -> !h.thread.isAlive());
+        }
+        return held;
+    }
+
+    private void rejected(ID id, LockType lockType, HeldLocks<ID> held) {
+        LockEvents.deadLockRejected(id, lockType, held.ids, held.count);
+        lockListener.onDeadLockRejected(id, lockType);
+    }
+
+    /**
+     * Thread goes for a lock out of its unregistered ones, preventor must see them
+     */
+    @SuppressWarnings("unchecked")
+    private void registerHeld(HeldLocks<ID> held) {
+        for (int i = 0; i < held.unregistered; i++) {
+            deadLockPreventor.registerLock((ID) held.ids[i]);
+            deadLockPreventor.lockAcquired((ID) held.ids[i]);
+        }
+        held.unregistered = 0;
+    }
+
+    private boolean lockRecorded(long timeout, Lock lock, ID id, LockType lockType, LockEntry entry,
+                                 HeldLocks<ID> held) {
+        var wait = LockEvents.beginWait();
+        held.waitFor(id, lockType);
+        boolean locked;
+        try {
+            locked = lockWithoutPreventor(timeout, lock, entry);
+        } finally {
+            held.waitFor(null, null);
+        }
+        if (!locked) {
+            LockEvents.timeout(id, lockType, timeout);
+            return false;
+        }
+        LockEvents.endWait(wait, id, lockType);
+        return true;
     }
 
     @SuppressWarnings("java:S2142")
-    private boolean tryLockWithTimeout(Long timeout, Lock lock, ID id) {
-        return deadLockPreventor.registerLock(id, () -> {
-            try {
-                return lock.tryLock(timeout, TimeUnit.MILLISECONDS);
-            } catch (InterruptedException e) {
-                deadLockPreventor.deregisterLock(id, lock::unlock);
-                log.info("Can't acquire lock", e);
-                return false;
+    private boolean lockWithoutPreventor(long timeout, Lock lock, LockEntry entry) {
+        if (entry != null && adaptiveSpin && spin(lock, entry)) {
+            return true;
+        }
+        if (entry != null && leasesUsed) {
+            return lockWatched(timeout, lock, entry);
+        }
+        if (timeout <= 0) {
+            lock.lock();
+            return true;
+        }
+        try {
+            return lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            //lock isn't acquired, preventor forgets it by lockFailed
+            currentThread().interrupt();
+            log.info("Can't acquire lock", e);
+            return false;
+        }
+    }
+
+    /**
+     * Spin for about two recent hold times of id, if they are short.
+     * Failed spin counts as long hold, so spinning stops, when owners are descheduled,
+     * e.g. with more threads than cpus, and comes back with short holds
+     * @return true, if lock is acquired
+     */
+    private static boolean spin(Lock lock, LockEntry entry) {
+        long hold = entry.getHoldNanos();
+        if (hold > MAX_SPIN_NANOS) {
+            return false;
+        }
+        long budget = Math.max(MIN_SPIN_NANOS, hold * 2);
+        long start = nanoTime();
+        do {
+            if (lock.tryLock()) {
+                return true;
+            }
+            Thread.onSpinWait();
+        } while (nanoTime() - start < budget);
+        entry.recordHold(MAX_SPIN_NANOS * 2);
+        return false;
+    }
+
+    /**
+     * Waiter can't be woken by expired lease through java lock, so lease interrupts it.
+     * Waiter fails at once, while expired owner holds the lock
+     */
+    @SuppressWarnings("java:S2142")
+    private boolean lockWatched(long timeout, Lock lock, LockEntry entry) {
+        int expiries = entry.getLeaseExpiries();
+        var blocked = entry.beginBlocking();
+        boolean locked = false;
+        boolean interrupted = false;
+        try {
+            //checked after registration, so expiry is seen here or it interrupts waiter
+            while (!entry.hasExpiredOwner() && entry.getLeaseExpiries() == expiries) {
+                try {
+                    if (timeout > 0) {
+                        locked = lock.tryLock(timeout, TimeUnit.MILLISECONDS);
+                    } else {
+                        lock.lockInterruptibly();
+                        locked = true;
+                    }
+                    break;
+                } catch (InterruptedException e) {
+                    //lease interrupt is checked by loop, interrupt of caller stops timed wait only
+                    interrupted = true;
+                    if (timeout > 0 && entry.getLeaseExpiries() == expiries) {
+                        break;
+                    }
+                }
+            }
+        } finally {
+            boolean byLease = entry.endBlocking(blocked);
+            if (interrupted && !byLease) {
+                currentThread().interrupt();
+            }
+        }
+        if (entry.hasExpiredOwner() || entry.getLeaseExpiries() != expiries) {
+            //expired owner could release the lock before waiter got it
+            if (locked) {
+                lock.unlock();
             }
-        });
+            throw new LeaseExpiredException("Lease of lock owner is expired");
+        }
+        if (!locked && interrupted) {
+            log.info("Can't acquire lock, thread is interrupted");
+        }
+        return locked;
     }
 
+    /**
+     * Locks of current thread, taken through helper.
+     * Owner changes stack of locks under seqlock, snapshot copies it with retry on change
+     */
+    private static class HeldLocks<ID> {
+        //key of GLOBAL lock in snapshot, lock is taken with id of entity
+        private static final Object GLOBAL = new Object();
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<HeldLocks, Object> WAITING_FOR =
+                AtomicReferenceFieldUpdater.newUpdater(HeldLocks.class, Object.class, "waitingFor");
+        @SuppressWarnings("rawtypes")
+        private static final AtomicIntegerFieldUpdater<HeldLocks> VERSION =
+                AtomicIntegerFieldUpdater.newUpdater(HeldLocks.class, "version");
+
+        private final Thread thread;
+        private Object[] ids = new Object[4];
+        //type of re-enterable lock, or null
+        private LockType[] modes = new LockType[4];
+        //hold events, null while holds aren't recorded
+        private Event[] holds = new Event[4];
+        private int count;
+        //count of first locks, which aren't registered in preventor yet
+        private int unregistered;
+        //GLOBAL holds, snapshot doesn't show them under id
+        private boolean[] globals = new boolean[4];
+        //id, which thread waits for, it's read by snapshot only
+        private volatile Object waitingFor;
+        //odd while stack is changed
+        private volatile int version;
+
+        HeldLocks(Thread thread) {
+            this.thread = thread;
+        }
+
+        /**
+         * Ordered store without fence, snapshot sees it a bit later
+         */
+        void waitFor(Object id, LockType lockType) {
+            WAITING_FOR.lazySet(this, lockType == LockType.GLOBAL ? GLOBAL : id);
+        }
+
+        void push(Object id, LockType lockType) {
+            beginChange();
+            if (count == ids.length) {
+                ids = Arrays.copyOf(ids, count * 2);
+                modes = Arrays.copyOf(modes, count * 2);
+                holds = Arrays.copyOf(holds, count * 2);
+                globals = Arrays.copyOf(globals, count * 2);
+            }
+            holds[count] = LockEvents.beginHold(lockType);
+            globals[count] = lockType == LockType.GLOBAL;
+            ids[count] = id;
+            modes[count++] = reentrantMode(lockType);
+            endChange();
+        }
+
+        /**
+         * Only owner changes stack, so release stores are enough, no full fence on lock path
+         */
+        private void beginChange() {
+            VERSION.lazySet(this, version + 1);
+            VarHandle.storeStoreFence();
+        }
+
+        private void endChange() {
+            VERSION.lazySet(this, version + 1);
+        }
+
+        /**
+         * Called by other thread
+         * @return keys of held locks, GLOBAL is {@link #GLOBAL}
+         */
+        List<Object> copy() {
+            while (true) {
+                int before = version;
+                if ((before & 1) == 0) {
+                    var idsCopy = ids;
+                    var globalsCopy = globals;
+                    int size = Math.min(count, Math.min(idsCopy.length, globalsCopy.length));
+                    var res = new ArrayList<>(size);
+                    for (int i = 0; i < size; i++) {
+                        res.add(globalsCopy[i] ? GLOBAL : idsCopy[i]);
+                    }
+                    VarHandle.loadLoadFence();
+                    if (version == before) {
+                        return res;
+                    }
+                }
+                Thread.onSpinWait();
+            }
+        }
+
+        /**
+         * Locks are released in reverse order, so the last one is found at once
+         * @return index of released lock
+         */
+        int pop(Object id) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (ids[i].equals(id)) {
+                    LockEvents.endHold(holds[i], id);
+                    beginChange();
+                    System.arraycopy(ids, i + 1, ids, i, count - i - 1);
+                    System.arraycopy(modes, i + 1, modes, i, count - i - 1);
+                    System.arraycopy(holds, i + 1, holds, i, count - i - 1);
+                    System.arraycopy(globals, i + 1, globals, i, count - i - 1);
+                    ids[--count] = null;
+                    modes[count] = null;
+                    holds[count] = null;
+                    endChange();
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private static LockType reentrantMode(LockType lockType) {
+            if (lockType == LockType.WRITE) {
+                return LockType.WRITE;
+            }
+            //optimistic read, which is here, holds read lock
+            return lockType == LockType.READ || lockType == LockType.OPTIMISTIC_READ ? LockType.READ : null;
+        }
+
+        void changeMode(Object id, LockType lockType) {
+            for (int i = count - 1; i >= 0; i--) {
+                if (ids[i].equals(id)) {
+                    modes[i] = reentrantMode(lockType);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Write wins over read, thread can take read inside of own write
+         */
+        LockType modeOf(Object id) {
+            LockType res = null;
+            for (int i = 0; i < count; i++) {
+                if (modes[i] != null && ids[i].equals(id) && res != LockType.WRITE) {
+                    res = modes[i];
+                }
+            }
+            return res;
+        }
+    }
 }
@@ -3,11 +3,17 @@ package ru.locker.service;
 import ru.locker.domain.LockType;
 import ru.locker.domain.Lockable;
 
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Function;
 
 /**
  * Reusable utility class that provides synchronization mechanism similar to row-level DB locking.
+ * Within {@link Deadline} lock can fail by {@link ru.locker.exception.DeadlineExceededException},
+ * it is {@link TimeoutException}, so timed calls declare it. Untimed calls throw it wrapped in
+ * {@link ru.locker.exception.UncheckedDeadlineExceededException}
  */
 @SuppressWarnings("java:S119")
 public interface LockManager<E extends Lockable<ID>, ID> {
@@ -29,5 +35,68 @@ public interface LockManager<E extends Lockable<ID>, ID> {
      */
     <R> R execute(E entity, LockType lockType, Long timeout, Function<E, R> function) throws TimeoutException;
 
+    /**
+     * Execute function under write lock on entity.id in combining mode for hot ids.
+     * Contending functions are run in batch by current owner of lock, so function can be run on other thread
+     * and mustn't depend on thread locals. Caller with other locks runs function as WRITE execute
+     * @param entity - entity to block
+     * @param function - function
+     */
+    <R> R executeCombining(E entity, Function<E, R> function);
+
+    /**
+     * Execute function under write lock on entity.id in combining mode for hot ids.
+     * Contending functions are run in batch by current owner of lock, so function can be run on other thread
+     * and mustn't depend on thread locals. Caller with other locks runs function as WRITE execute
+     * @param entity - entity to block
+     * @param timeout - timeout in ms waiting for lock or combiner, zero is infinity wait.
+     *                Function isn't run after timeout
+     * @param function - function
+     */
+    <R> R executeCombining(E entity, Long timeout, Function<E, R> function) throws TimeoutException;
+
+    /**
+     * Execute function asynchronously, when lock on entity.id is handed to it, without blocking of caller
+     * @param entity - entity to block
+     * @param lockType - type of lock
+     * @param function - function
+     * @return future with result of function
+     */
+    <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Function<E, R> function);
+
+    /**
+     * Execute function asynchronously, when lock on entity.id is handed to it, without blocking of caller
+     * @param entity - entity to block
+     * @param lockType - type of lock
+     * @param timeout - timeout in ms waiting for acquire lock, zero is infinity wait,
+     *                future fails with TimeoutException after it
+     * @param function - function
+     * @return future with result of function
+     */
+    <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Long timeout, Function<E, R> function);
+
+    /**
+     * Execute function with blocking on all entities ids.
+     * Locks are acquired in ascending order of ids, so batches can't deadlock each other
+     * and deadlock preventor isn't used, till function takes a lock out of batch.
+     * Batch under other locks of thread goes through preventor, ids held by thread are re-entered
+     * @param entities - entities to block, ids must be Comparable
+     * @param lockType - type of lock, READ or WRITE
+     * @param timeout - timeout in ms waiting for acquire all locks, zero is infinity wait
+     * @param function - function
+     */
+    <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout,
+                     Function<Collection<E>, R> function) throws TimeoutException;
+
+    /**
+     * Execute function with blocking on all entities ids, locks are acquired in order of comparator
+     * @param entities - entities to block
+     * @param lockType - type of lock, READ or WRITE
+     * @param timeout - timeout in ms waiting for acquire all locks, zero is infinity wait
+     * @param order - order of ids
+     * @param function - function
+     */
+    <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout, Comparator<? super ID> order,
+                     Function<Collection<E>, R> function) throws TimeoutException;
 
 }
@@ -1,34 +1,112 @@
 package ru.locker.service;
 
+import lombok.Builder;
 import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockPolicy;
+import ru.locker.domain.LockSnapshot;
+import ru.locker.domain.LockTable;
 import ru.locker.domain.LockType;
 import ru.locker.domain.Lockable;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import ru.locker.exception.DeadlineExceededException;
+import ru.locker.exception.UncheckedDeadlineExceededException;
+import ru.locker.exception.LeaseExpiredException;
+import ru.locker.exception.PossibleDeadLockException;
+import ru.locker.metrics.LockListener;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.TimeoutException;
-import java.util.concurrent.locks.*;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
 
 
 @Slf4j
 @SuppressWarnings("java:S119")
-public class LockManagerImpl<E extends Lockable<ID>, ID> implements LockManager<E, ID> {
+public class LockManagerImpl<E extends Lockable<ID>, ID> implements LeasedLockManager<E, ID>,
+        UpgradableLockManager<E, ID>, RangeLockManager<E, ID> {
+
+    private static final Object OPTIMISTIC_READ_FAILED = new Object();
+    //pause of reader, which waits for other upgrader
+    private static final long UPGRADE_PAUSE_NANOS = 10_000L;
 
     //locks
-    private final Map<ID, ReadWriteLock> locks = new ConcurrentHashMap<>();
+    private final LockTable<ID> locks;
 
     private final LockHelper<ID> locker;
     private final GlobalLockResolver globalLockResolver;
+    private final PartitionLockResolver partitionLockResolver = new PartitionLockResolver();
+    private final RangeLockResolver rangeLockResolver;
+    private final Executor asyncExecutor;
+    private final AsyncLockExecutor<E, ID> asyncLocker;
+    private final CombiningExecutor<E, ID> combiner;
+    private final LockListener<ID> lockListener;
+    //disabled listener costs nothing, even nanoTime isn't called
+    private final boolean metricsEnabled;
+    private final HashedTimerWheel leaseWheel;
+    //hold times are measured only for adaptive spinning
+    private final boolean adaptiveSpin;
 
     public LockManagerImpl(DeadLockPreventor<ID> deadLockPreventor) {
-        this.locker = new LockHelper<>(deadLockPreventor);
-        this.globalLockResolver = new GlobalLockResolver();
+        this(deadLockPreventor, null, null, null, null, false);
+    }
+
+    /**
+     * @param asyncExecutor - executor for async functions
+     */
+    public LockManagerImpl(DeadLockPreventor<ID> deadLockPreventor, Executor asyncExecutor) {
+        this(deadLockPreventor, asyncExecutor, null, null, null, false);
+    }
+
+    /**
+     * @param deadLockPreventor - preventor for nested locks
+     * @param asyncExecutor - executor for async functions, common pool by default
+     * @param lockListener - listener of lock events, disabled by default
+     * @param leaseWheel - timer wheel of leases, shared one by default
+     * @param lockPolicy - admission order of row locks, NON_FAIR by default.
+     *                   Other policies serve GLOBAL requests in arrival order too
+     * @param adaptiveSpin - waiters spin before parking, while recent holds of id are short.
+     *                     It's for functions of a few microseconds, disabled by default
+     */
+    @Builder
+    public LockManagerImpl(DeadLockPreventor<ID> deadLockPreventor, Executor asyncExecutor,
+                           LockListener<ID> lockListener, HashedTimerWheel leaseWheel, LockPolicy lockPolicy,
+                           boolean adaptiveSpin) {
+        var policy = lockPolicy != null ? lockPolicy : LockPolicy.NON_FAIR;
+        this.locks = new LockTable<>(policy);
+        this.rangeLockResolver = new RangeLockResolver(locks, partitionLockResolver);
+        this.globalLockResolver = new GlobalLockResolver(policy != LockPolicy.NON_FAIR);
+        this.asyncExecutor = asyncExecutor != null ? asyncExecutor : ForkJoinPool.commonPool();
+        this.lockListener = lockListener != null ? lockListener : LockListener.noOp();
+        this.metricsEnabled = this.lockListener != LockListener.NO_OP;
+        this.locker = new LockHelper<>(deadLockPreventor, adaptiveSpin, this.lockListener);
+        this.adaptiveSpin = locker.isAdaptiveSpin();
+        this.leaseWheel = leaseWheel;
+        this.asyncLocker = new AsyncLockExecutor<>(locks, locker, globalLockResolver, partitionLockResolver,
+                rangeLockResolver, this.asyncExecutor, this.lockListener, metricsEnabled);
+        this.combiner = new CombiningExecutor<>(locks, locker, globalLockResolver, partitionLockResolver,
+                rangeLockResolver, asyncLocker, this.lockListener, metricsEnabled);
     }
 
     @Override
     public <R> R execute(E entity, LockType lockType, Function<E, R> function) {
         try {
-            return exec(entity, lockType, 0L, function);
+            return exec(entity, lockType, 0L, 0L, function);
+        } catch (DeadlineExceededException e) {
+            throw new UncheckedDeadlineExceededException(e);
         } catch (TimeoutException e) {
             //Impossible case
             log.error("Unexpected exception:", e);
@@ -39,33 +117,626 @@ public class LockManagerImpl<E extends Lockable<ID>, ID> implements LockManager<
 
     @Override
     public <R> R execute(E entity, LockType lockType, Long timeout, Function<E, R> function) throws TimeoutException {
-        return exec(entity, lockType, timeout, function);
+        return exec(entity, lockType, timeout, 0L, function);
+    }
+
+    @Override
+    public <R> R execute(E entity, LockType lockType, Long timeout, Long lease, Function<E, R> function)
+            throws TimeoutException {
+        if (lease > 0) {
+            locker.enableLeases();
+        }
+        return exec(entity, lockType, timeout, lease, function);
+    }
+
+    @Override
+    public <R> R executeUpgradable(E entity, BiFunction<E, UpgradableLock, R> function) {
+        try {
+            return executeUpgradable(entity, 0L, function);
+        } catch (DeadlineExceededException e) {
+            throw new UncheckedDeadlineExceededException(e);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <R> R executeUpgradable(E entity, Long timeout, BiFunction<E, UpgradableLock, R> function)
+            throws TimeoutException {
+        var id = entity.getId();
+        var outer = locker.heldLockType(id);
+        if (outer != null) {
+            //outer lock of current thread covers function, it can't be changed
+            return function.apply(entity, new Upgrade<>(locker, id, outer));
+        }
+        return withinDeadline(timeout, t -> upgradable(entity, t, function));
+    }
+
+    private <R> R upgradable(E entity, long timeout, BiFunction<E, UpgradableLock, R> function)
+            throws TimeoutException {
+        var id = entity.getId();
+        boolean timed = timeout > 0;
+        long start = nanoTime();
+        long deadline = start + MILLISECONDS.toNanos(timeout);
+        var partition = PartitionLockResolver.partitionOf(entity);
+        //upgrade mustn't wait for partition, so intention of write is taken at once
+        if (partition != null && !partitionLockResolver.enterRow(partition, LockType.WRITE, timed, deadline)) {
+            if (metricsEnabled) {
+                lockListener.onTimeout(id, LockType.READ, nanoTime() - start);
+            }
+            throw new TimeoutException("Failed to acquire the lock in the specified time");
+        }
+        var entry = locks.acquire(id);
+        Object point = null;
+        try {
+            point = rangeLockResolver.enterPoint(id, entry, LockType.WRITE, locker.holdsLocks(), timed, deadline);
+            if (point == null) {
+                if (metricsEnabled) {
+                    lockListener.onTimeout(id, LockType.READ, nanoTime() - start);
+                }
+                throw new TimeoutException("Failed to acquire the lock in the specified time");
+            }
+            while (true) {
+                long rest = timed ? Math.max(1L, NANOSECONDS.toMillis(deadline - nanoTime())) : 0L;
+                if (!locker.tryLock(rest, entry.getLock().readLock(), id, LockType.READ, entry)) {
+                    if (metricsEnabled) {
+                        lockListener.onTimeout(id, LockType.READ, nanoTime() - start);
+                    }
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                globalLockResolver.checkForGlobalWaiting(LockType.READ);
+                long acquired = 0L;
+                if (metricsEnabled) {
+                    acquired = nanoTime();
+                    lockListener.onAcquired(id, LockType.READ, acquired - start);
+                }
+                var upgrade = new Upgrade<>(locker, entry, id, timed, deadline);
+                try {
+                    return function.apply(entity, upgrade);
+                } catch (Upgrade.Retry e) {
+                    if (!e.isOf(upgrade)) {
+                        throw e;
+                    }
+                    if (e.isTimeout()) {
+                        throw new TimeoutException("Failed to upgrade the lock in the specified time");
+                    }
+                    log.debug("Upgrade conflict, function is repeated for id {}", id);
+                } finally {
+                    var held = upgrade.getHeld();
+                    globalLockResolver.processGlobalUnlocking(LockType.READ);
+                    locker.unlock(id, upgrade.release());
+                    asyncLocker.onRelease(entry);
+                    if (metricsEnabled && held != null) {
+                        lockListener.onReleased(id, held, nanoTime() - acquired);
+                    }
+                }
+                awaitUpgrade(entry, timed, deadline);
+            }
+        } finally {
+            if (point != null) {
+                rangeLockResolver.exitPoint(id, point, LockType.WRITE);
+            }
+            locks.release(id);
+            if (partition != null) {
+                partitionLockResolver.exitRow(partition, LockType.WRITE);
+            }
+        }
+    }
+
+    @Override
+    public <R> R executeCombining(E entity, Function<E, R> function) {
+        try {
+            return executeCombining(entity, 0L, function);
+        } catch (DeadlineExceededException e) {
+            throw new UncheckedDeadlineExceededException(e);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <R> R executeCombining(E entity, Long timeout, Function<E, R> function) throws TimeoutException {
+        //other thread can't run function under locks of current thread
+        if (locker.holdsLocks()) {
+            return exec(entity, LockType.WRITE, timeout, 0L, function);
+        }
+        return withinDeadline(timeout, t -> combiner.execute(entity, t, function));
+    }
+
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Function<E, R> function) {
+        return executeAsync(entity, lockType, 0L, function);
+    }
+
+    /**
+     * Function and its nested calls run within deadline of caller
+     */
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Long timeout, Function<E, R> function) {
+        var deadline = Deadline.current();
+        if (deadline == null) {
+            return submit(entity, lockType, timeout, function);
+        }
+        try {
+            return submit(entity, lockType, deadline.timeout(timeout), e -> deadline.call(() -> function.apply(e)));
+        } catch (DeadlineExceededException e) {
+            return CompletableFuture.failedFuture(e);
+        }
     }
 
-    private <R> R exec(E entity, LockType lockType, Long timeout, Function<E, R> function) throws
+    /**
+     * GLOBAL and partition locks wait for drain of row locks, so they occupy executor thread while waiting
+     */
+    private <R> CompletableFuture<R> submit(E entity, LockType lockType, long timeout, Function<E, R> function) {
+        if (lockType == LockType.GLOBAL || lockType.isPartition()) {
+            return CompletableFuture.supplyAsync(() -> {
+                try {
+                    return exec(entity, lockType, timeout, 0L, function);
+                } catch (TimeoutException e) {
+                    throw new CompletionException(e);
+                }
+            }, asyncExecutor);
+        }
+        return asyncLocker.submit(entity, lockType, timeout, function);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        return executeAll(entities, lockType, timeout, (Comparator<ID>) Comparator.naturalOrder(), function);
+    }
+
+    @Override
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout, Comparator<? super ID> order,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        return withinDeadline(timeout, t -> lockAll(entities, lockType, t, order, function));
+    }
+
+    private <R> R lockAll(Collection<E> entities, LockType lockType, long timeout, Comparator<? super ID> order,
+                          Function<Collection<E>, R> function) throws TimeoutException {
+        if (lockType == LockType.GLOBAL || lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock doesn't depend on entities, use execute");
+        }
+        var ids = orderedIds(entities, order);
+        var partitions = partitionsOf(entities);
+        boolean timed = timeout > 0;
+        long start = nanoTime();
+        long deadline = start + MILLISECONDS.toNanos(timeout);
+
+        //batch under outer locks goes through preventor, it can close a cycle with them
+        boolean ordered = !locker.holdsLocks();
+        var entries = new ArrayList<LockEntry>(ids.size());
+        //indexes of ids, which are locked by batch, not re-entered
+        var acquired = new ArrayList<Integer>(ids.size());
+        var entered = new ArrayList<Object>(partitions.size());
+        var points = new ArrayList<Object>(ids.size());
+        try {
+            for (Object partition : partitions) {
+                if (!partitionLockResolver.enterRow(partition, lockType, timed, deadline)) {
+                    if (metricsEnabled) {
+                        lockListener.onTimeout(null, lockType, nanoTime() - start);
+                    }
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                entered.add(partition);
+            }
+            //points after the first one are nested, they don't wait for waiting ranges
+            for (ID id : ids) {
+                var entry = locks.acquire(id);
+                entries.add(entry);
+                var point = rangeLockResolver.enterPoint(id, entry, lockType,
+                        !points.isEmpty() || locker.holdsLocks(), timed, deadline);
+                if (point == null) {
+                    if (metricsEnabled) {
+                        lockListener.onTimeout(id, lockType, nanoTime() - start);
+                    }
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                points.add(point);
+            }
+            for (int i = 0; i < ids.size(); i++) {
+                var id = ids.get(i);
+                var entry = entries.get(i);
+                if (!ordered && locker.tryReenter(id, lockType)) {
+                    continue;
+                }
+                var lock = globalLockResolver.getLock(entry.getLock(), lockType);
+                boolean locked = ordered
+                        ? locker.tryLockOrdered(id, lockType, timed, deadline - nanoTime(), lock)
+                        : locker.tryLock(timed ? Math.max(1L, NANOSECONDS.toMillis(deadline - nanoTime())) : 0L,
+                        lock, id, lockType, entry);
+                if (!locked) {
+                    if (metricsEnabled) {
+                        lockListener.onTimeout(id, lockType, nanoTime() - start);
+                    }
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                acquired.add(i);
+            }
+            globalLockResolver.checkForGlobalWaiting(lockType);
+            if (lockType == LockType.WRITE) {
+                entries.forEach(LockEntry::beginWrite);
+            }
+            long acquiredAt = 0L;
+            if (metricsEnabled) {
+                acquiredAt = nanoTime();
+                lockListener.onAcquired(null, lockType, acquiredAt - start);
+            }
+            try {
+                return function.apply(entities);
+            } finally {
+                if (lockType == LockType.WRITE) {
+                    entries.forEach(LockEntry::endWrite);
+                }
+                globalLockResolver.processGlobalUnlocking(lockType);
+                if (metricsEnabled) {
+                    lockListener.onReleased(null, lockType, nanoTime() - acquiredAt);
+                }
+            }
+        } finally {
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                var entry = entries.get(acquired.get(i));
+                locker.unlock(ids.get(acquired.get(i)), globalLockResolver.getLock(entry.getLock(), lockType));
+                asyncLocker.onRelease(entry);
+            }
+            for (int i = points.size() - 1; i >= 0; i--) {
+                rangeLockResolver.exitPoint(ids.get(i), points.get(i), lockType);
+            }
+            for (int i = 0; i < entries.size(); i++) {
+                locks.release(ids.get(i));
+            }
+            for (Object partition : entered) {
+                partitionLockResolver.exitRow(partition, lockType);
+            }
+        }
+    }
+
+    @Override
+    public <R> R executeRange(ID from, ID to, LockType lockType, Supplier<R> function) {
+        try {
+            return executeRange(from, to, lockType, 0L, function);
+        } catch (DeadlineExceededException e) {
+            throw new UncheckedDeadlineExceededException(e);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Range is intention on all partitions, so it waits for conflicting S and X of any partition
+     */
+    @Override
+    public <R> R executeRange(ID from, ID to, LockType lockType, Long timeout, Supplier<R> function)
+            throws TimeoutException {
+        return withinDeadline(timeout, t -> lockRange(from, to, lockType, t, function));
+    }
+
+    private <R> R lockRange(ID from, ID to, LockType lockType, long timeout, Supplier<R> function)
+            throws TimeoutException {
+        long start = nanoTime();
+        var range = rangeLockResolver.lockRange(from, to, lockType, locker.holdsLocks(), timeout > 0,
+                start + MILLISECONDS.toNanos(timeout));
+        if (range == null) {
+            if (metricsEnabled) {
+                lockListener.onTimeout(null, lockType, nanoTime() - start);
+            }
+            throw new TimeoutException("Failed to acquire the range in the specified time");
+        }
+        try {
+            globalLockResolver.checkForGlobalWaiting(lockType);
+            long acquired = 0L;
+            if (metricsEnabled) {
+                acquired = nanoTime();
+                lockListener.onAcquired(null, lockType, acquired - start);
+            }
+            try {
+                return function.get();
+            } finally {
+                globalLockResolver.processGlobalUnlocking(lockType);
+                if (metricsEnabled) {
+                    lockListener.onReleased(null, lockType, nanoTime() - acquired);
+                }
+            }
+        } finally {
+            rangeLockResolver.unlockRange(range);
+        }
+    }
+
+    private <R> R exec(E entity, LockType lockType, long timeout, long lease, Function<E, R> function) throws
             TimeoutException {
         log.debug("Start executing for id {}", entity.getId());
+        //outer hold of current thread covers re-entry, its lock, barrier and lease aren't touched
+        if (lockType != LockType.GLOBAL && !lockType.isPartition() && locker.tryReenter(entity.getId(), lockType)) {
+            return function.apply(entity);
+        }
+        //hot path, so withinDeadline isn't used, it would allocate lambda
+        var deadline = Deadline.current();
+        if (deadline == null) {
+            return execLock(entity, lockType, timeout, lease, function);
+        }
+        long rest = deadline.timeout(timeout);
+        try {
+            return execLock(entity, lockType, rest, lease, function);
+        } catch (TimeoutException e) {
+            deadline.checkExceeded();
+            throw e;
+        }
+    }
 
-        var rwLock = locks.computeIfAbsent(entity.getId(), id -> new ReentrantReadWriteLock());
-        var lock = globalLockResolver.getLock(rwLock, lockType);
-        if (locker.tryLock(timeout, lock, entity.getId())) {
+    @SuppressWarnings("unchecked")
+    private <R> R execLock(E entity, LockType lockType, long timeout, long lease, Function<E, R> function) throws
+            TimeoutException {
+        if (lockType.isPartition()) {
+            return execPartition(entity, lockType, timeout, function);
+        }
+        //GLOBAL covers all partitions
+        var partition = lockType == LockType.GLOBAL ? null : PartitionLockResolver.partitionOf(entity);
+
+        var entry = locks.acquire(entity.getId());
+        try {
+            //partition lock can change rows without row locks, so optimistic read can't see it
+            if (lockType == LockType.OPTIMISTIC_READ && partition == null) {
+                var result = optimisticRead(entry, entity, function);
+                if (result != OPTIMISTIC_READ_FAILED) {
+                    return (R) result;
+                }
+                log.debug("Optimistic read failed for id {}", entity.getId());
+            }
+            var lock = globalLockResolver.getLock(entry.getLock(), lockType);
+            long start = metricsEnabled || partition != null || timeout > 0 ? nanoTime() : 0L;
+            long deadline = start + MILLISECONDS.toNanos(timeout);
+            //intention of partition is taken before row lock, so rows don't wait for partition holding row locks
+            if (partition != null && !partitionLockResolver.enterRow(partition, lockType, timeout > 0, deadline)) {
+                if (metricsEnabled) {
+                    lockListener.onTimeout(entity.getId(), lockType, nanoTime() - start);
+                }
+                throw new TimeoutException("Failed to acquire the lock in the specified time");
+            }
+            try {
+                //point of row conflicts with ranges, which cover it
+                var point = rangeLockResolver.enterPoint(entity.getId(), entry, lockType, locker.holdsLocks(),
+                        timeout > 0, deadline);
+                if (point == null) {
+                    if (metricsEnabled) {
+                        lockListener.onTimeout(entity.getId(), lockType, nanoTime() - start);
+                    }
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                try {
+                    return execRow(entity, lockType, rowTimeout(timeout, start), lease, function, entry, lock, start);
+                } finally {
+                    rangeLockResolver.exitPoint(entity.getId(), point, lockType);
+                }
+            } finally {
+                if (partition != null) {
+                    partitionLockResolver.exitRow(partition, lockType);
+                }
+            }
+        } finally {
+            locks.release(entity.getId());
+        }
+    }
+
+    private <R> R execRow(E entity, LockType lockType, long timeout, long lease, Function<E, R> function,
+                          LockEntry entry, Lock lock, long start) throws TimeoutException {
+        if (locker.tryLock(timeout, lock, entity.getId(), lockType, entry)) {
             globalLockResolver.checkForGlobalWaiting(lockType);
+            long acquired = 0L;
+            if (metricsEnabled || adaptiveSpin) {
+                acquired = nanoTime();
+            }
+            if (metricsEnabled) {
+                lockListener.onAcquired(entity.getId(), lockType, acquired - start);
+            }
+            Lease leased = null;
+            boolean leaseExpired = false;
+            R result;
             try {
-                R result = function.apply(entity);
+                if (lockType == LockType.WRITE) {
+                    entry.beginWrite();
+                }
+                //lock is released by finally, if lease can't be scheduled
+                if (lease > 0) {
+                    leased = new Lease(entry, entity.getId(), lease, leaseWheel());
+                }
+                result = function.apply(entity);
                 log.debug("Finish executing for id {}", entity.getId());
-                return result;
             } finally {
                 log.debug("Unlocking entity witj id {}", entity.getId());
+                leaseExpired = leased != null && leased.finish();
+                if (lockType == LockType.WRITE) {
+                    entry.endWrite();
+                }
+                if (adaptiveSpin && lockType != LockType.GLOBAL) {
+                    entry.recordHold(nanoTime() - acquired);
+                }
                 globalLockResolver.processGlobalUnlocking(lockType);
                 locker.unlock(entity.getId(), lock);
+                asyncLocker.onRelease(entry);
+                if (metricsEnabled) {
+                    lockListener.onReleased(entity.getId(), lockType, nanoTime() - acquired);
+                }
             }
+            if (leaseExpired) {
+                throw new LeaseExpiredException("Lease of lock is expired for id " + entity.getId());
+            }
+            return result;
         } else {
+            if (metricsEnabled) {
+                lockListener.onTimeout(entity.getId(), lockType, nanoTime() - start);
+            }
             throw new TimeoutException("Failed to acquire the lock in the specified time");
         }
     }
 
+    /**
+     * S or X lock of partition, it doesn't lock row of entity
+     */
+    private <R> R execPartition(E entity, LockType lockType, long timeout, Function<E, R> function)
+            throws TimeoutException {
+        var partition = PartitionLockResolver.partitionOf(entity);
+        if (partition == null) {
+            throw new IllegalArgumentException(lockType + " lock needs PartitionedLockable entity");
+        }
+        if (rangeLockResolver.holdsRanges()) {
+            //own range is intention on all partitions
+            log.warn("Possible deadlock: partition lock inside of range");
+            throw new PossibleDeadLockException();
+        }
+        long start = nanoTime();
+        if (!partitionLockResolver.lockPartition(partition, lockType, timeout > 0,
+                start + MILLISECONDS.toNanos(timeout))) {
+            if (metricsEnabled) {
+                lockListener.onTimeout(entity.getId(), lockType, nanoTime() - start);
+            }
+            throw new TimeoutException("Failed to acquire the lock in the specified time");
+        }
+        try {
+            globalLockResolver.checkForGlobalWaiting(lockType);
+            long acquired = 0L;
+            if (metricsEnabled) {
+                acquired = nanoTime();
+                lockListener.onAcquired(entity.getId(), lockType, acquired - start);
+            }
+            try {
+                return function.apply(entity);
+            } finally {
+                globalLockResolver.processGlobalUnlocking(lockType);
+                if (metricsEnabled) {
+                    lockListener.onReleased(entity.getId(), lockType, nanoTime() - acquired);
+                }
+            }
+        } finally {
+            partitionLockResolver.unlockPartition(partition, lockType);
+        }
+    }
+
+    /**
+     * Timeout of call is cut by deadline of current thread
+     */
+    private static <R> R withinDeadline(long timeout, TimedCall<R> call) throws TimeoutException {
+        var deadline = Deadline.current();
+        if (deadline == null) {
+            return call.call(timeout);
+        }
+        long rest = deadline.timeout(timeout);
+        try {
+            return call.call(rest);
+        } catch (TimeoutException e) {
+            deadline.checkExceeded();
+            throw e;
+        }
+    }
+
+    /**
+     * Rest of timeout after partition intention and range point, zero stays infinity
+     */
+    private static long rowTimeout(long timeout, long start) {
+        if (timeout <= 0) {
+            return timeout;
+        }
+        return Math.max(1L, timeout - NANOSECONDS.toMillis(nanoTime() - start));
+    }
+
+    /**
+     * Reader, which gave way to other upgrader, takes read lock again after it
+     */
+    private static void awaitUpgrade(LockEntry entry, boolean timed, long deadline) throws TimeoutException {
+        while (entry.isUpgrading()) {
+            if (timed && nanoTime() - deadline >= 0) {
+                throw new TimeoutException("Failed to acquire the lock in the specified time");
+            }
+            LockSupport.parkNanos(UPGRADE_PAUSE_NANOS);
+        }
+    }
+
+    /**
+     * Run function without lock and validate write, GLOBAL and WRITE range stamps afterwards
+     * @return OPTIMISTIC_READ_FAILED, if function conflicted with writer and must be repeated under read lock
+     */
+    private Object optimisticRead(LockEntry entry, E entity, Function<E, ?> function) {
+        long stamp = entry.tryOptimisticRead();
+        long globalStamp = globalLockResolver.tryOptimisticRead();
+        long rangeStamp = rangeLockResolver.tryOptimisticRead();
+        if (stamp == 0 || globalStamp == 0 || rangeStamp == 0) {
+            return OPTIMISTIC_READ_FAILED;
+        }
+        Object result;
+        try {
+            result = function.apply(entity);
+        } catch (RuntimeException e) {
+            //function could fail on inconsistent state
+            if (entry.validate(stamp) && globalLockResolver.validate(globalStamp)
+                && rangeLockResolver.validate(rangeStamp)) {
+                throw e;
+            }
+            return OPTIMISTIC_READ_FAILED;
+        }
+        if (entry.validate(stamp) && globalLockResolver.validate(globalStamp)
+                && rangeLockResolver.validate(rangeStamp)) {
+            return result;
+        }
+        return OPTIMISTIC_READ_FAILED;
+    }
+
+    private List<Object> partitionsOf(Collection<E> entities) {
+        var res = new ArrayList<Object>();
+        for (E entity : entities) {
+            var partition = PartitionLockResolver.partitionOf(entity);
+            if (partition != null && !res.contains(partition)) {
+                res.add(partition);
+            }
+        }
+        return res;
+    }
+
+    private ArrayList<ID> orderedIds(Collection<E> entities, Comparator<? super ID> order) {
+        var ids = new ArrayList<ID>(entities.size());
+        for (E entity : entities) {
+            ids.add(entity.getId());
+        }
+        ids.sort(order);
+        //the same id twice must be locked once
+        var res = new ArrayList<ID>(ids.size());
+        for (ID id : ids) {
+            if (res.isEmpty() || order.compare(res.get(res.size() - 1), id) != 0) {
+                res.add(id);
+            }
+        }
+        return res;
+    }
 
+    private HashedTimerWheel leaseWheel() {
+        return leaseWheel != null ? leaseWheel : HashedTimerWheel.shared();
+    }
 
+    /**
+     * Owners and waiters of locked ids for diagnosis of stalls on live system, whatever preventor is.
+     * Threads with the only lock and async functions are seen too, queued async waiters are counted.
+     * Locks of each thread are consistent, threads are copied one by one
+     */
+    public LockSnapshot<ID> snapshot() {
+        return locker.snapshot(locks.queuedWaiters());
+    }
 
+    int lockTableSize() {
+        return locks.size();
+    }
+
+    int partitionCount() {
+        return partitionLockResolver.size();
+    }
+
+    @FunctionalInterface
+    private interface TimedCall<R> {
+        R call(long timeout) throws TimeoutException;
+    }
 
 }
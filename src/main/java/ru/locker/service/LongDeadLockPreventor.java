@@ -0,0 +1,21 @@
+package ru.locker.service;
+
+/**
+ * Deadlock preventor for primitive ids, without boxing and lambdas on lock path
+ */
+public interface LongDeadLockPreventor {
+
+    /**
+     * Called before locking
+     * @return true, if current thread waits for lock while holding other locks
+     */
+    boolean beforeLock(long id);
+
+    /**
+     * Called after locking attempt
+     * @param waiting - result of beforeLock
+     */
+    void afterLock(long id, boolean waiting, boolean locked);
+
+    void afterUnlock(long id);
+}
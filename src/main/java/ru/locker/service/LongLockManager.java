@@ -0,0 +1,95 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockType;
+import ru.locker.domain.LongLockTable;
+import ru.locker.domain.LongLockable;
+
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Lock manager for primitive long ids.
+ * Lock table, held locks of thread and deadlock preventor work with long,
+ * so locking path doesn't box ids and doesn't allocate in steady state.
+ * OPTIMISTIC_READ is executed under read lock
+ *
+ * @param <E>
+ */
+@Slf4j
+public class LongLockManager<E extends LongLockable> {
+
+    private final LongLockTable locks = new LongLockTable();
+    private final LongDeadLockPreventor deadLockPreventor;
+    private final GlobalLockResolver globalLockResolver = new GlobalLockResolver();
+
+    public LongLockManager(LongDeadLockPreventor deadLockPreventor) {
+        this.deadLockPreventor = deadLockPreventor;
+    }
+
+    public <R> R execute(E entity, LockType lockType, Function<E, R> function) {
+        try {
+            return execute(entity, lockType, 0L, function);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param timeout - timeout in milliseconds, zero means without timeout
+     */
+    public <R> R execute(E entity, LockType lockType, long timeout, Function<E, R> function) throws TimeoutException {
+        if (lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock isn't supported for long ids");
+        }
+        long id = entity.getLongId();
+        var entry = locks.acquire(id);
+        try {
+            var lock = globalLockResolver.getLock(entry.getLock(), lockType);
+            if (!tryLock(id, lock, timeout)) {
+                throw new TimeoutException("Failed to acquire the lock in the specified time");
+            }
+            try {
+                globalLockResolver.checkForGlobalWaiting(lockType);
+                try {
+                    return function.apply(entity);
+                } finally {
+                    globalLockResolver.processGlobalUnlocking(lockType);
+                }
+            } finally {
+                deadLockPreventor.afterUnlock(id);
+                lock.unlock();
+            }
+        } finally {
+            locks.release(id);
+        }
+    }
+
+    private boolean tryLock(long id, Lock lock, long timeout) {
+        boolean waiting = deadLockPreventor.beforeLock(id);
+        boolean locked = false;
+        try {
+            if (timeout > 0) {
+                locked = lock.tryLock(timeout, MILLISECONDS);
+            } else {
+                lock.lockInterruptibly();
+                locked = true;
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while locking", e);
+            Thread.currentThread().interrupt();
+        } finally {
+            deadLockPreventor.afterLock(id, waiting, locked);
+        }
+        return locked;
+    }
+
+    int lockTableSize() {
+        return locks.size();
+    }
+}
@@ -0,0 +1,175 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LongLockTable;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.Arrays;
+
+/**
+ * Wait-for graph preventor for primitive ids, same algorithm as {@link WaitForGraphDeadLockPreventor}.
+ * Owners are kept in primitive lock table, held ids and wait edge in per-thread state,
+ * graph walk uses per-thread scratch arrays, so nothing is allocated in steady state
+ */
+@Slf4j
+public class LongWaitForGraphDeadLockPreventor implements LongDeadLockPreventor {
+
+    private final LongLockTable owners = new LongLockTable();
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+    @Override
+    public boolean beforeLock(long id) {
+        var state = threadState.get();
+        if (state.heldCount == 0 || state.holds(id)) {
+            return false;
+        }
+        state.waitingFor = id;
+        state.waiting = true;
+        if (closesCycle(id, state)) {
+            state.waiting = false;
+            log.warn("Possible deadlock");
+            throw new PossibleDeadLockException();
+        }
+        return true;
+    }
+
+    @Override
+    public void afterLock(long id, boolean waiting, boolean locked) {
+        var state = threadState.get();
+        if (waiting) {
+            state.waiting = false;
+        }
+        if (locked) {
+            owners.acquireOwner(id, state);
+            state.push(id);
+        }
+    }
+
+    @Override
+    public void afterUnlock(long id) {
+        var state = threadState.get();
+        owners.releaseOwner(id, state);
+        state.remove(id);
+    }
+
+    private boolean closesCycle(long start, ThreadState self) {
+        self.clearWalk();
+        self.walkTo(start);
+        try {
+            while (self.walkCount > 0) {
+                long id = self.walk[--self.walkCount];
+                if (owners.anyOwner(id, self)) {
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            self.clearWalk();
+        }
+    }
+
+    /**
+     * Held ids and wait edge of one thread, also visitor of owners during graph walk
+     */
+    private static class ThreadState implements LongLockTable.OwnerVisitor {
+        //guarded by owner thread
+        private long[] held = new long[8];
+        private int heldCount;
+        //wait edge, waitingFor is published before waiting flag
+        private volatile long waitingFor;
+        private volatile boolean waiting;
+        //scratch of graph walk: stack and open addressing set of visited ids
+        private long[] walk = new long[8];
+        private int walkCount;
+        private long[] visited = new long[16];
+        private boolean[] used = new boolean[16];
+        private int visitedCount;
+
+        boolean holds(long id) {
+            for (int i = 0; i < heldCount; i++) {
+                if (held[i] == id) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void push(long id) {
+            if (heldCount == held.length) {
+                held = Arrays.copyOf(held, heldCount * 2);
+            }
+            held[heldCount++] = id;
+        }
+
+        void remove(long id) {
+            //locks are usually released in reverse order
+            for (int i = heldCount - 1; i >= 0; i--) {
+                if (held[i] == id) {
+                    System.arraycopy(held, i + 1, held, i, heldCount - i - 1);
+                    heldCount--;
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean visit(Object owner) {
+            if (owner == this) {
+                return true;
+            }
+            var other = (ThreadState) owner;
+            if (other.waiting) {
+                walkTo(other.waitingFor);
+            }
+            return false;
+        }
+
+        private void walkTo(long id) {
+            if (!markVisited(id)) {
+                return;
+            }
+            if (walkCount == walk.length) {
+                walk = Arrays.copyOf(walk, walkCount * 2);
+            }
+            walk[walkCount++] = id;
+        }
+
+        private boolean markVisited(long id) {
+            if ((visitedCount + 1) * 2 > visited.length) {
+                growVisited();
+            }
+            int mask = visited.length - 1;
+            int i = Long.hashCode(id * 0x9E3779B97F4A7C15L) & mask;
+            for (; used[i]; i = (i + 1) & mask) {
+                if (visited[i] == id) {
+                    return false;
+                }
+            }
+            used[i] = true;
+            visited[i] = id;
+            visitedCount++;
+            return true;
+        }
+
+        private void growVisited() {
+            var oldVisited = visited;
+            var oldUsed = used;
+            visited = new long[oldVisited.length * 2];
+            used = new boolean[oldVisited.length * 2];
+            visitedCount = 0;
+            for (int i = 0; i < oldVisited.length; i++) {
+                if (oldUsed[i]) {
+                    markVisited(oldVisited[i]);
+                }
+            }
+        }
+
+        private void clearWalk() {
+            walkCount = 0;
+            if (visitedCount > 0) {
+                Arrays.fill(used, false);
+                visitedCount = 0;
+            }
+        }
+    }
+}
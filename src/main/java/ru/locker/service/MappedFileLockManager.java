@@ -0,0 +1,352 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+import ru.locker.domain.MappedLockTable;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * Lock manager, which coordinates processes of one host through {@link MappedLockTable}.
+ * Threads of the process are serialized by local lock of slot first, so only outermost writer
+ * and first reader of the process touch shared memory.
+ * Locks are striped: ids with the same slot share a lock. So ids of one slot can't be nested with upgrade:
+ * WRITE of id inside READ of other id of the same slot fails with {@link PossibleDeadLockException},
+ * though ids differ. Count of slots must be much larger than count of ids, which are held at once.
+ * Deadlock preventor sees slots of current process only, deadlocks between processes are broken by timeouts
+ *
+ * @param <E>
+ * @param <ID>
+ */
+@Slf4j
+@SuppressWarnings("java:S119")
+public class MappedFileLockManager<E extends Lockable<ID>, ID> implements LockManager<E, ID>, Closeable {
+
+    private final MappedLockTable table;
+    private final AtomicReferenceArray<LocalSlot> localSlots;
+    private final LockHelper<Integer> locker;
+    private final GlobalLockResolver globalLockResolver = new GlobalLockResolver();
+    private final Executor asyncExecutor;
+
+    /**
+     * @param file - lock file, shared by processes
+     * @param slots - count of slots, power of two, the same for all processes
+     * @param deadLockPreventor - preventor for nested locks of slots
+     */
+    public MappedFileLockManager(Path file, int slots, DeadLockPreventor<Integer> deadLockPreventor)
+            throws IOException {
+        this(file, slots, deadLockPreventor, null);
+    }
+
+    /**
+     * @param asyncExecutor - executor for async functions, common pool by default
+     */
+    public MappedFileLockManager(Path file, int slots, DeadLockPreventor<Integer> deadLockPreventor,
+                                 Executor asyncExecutor) throws IOException {
+        this.table = new MappedLockTable(file, slots);
+        this.localSlots = new AtomicReferenceArray<>(slots);
+        this.locker = new LockHelper<>(deadLockPreventor);
+        this.asyncExecutor = asyncExecutor != null ? asyncExecutor : ForkJoinPool.commonPool();
+    }
+
+    @Override
+    public <R> R execute(E entity, LockType lockType, Function<E, R> function) {
+        try {
+            return exec(entity, lockType, 0L, function);
+        } catch (TimeoutException e) {
+            //Impossible case
+            log.error("Unexpected exception:", e);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public <R> R execute(E entity, LockType lockType, Long timeout, Function<E, R> function) throws TimeoutException {
+        return exec(entity, lockType, timeout, function);
+    }
+
+    @Override
+    public <R> R executeCombining(E entity, Function<E, R> function) {
+        return execute(entity, LockType.WRITE, function);
+    }
+
+    /**
+     * Functions can't be passed to other process, so function is run as WRITE execute
+     */
+    @Override
+    public <R> R executeCombining(E entity, Long timeout, Function<E, R> function) throws TimeoutException {
+        return exec(entity, LockType.WRITE, timeout, function);
+    }
+
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Function<E, R> function) {
+        return executeAsync(entity, lockType, 0L, function);
+    }
+
+    /**
+     * Shared memory can't notify waiters, so async function waits for lock in executor thread
+     */
+    @Override
+    public <R> CompletableFuture<R> executeAsync(E entity, LockType lockType, Long timeout, Function<E, R> function) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return exec(entity, lockType, timeout, function);
+            } catch (TimeoutException e) {
+                throw new CompletionException(e);
+            }
+        }, asyncExecutor);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        return executeAll(entities, lockType, timeout, (Comparator<ID>) Comparator.naturalOrder(), function);
+    }
+
+    /**
+     * Slots are locked in ascending order, so order of ids doesn't matter here
+     */
+    @Override
+    public <R> R executeAll(Collection<E> entities, LockType lockType, Long timeout, Comparator<? super ID> order,
+                            Function<Collection<E>, R> function) throws TimeoutException {
+        if (lockType == LockType.GLOBAL) {
+            throw new IllegalArgumentException("GLOBAL lock doesn't depend on entities, use execute");
+        }
+        checkPartition(lockType);
+        var slots = orderedSlots(entities);
+        boolean timed = timeout > 0;
+        long deadline = nanoTime() + MILLISECONDS.toNanos(timeout);
+
+        var acquired = new ArrayList<Lock>(slots.size());
+        var shared = new ArrayList<LocalSlot>(slots.size());
+        boolean barrier = false;
+        try {
+            for (int slot : slots) {
+                var local = localSlot(slot);
+                checkUpgrade(local, lockType);
+                var lock = globalLockResolver.getLock(local.lock, lockType);
+                if (!locker.tryLockOrdered(timed, deadline - nanoTime(), lock)) {
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                acquired.add(lock);
+            }
+            globalLockResolver.checkForGlobalWaiting(lockType);
+            barrier = true;
+            for (int slot : slots) {
+                var local = localSlot(slot);
+                if (!lockShared(slot, local, lockType, timed, deadline)) {
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                shared.add(local);
+            }
+            return function.apply(entities);
+        } finally {
+            for (int i = shared.size() - 1; i >= 0; i--) {
+                unlockShared(slots.get(i), shared.get(i), lockType);
+            }
+            if (barrier) {
+                globalLockResolver.processGlobalUnlocking(lockType);
+            }
+            for (int i = acquired.size() - 1; i >= 0; i--) {
+                acquired.get(i).unlock();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        table.close();
+    }
+
+    private <R> R exec(E entity, LockType lockType, long timeout, Function<E, R> function) throws TimeoutException {
+        log.debug("Start executing for id {}", entity.getId());
+        checkPartition(lockType);
+        boolean timed = timeout > 0;
+        long deadline = nanoTime() + MILLISECONDS.toNanos(timeout);
+        int slot = table.slotOf(entity.getId());
+        var local = localSlot(slot);
+        checkUpgrade(local, lockType);
+        var lock = globalLockResolver.getLock(local.lock, lockType);
+        if (!locker.tryLock(timeout, lock, slot)) {
+            throw new TimeoutException("Failed to acquire the lock in the specified time");
+        }
+        try {
+            globalLockResolver.checkForGlobalWaiting(lockType);
+            try {
+                if (!lockShared(slot, local, lockType, timed, deadline)) {
+                    throw new TimeoutException("Failed to acquire the lock in the specified time");
+                }
+                try {
+                    return function.apply(entity);
+                } finally {
+                    unlockShared(slot, local, lockType);
+                }
+            } finally {
+                globalLockResolver.processGlobalUnlocking(lockType);
+            }
+        } finally {
+            locker.unlock(slot, lock);
+        }
+    }
+
+    /**
+     * Take shared memory lock, local lock of type is already held
+     */
+    private boolean lockShared(int slot, LocalSlot local, LockType lockType, boolean timed, long deadline) {
+        switch (lockType) {
+            case GLOBAL:
+                //nested GLOBAL is covered by outer one
+                return globalHoldCount(local) > 1 || table.lockGlobal(timed, deadline);
+            case WRITE:
+                return local.lock.getWriteHoldCount() > 1 || table.lockWrite(slot, timed, deadline);
+            case READ:
+            case OPTIMISTIC_READ:
+            default:
+                return lockSharedRead(slot, local, timed, deadline);
+        }
+    }
+
+    private boolean lockSharedRead(int slot, LocalSlot local, boolean timed, long deadline) {
+        if (local.lock.isWriteLockedByCurrentThread()) {
+            //read inside of own write
+            return true;
+        }
+        try {
+            if (!timed) {
+                local.transition.lockInterruptibly();
+            } else if (!local.transition.tryLock(deadline - nanoTime(), NANOSECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.info("Can't acquire lock", e);
+            return false;
+        }
+        try {
+            //first reader of process takes reader entry for all others
+            if (local.readers == 0) {
+                int entry = table.lockRead(slot, timed, deadline);
+                if (entry < 0) {
+                    return false;
+                }
+                local.readerEntry = entry;
+            }
+            local.readers++;
+            return true;
+        } finally {
+            local.transition.unlock();
+        }
+    }
+
+    private void unlockShared(int slot, LocalSlot local, LockType lockType) {
+        switch (lockType) {
+            case GLOBAL:
+                if (globalHoldCount(local) == 1) {
+                    table.unlockGlobal();
+                }
+                break;
+            case WRITE:
+                if (local.lock.getWriteHoldCount() == 1) {
+                    table.unlockWrite(slot);
+                }
+                break;
+            case READ:
+            case OPTIMISTIC_READ:
+            default:
+                if (local.lock.isWriteLockedByCurrentThread()) {
+                    break;
+                }
+                local.transition.lock();
+                try {
+                    if (--local.readers == 0) {
+                        table.unlockRead(slot, local.readerEntry);
+                    }
+                } finally {
+                    local.transition.unlock();
+                }
+        }
+    }
+
+    private int globalHoldCount(LocalSlot local) {
+        return ((ReentrantLock) globalLockResolver.getLock(local.lock, LockType.GLOBAL)).getHoldCount();
+    }
+
+    /**
+     * Read lock can't be upgraded, such thread would wait for itself. Slot is checked, not id,
+     * so other id of the same slot fails too
+     */
+    private void checkUpgrade(LocalSlot local, LockType lockType) {
+        if (lockType == LockType.WRITE && local.lock.getReadHoldCount() > 0
+                && !local.lock.isWriteLockedByCurrentThread()) {
+            log.warn("Possible deadlock: write lock inside of read lock of the same slot");
+            throw new PossibleDeadLockException();
+        }
+    }
+
+    /**
+     * Shared memory has no partition level
+     */
+    private static void checkPartition(LockType lockType) {
+        if (lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock isn't supported by shared memory locks");
+        }
+    }
+
+    private LocalSlot localSlot(int slot) {
+        var local = localSlots.get(slot);
+        if (local == null) {
+            localSlots.compareAndSet(slot, null, new LocalSlot());
+            local = localSlots.get(slot);
+        }
+        return local;
+    }
+
+    private ArrayList<Integer> orderedSlots(Collection<E> entities) {
+        var slots = new ArrayList<Integer>(entities.size());
+        for (E entity : entities) {
+            slots.add(table.slotOf(entity.getId()));
+        }
+        slots.sort(Comparator.naturalOrder());
+        //ids of one slot are locked once
+        var res = new ArrayList<Integer>(slots.size());
+        for (Integer slot : slots) {
+            if (res.isEmpty() || !res.get(res.size() - 1).equals(slot)) {
+                res.add(slot);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Process side of slot
+     */
+    private static class LocalSlot {
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        //guards readers of process, the first takes reader entry of shared slot
+        private final ReentrantLock transition = new ReentrantLock();
+        private int readers;
+        private int readerEntry;
+    }
+}
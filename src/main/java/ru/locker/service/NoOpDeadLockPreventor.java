@@ -0,0 +1,40 @@
+package ru.locker.service;
+
+/**
+ * Preventor without any checks, for callers with own locks ordering
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+public class NoOpDeadLockPreventor<ID> implements DeadLockPreventor<ID> {
+
+    @Override
+    public void registerLock(ID id) {
+        //nothing to do
+    }
+
+    @Override
+    public void lockAcquired(ID id) {
+        //nothing to do
+    }
+
+    @Override
+    public void lockFailed(ID id) {
+        //nothing to do
+    }
+
+    @Override
+    public void deregisterLock(ID id) {
+        //nothing to do
+    }
+
+    @Override
+    public void registerUpgrade(ID id) {
+        //nothing to do
+    }
+
+    @Override
+    public void upgradeFinished(ID id) {
+        //nothing to do
+    }
+}
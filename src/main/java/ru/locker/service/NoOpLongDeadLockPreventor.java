@@ -0,0 +1,19 @@
+package ru.locker.service;
+
+public class NoOpLongDeadLockPreventor implements LongDeadLockPreventor {
+
+    @Override
+    public boolean beforeLock(long id) {
+        return false;
+    }
+
+    @Override
+    public void afterLock(long id, boolean waiting, boolean locked) {
+        //nothing to do
+    }
+
+    @Override
+    public void afterUnlock(long id) {
+        //nothing to do
+    }
+}
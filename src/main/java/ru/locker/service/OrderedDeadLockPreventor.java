@@ -0,0 +1,117 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Lock preventor for callers with ordering discipline: every new id must be greater
+ * than the highest id, which current thread holds, otherwise lock is rejected at once.
+ * Held ids are strictly ascending stack of current thread, so check is one comparison with its top
+ * and there is no shared state. Id, which is held already, is counted re-entry, it can't close a cycle
+ *
+ * @param <ID>
+ */
+@Slf4j
+@SuppressWarnings("java:S119")
+public class OrderedDeadLockPreventor<ID> implements DeadLockPreventor<ID> {
+
+    private final Comparator<? super ID> order;
+    private final ThreadLocal<HeldIds> heldIds = ThreadLocal.withInitial(HeldIds::new);
+
+    /**
+     * Natural order, ids must be Comparable
+     */
+    @SuppressWarnings("unchecked")
+    public OrderedDeadLockPreventor() {
+        this((Comparator<? super ID>) Comparator.naturalOrder());
+    }
+
+    public OrderedDeadLockPreventor(Comparator<? super ID> order) {
+        this.order = order;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void registerLock(ID to) {
+        var held = heldIds.get();
+        if (held.size == 0 || order.compare(to, (ID) held.ids[held.size - 1]) > 0) {
+            held.push(to);
+            return;
+        }
+        //out of order, only re-entry is allowed
+        int index = held.indexOf(to);
+        if (index < 0) {
+            log.warn("Possible deadlock: id {} is out of order", to);
+            throw new PossibleDeadLockException();
+        }
+        held.holds[index]++;
+    }
+
+    @Override
+    public void lockAcquired(ID to) {
+        //registered before locking
+    }
+
+    @Override
+    public void lockFailed(ID to) {
+        deregisterLock(to);
+    }
+
+    @Override
+    public void deregisterLock(ID to) {
+        heldIds.get().remove(to);
+    }
+
+    @Override
+    public void registerUpgrade(ID to) {
+        //id is held already, order of locks isn't changed
+    }
+
+    @Override
+    public void upgradeFinished(ID to) {
+        //nothing to do
+    }
+
+    /**
+     * Ids of thread in ascending order with hold counts, so the highest one is on top
+     */
+    private static class HeldIds {
+        private Object[] ids = new Object[4];
+        private int[] holds = new int[4];
+        private int size;
+
+        void push(Object id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+                holds = Arrays.copyOf(holds, size * 2);
+            }
+            holds[size] = 1;
+            ids[size++] = id;
+        }
+
+        /**
+         * Locks are released in reverse order, so the last one is found at once
+         */
+        void remove(Object id) {
+            int i = indexOf(id);
+            if (i < 0 || --holds[i] > 0) {
+                return;
+            }
+            System.arraycopy(ids, i + 1, ids, i, size - i - 1);
+            System.arraycopy(holds, i + 1, holds, i, size - i - 1);
+            ids[--size] = null;
+        }
+
+        int indexOf(Object id) {
+            for (int i = size - 1; i >= 0; i--) {
+                if (ids[i].equals(id)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+import ru.locker.domain.PartitionedLockable;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BooleanSupplier;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Partition level of hierarchical locks.
+ * Row READ takes intention IS and row WRITE takes intention IX on partition of entity,
+ * PARTITION_READ is S and PARTITION_WRITE is X. Compatible: IS with IS, IX, S; IX with IS, IX; S with IS, S.
+ * Intentions are striped in-flight counters of partition, S and X publish themselves and wait
+ * for drain of conflicting intentions, as GLOBAL does for all rows.
+ * Rows of other partitions don't see S and X at all.
+ * Row path only reads map of partitions and striped intentions. Idle locks of partitions are swept
+ * by creation of new ones: sweeper retires idle lock, and user, which sees it retired, takes new lock.
+ * Range doesn't know partitions of its ids, so it is intention on all partitions: READ range is IS
+ * and WRITE range is IX. Ranges and S and X of all partitions are counted under one gate, both are rare
+ */
+@Slf4j
+public class PartitionLockResolver {
+
+    //idle partitions aren't swept before so many new ones
+    private static final int MIN_SWEEP = 64;
+
+    private final Map<Object, PartitionLock> partitions = new ConcurrentHashMap<>();
+    //new partitions since the last sweep
+    private final AtomicInteger creations = new AtomicInteger();
+    private final ReentrantLock gate = new ReentrantLock();
+    private final Condition gateReleased = gate.newCondition();
+    //guarded by gate
+    private int readRanges;
+    private int writeRanges;
+    private int sharedPartitions;
+    private int exclusivePartitions;
+    //S and X of current thread, range under them would wait for own partition
+    private final ThreadLocal<int[]> ownPartitions = ThreadLocal.withInitial(() -> new int[1]);
+
+    /**
+     * @return partition of entity, or null if entity isn't partitioned
+     */
+    public static Object partitionOf(Lockable<?> entity) {
+        return entity instanceof PartitionedLockable ? ((PartitionedLockable<?, ?>) entity).getPartition() : null;
+    }
+
+    /**
+     * Take intention of row lock, before row lock
+     * @return false on timeout
+     */
+    public boolean enterRow(Object partition, LockType lockType, boolean timed, long deadline) {
+        while (true) {
+            var lock = partition(partition);
+            if (lock.covers(lockType)) {
+                return true;
+            }
+            boolean write = lockType == LockType.WRITE;
+            var counter = write ? lock.intentWrites : lock.intentReads;
+            if (!lock.awaitNoConflict(write, timed, deadline)) {
+                return false;
+            }
+            counter.increment();
+            if (!lock.isRetired() && !lock.conflicts(write)) {
+                return true;
+            }
+            //S or X came between check and increment, give way to it, or lock is evicted, take new one
+            lock.exit(counter);
+            if (lock.isRetired()) {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    /**
+     * Non blocking version for async rows
+     * @return false, if conflicting partition lock is held or pending
+     */
+    public boolean tryEnterRow(Object partition, LockType lockType) {
+        boolean write = lockType == LockType.WRITE;
+        while (true) {
+            var lock = partition(partition);
+            if (lock.conflicts(write)) {
+                return false;
+            }
+            var counter = write ? lock.intentWrites : lock.intentReads;
+            counter.increment();
+            if (!lock.isRetired()) {
+                if (!lock.conflicts(write)) {
+                    return true;
+                }
+                lock.exit(counter);
+                return false;
+            }
+            lock.exit(counter);
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Intention keeps lock of partition in map, so it's found by plain get
+     */
+    public void exitRow(Object partition, LockType lockType) {
+        var lock = partitions.get(partition);
+        if (!lock.covers(lockType)) {
+            lock.exit(lockType == LockType.WRITE ? lock.intentWrites : lock.intentReads);
+        }
+    }
+
+    /**
+     * Take S or X lock of partition and wait for drain of conflicting row locks
+     * @return false on timeout
+     */
+    public boolean lockPartition(Object partition, LockType lockType, boolean timed, long deadline) {
+        boolean exclusive = lockType == LockType.PARTITION_WRITE;
+        //S waits for WRITE ranges, X for all ones
+        if (!enterGate(() -> writeRanges == 0 && (!exclusive || readRanges == 0),
+                () -> countPartition(exclusive, 1), timed, deadline)) {
+            return false;
+        }
+        var lock = use(partition);
+        boolean locked = false;
+        try {
+            locked = exclusive ? lock.lockExclusive(timed, deadline) : lock.lockShared(timed, deadline);
+            return locked;
+        } finally {
+            if (locked) {
+                ownPartitions.get()[0]++;
+            } else {
+                lock.users.decrementAndGet();
+                exitGate(() -> countPartition(exclusive, -1));
+            }
+        }
+    }
+
+    public void unlockPartition(Object partition, LockType lockType) {
+        var lock = partitions.get(partition);
+        boolean exclusive = lockType == LockType.PARTITION_WRITE;
+        try {
+            if (exclusive) {
+                lock.unlockExclusive();
+            } else {
+                lock.unlockShared();
+            }
+        } finally {
+            lock.users.decrementAndGet();
+            ownPartitions.get()[0]--;
+            exitGate(() -> countPartition(exclusive, -1));
+        }
+    }
+
+    /**
+     * Take intention of range on all partitions, before range lock
+     * @return false on timeout
+     * @throws PossibleDeadLockException, if current thread holds S or X, range would wait for it
+     */
+    public boolean enterRange(LockType lockType, boolean timed, long deadline) {
+        if (ownPartitions.get()[0] != 0) {
+            log.warn("Possible deadlock: range lock inside of partition lock");
+            throw new PossibleDeadLockException();
+        }
+        boolean write = lockType == LockType.WRITE;
+        //READ range waits for X, WRITE one for S too
+        return enterGate(() -> exclusivePartitions == 0 && (!write || sharedPartitions == 0),
+                () -> countRange(write, 1), timed, deadline);
+    }
+
+    public void exitRange(LockType lockType) {
+        exitGate(() -> countRange(lockType == LockType.WRITE, -1));
+    }
+
+    /**
+     * Run action after release of partition lock, which conflicts with row lock of this type,
+     * or now if there is no such lock
+     */
+    public void onPartitionRelease(Object partition, LockType lockType, Runnable action) {
+        //pending action keeps lock of partition
+        var lock = use(partition);
+        boolean write = lockType == LockType.WRITE;
+        Runnable resume = () -> {
+            lock.users.decrementAndGet();
+            action.run();
+        };
+        lock.releaseActions.add(resume);
+        if (!lock.conflicts(write) && lock.releaseActions.remove(resume)) {
+            resume.run();
+        }
+    }
+
+    private boolean enterGate(BooleanSupplier free, Runnable enter, boolean timed, long deadline) {
+        gate.lock();
+        try {
+            while (!free.getAsBoolean()) {
+                if (!timed) {
+                    gateReleased.awaitUninterruptibly();
+                } else if (gateReleased.awaitNanos(deadline - nanoTime()) <= 0 && !free.getAsBoolean()) {
+                    return false;
+                }
+            }
+            enter.run();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private void exitGate(Runnable exit) {
+        gate.lock();
+        try {
+            exit.run();
+            gateReleased.signalAll();
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    //guarded by gate
+    private void countPartition(boolean exclusive, int delta) {
+        if (exclusive) {
+            exclusivePartitions += delta;
+        } else {
+            sharedPartitions += delta;
+        }
+    }
+
+    //guarded by gate
+    private void countRange(boolean write, int delta) {
+        if (write) {
+            writeRanges += delta;
+        } else {
+            readRanges += delta;
+        }
+    }
+
+    /**
+     * Row path doesn't change map, lock is created only for new partition
+     */
+    private PartitionLock partition(Object partition) {
+        var lock = partitions.get(partition);
+        if (lock != null) {
+            return lock;
+        }
+        //sweep is amortized by new partitions, so idle ones are at most about as many as used ones
+        int count = creations.incrementAndGet();
+        if (count >= MIN_SWEEP && count * 2 >= partitions.size()) {
+            creations.set(0);
+            sweep();
+        }
+        var created = new PartitionLock();
+        lock = partitions.putIfAbsent(partition, created);
+        return lock != null ? lock : created;
+    }
+
+    /**
+     * Lock of partition for S, X or pending action, it isn't evicted while used
+     */
+    private PartitionLock use(Object partition) {
+        while (true) {
+            var lock = partition(partition);
+            lock.users.incrementAndGet();
+            if (!lock.isRetired()) {
+                return lock;
+            }
+            lock.users.decrementAndGet();
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Evict locks of partitions, which are neither held nor waited
+     */
+    private void sweep() {
+        partitions.forEach((partition, lock) -> {
+            if (lock.tryRetire()) {
+                partitions.remove(partition, lock);
+            }
+        });
+    }
+
+    /**
+     * @return count of partitions, which are held or waited, idle ones are evicted before count
+     */
+    int size() {
+        sweep();
+        return partitions.size();
+    }
+
+    private static class PartitionLock {
+        private static final AtomicIntegerFieldUpdater<PartitionLock> RETIRED =
+                AtomicIntegerFieldUpdater.newUpdater(PartitionLock.class, "retired");
+
+        //holders and waiters of S and X and pending actions, rows are counted by intentions
+        private final AtomicInteger users = new AtomicInteger();
+        //1 is set by the only sweeper, which checks the lock, it stays set, if lock is evicted
+        private volatile int retired;
+        //serializes S and X of partition
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final InFlightCounter intentReads = new InFlightCounter();
+        private final InFlightCounter intentWrites = new InFlightCounter();
+        //count of threads, which hold S
+        private final AtomicInteger shared = new AtomicInteger();
+        private volatile boolean exclusive;
+        //slow path, used only while S or X is held or pending
+        private final ReentrantLock barrierLock = new ReentrantLock();
+        private final Condition drained = barrierLock.newCondition();
+        private final Condition released = barrierLock.newCondition();
+        //async rows, which are resumed after release
+        private final Queue<Runnable> releaseActions = new ConcurrentLinkedQueue<>();
+
+        boolean conflicts(boolean write) {
+            return exclusive || write && shared.get() > 0;
+        }
+
+        /**
+         * Retired flag is published before check of users, user publishes itself before check of flag,
+         * so either sweeper sees user or user sees flag and takes new lock
+         * @return true, if lock isn't used and must be removed
+         */
+        boolean tryRetire() {
+            if (!RETIRED.compareAndSet(this, 0, 1)) {
+                return false;
+            }
+            if (users.get() == 0 && intentReads.isZero() && intentWrites.isZero() && releaseActions.isEmpty()) {
+                return true;
+            }
+            retired = 0;
+            return false;
+        }
+
+        boolean isRetired() {
+            return retired != 0;
+        }
+
+        /**
+         * Partition lock of current thread covers its row locks, except write under own S
+         */
+        boolean covers(LockType lockType) {
+            if (lock.isWriteLockedByCurrentThread()) {
+                return true;
+            }
+            if (lock.getReadHoldCount() > 0) {
+                if (lockType == LockType.WRITE) {
+                    //IX waits for own S
+                    throw new PossibleDeadLockException();
+                }
+                return true;
+            }
+            return false;
+        }
+
+        void exit(InFlightCounter counter) {
+            counter.decrement();
+            if (exclusive || shared.get() > 0) {
+                signal(drained);
+            }
+        }
+
+        boolean lockExclusive(boolean timed, long deadline) {
+            if (!tryLock(lock.writeLock(), timed, deadline)) {
+                return false;
+            }
+            if (lock.getWriteHoldCount() > 1) {
+                return true;
+            }
+            exclusive = true;
+            if (!await(drained, () -> intentReads.isZero() && intentWrites.isZero(), timed, deadline)) {
+                unlockExclusive();
+                return false;
+            }
+            return true;
+        }
+
+        void unlockExclusive() {
+            if (lock.getWriteHoldCount() == 1) {
+                exclusive = false;
+                wakeRows();
+            }
+            lock.writeLock().unlock();
+        }
+
+        boolean lockShared(boolean timed, long deadline) {
+            if (!tryLock(lock.readLock(), timed, deadline)) {
+                return false;
+            }
+            //nested S or S inside own X
+            if (lock.getReadHoldCount() > 1 || lock.isWriteLockedByCurrentThread()) {
+                return true;
+            }
+            shared.incrementAndGet();
+            if (!await(drained, intentWrites::isZero, timed, deadline)) {
+                unlockShared();
+                return false;
+            }
+            return true;
+        }
+
+        void unlockShared() {
+            if (lock.getReadHoldCount() == 1 && !lock.isWriteLockedByCurrentThread()
+                    && shared.decrementAndGet() == 0) {
+                wakeRows();
+            }
+            lock.readLock().unlock();
+        }
+
+        boolean awaitNoConflict(boolean write, boolean timed, long deadline) {
+            //double check locking
+            return !conflicts(write) || await(released, () -> !conflicts(write), timed, deadline);
+        }
+
+        private void wakeRows() {
+            signal(released);
+            Runnable action;
+            while ((action = releaseActions.poll()) != null) {
+                action.run();
+            }
+        }
+
+        private boolean await(Condition condition, BooleanSupplier done,
+                              boolean timed, long deadline) {
+            barrierLock.lock();
+            try {
+                while (!done.getAsBoolean()) {
+                    if (!timed) {
+                        condition.awaitUninterruptibly();
+                    } else if (condition.awaitNanos(deadline - nanoTime()) <= 0 && !done.getAsBoolean()) {
+                        return false;
+                    }
+                }
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                barrierLock.unlock();
+            }
+        }
+
+        private void signal(Condition condition) {
+            barrierLock.lock();
+            try {
+                condition.signalAll();
+            } finally {
+                barrierLock.unlock();
+            }
+        }
+
+        private static boolean tryLock(Lock lock, boolean timed, long deadline) {
+            if (!timed) {
+                lock.lock();
+                return true;
+            }
+            try {
+                return lock.tryLock(deadline - nanoTime(), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package ru.locker.service;
+
+import ru.locker.domain.LockType;
+import ru.locker.domain.Lockable;
+
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
+
+/**
+ * Lock manager, which can lock ranges of Comparable ids
+ */
+@SuppressWarnings("java:S119")
+public interface RangeLockManager<E extends Lockable<ID>, ID> extends LockManager<E, ID> {
+
+    /**
+     * Execute function with blocking on all ids from range, bounds are included.
+     * Range conflicts with overlapping ranges and with row locks of ids inside of it, disjoint ranges run in parallel.
+     * Range doesn't know partitions of its ids, so it conflicts with partition locks as intention on all partitions.
+     * Function can lock ids inside of range and nested ranges inside of it. Ranges are not visible for preventor,
+     * so ids outside of range are rejected with PossibleDeadLockException inside of function,
+     * and range mustn't be taken under other locks
+     * @param from - lower bound, ids must be Comparable
+     * @param to - upper bound
+     * @param lockType - type of lock, READ or WRITE
+     * @param function - function
+     */
+    <R> R executeRange(ID from, ID to, LockType lockType, Supplier<R> function);
+
+    /**
+     * Execute function with blocking on all ids from range, bounds are included
+     * @param from - lower bound, ids must be Comparable
+     * @param to - upper bound
+     * @param lockType - type of lock, READ or WRITE
+     * @param timeout - timeout in ms waiting for acquire range, zero is infinity wait
+     * @param function - function
+     */
+    <R> R executeRange(ID from, ID to, LockType lockType, Long timeout, Supplier<R> function)
+            throws TimeoutException;
+}
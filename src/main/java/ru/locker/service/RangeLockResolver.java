@@ -0,0 +1,626 @@
+package ru.locker.service;
+
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockTable;
+import ru.locker.domain.LockType;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Range locks over Comparable ids and their conflicts with row locks.
+ * Ranges and rows, which are points, are nodes of interval treap under one lock. Treap is augmented
+ * by max upper bound of subtree, so k overlapping nodes are found in O(log n + k), whatever width of range is.
+ * Node waits for conflicting granted nodes and for conflicting earlier waiting ones, so ranges aren't starved.
+ * Registered ranges are published in copy-on-write index sorted by lower bound. Row, which id isn't inside
+ * of any conflicting range, only counts its point in lock entry. New range collects entries with such points
+ * inside of its bounds once, later points see it, and waits for their drain, exiting point wakes only
+ * ranges over its id. Points conflict with ranges only, READ ones with WRITE ranges only,
+ * row locks order points between themselves.
+ * Point of thread, which holds other locks, waits only for granted ranges,
+ * so waiting range can't close a cycle with it.
+ * Thread, which holds range, can't lock rows outside of it, they could wait for thread waiting for its range.
+ * Range takes intention on all partitions before its node, as row takes intention before its point
+ */
+@Slf4j
+public class RangeLockResolver {
+
+    //point or range, which needs no lock: it is covered by range of current thread, or it is GLOBAL
+    private static final Object COVERED = new Object();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static final Comparator<Object> ORDER = (Comparator) Comparator.naturalOrder();
+
+    private final LockTable<?> locks;
+    private final PartitionLockResolver partitions;
+    private final Lock lock = new ReentrantLock();
+    //registered ranges, waiting and granted, changed under lock
+    private volatile RangeIndex ranges = RangeIndex.EMPTY;
+    //granted WRITE ranges and version of their grants, optimistic reads validate them
+    private volatile int writeRanges;
+    private volatile long writeVersion = 1L;
+    //guarded by lock
+    private Node root;
+    private long sequence;
+    private final ThreadLocal<List<Node>> ownRanges = ThreadLocal.withInitial(ArrayList::new);
+    //async rows, which are resumed after range release
+    private final Queue<Runnable> rangeReleaseActions = new ConcurrentLinkedQueue<>();
+
+    /**
+     * @param locks - table of row locks, their entries count points in flight
+     * @param partitions - partition locks, which conflict with ranges
+     */
+    public RangeLockResolver(LockTable<?> locks, PartitionLockResolver partitions) {
+        this.locks = locks;
+        this.partitions = partitions;
+    }
+
+    /**
+     * Take point of row, before row lock
+     * @param entry - acquired entry of id, it must be held until {@link #exitPoint}
+     * @param nested - current thread holds other locks
+     * @return token for {@link #exitPoint}, or null on timeout
+     * @throws PossibleDeadLockException on WRITE inside of own READ range or on row outside of own range
+     */
+    public Object enterPoint(Object id, LockEntry entry, LockType lockType, boolean nested, boolean timed,
+                             long deadline) {
+        if (lockType == LockType.GLOBAL) {
+            //GLOBAL waits for ranges by its barrier
+            return COVERED;
+        }
+        boolean exclusive = lockType == LockType.WRITE;
+        if (!ranges.isEmpty()) {
+            var own = ownRanges.get();
+            if (!own.isEmpty()) {
+                if (covered(own, id, id, exclusive)) {
+                    return COVERED;
+                }
+                log.warn("Possible deadlock: row lock outside of range of current thread");
+                throw new PossibleDeadLockException();
+            }
+        }
+        entry.enterPoint(exclusive);
+        if (!ranges.overlaps(id, exclusive)) {
+            return entry;
+        }
+        //range over id came between check and count, point goes to treap
+        releasePoint(id, entry, exclusive);
+        var node = new Node(id, id, exclusive, false);
+        lock.lock();
+        try {
+            register(node);
+            if (!await(node, nested, timed, deadline)) {
+                unregister(node);
+                return null;
+            }
+            return node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Non blocking version for async rows
+     * @return token for {@link #exitPoint}, or null, if conflicting range is held or waits
+     */
+    public Object tryEnterPoint(Object id, LockEntry entry, LockType lockType) {
+        boolean exclusive = lockType == LockType.WRITE;
+        entry.enterPoint(exclusive);
+        if (!ranges.overlaps(id, exclusive)) {
+            return entry;
+        }
+        releasePoint(id, entry, exclusive);
+        var node = new Node(id, id, exclusive, false);
+        lock.lock();
+        try {
+            register(node);
+            if (blocked(root, node, false)) {
+                //nobody has seen node yet
+                root = remove(root, node);
+                return null;
+            }
+            node.granted = true;
+            return node;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param lockType - type of point, as it was entered
+     */
+    public void exitPoint(Object id, Object token, LockType lockType) {
+        if (token instanceof LockEntry) {
+            releasePoint(id, (LockEntry) token, lockType == LockType.WRITE);
+        } else if (token != COVERED) {
+            lock.lock();
+            try {
+                unregister((Node) token);
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Run action after release of some range, or now if there are no ranges
+     */
+    public void onRangeRelease(Runnable action) {
+        rangeReleaseActions.add(action);
+        if (ranges.isEmpty() && rangeReleaseActions.remove(action)) {
+            action.run();
+        }
+    }
+
+    /**
+     * Lock range, bounds are included. Range inside of own range is covered by it
+     * @param holdsRows - current thread holds row locks
+     * @return token for {@link #unlockRange}, or null on timeout
+     * @throws PossibleDeadLockException, if range isn't covered by own range and thread holds other locks
+     */
+    public Object lockRange(Object from, Object to, LockType lockType, boolean holdsRows, boolean timed,
+                            long deadline) {
+        if (lockType == LockType.GLOBAL || lockType.isPartition()) {
+            throw new IllegalArgumentException(lockType + " lock isn't supported by ranges");
+        }
+        if (ORDER.compare(from, to) > 0) {
+            throw new IllegalArgumentException("Lower bound " + from + " is greater than upper bound " + to);
+        }
+        boolean exclusive = lockType == LockType.WRITE;
+        var own = ownRanges.get();
+        if (covered(own, from, to, exclusive)) {
+            return COVERED;
+        }
+        if (holdsRows || !own.isEmpty()) {
+            //range isn't ordered with locks of thread
+            log.warn("Possible deadlock: range lock inside of other lock");
+            throw new PossibleDeadLockException();
+        }
+        if (!partitions.enterRange(lockType, timed, deadline)) {
+            return null;
+        }
+        var node = new Node(from, to, exclusive, true);
+        lock.lock();
+        try {
+            register(node);
+            ranges = ranges.added(node);
+        } finally {
+            lock.unlock();
+        }
+        boolean granted = false;
+        try {
+            //points are drained without lock, they don't take it on exit
+            granted = awaitDrain(node, timed, deadline) && grant(node, timed, deadline);
+        } finally {
+            if (!granted) {
+                remove(node, false);
+            }
+        }
+        if (!granted) {
+            return null;
+        }
+        own.add(node);
+        return node;
+    }
+
+    public void unlockRange(Object token) {
+        if (token == COVERED) {
+            return;
+        }
+        var node = (Node) token;
+        ownRanges.get().remove(node);
+        remove(node, true);
+    }
+
+    /**
+     * @return true, if current thread holds range, which isn't covered by other one
+     */
+    public boolean holdsRanges() {
+        return !ownRanges.get().isEmpty();
+    }
+
+    /**
+     * @return zero, if WRITE range is held
+     */
+    public long tryOptimisticRead() {
+        return writeRanges == 0 ? writeVersion : 0L;
+    }
+
+    public boolean validate(long stamp) {
+        return writeVersion == stamp && writeRanges == 0;
+    }
+
+    /**
+     * @throws PossibleDeadLockException, if own range overlaps, but doesn't cover, or it is READ for WRITE
+     */
+    private static boolean covered(List<Node> own, Object from, Object to, boolean exclusive) {
+        for (Node range : own) {
+            if (ORDER.compare(range.from, to) > 0 || ORDER.compare(range.to, from) < 0) {
+                continue;
+            }
+            if (ORDER.compare(range.from, from) <= 0 && ORDER.compare(range.to, to) >= 0
+                    && (range.exclusive || !exclusive)) {
+                return true;
+            }
+            log.warn("Possible deadlock: lock overlaps range of current thread");
+            throw new PossibleDeadLockException();
+        }
+        return false;
+    }
+
+    /**
+     * Range, which drains points of id, is woken
+     */
+    private void releasePoint(Object id, LockEntry entry, boolean exclusive) {
+        entry.exitPoint(exclusive);
+        ranges.wakeDrains(id, exclusive);
+    }
+
+    /**
+     * Wait for points, which were counted before range was published. Later points see range, so entries
+     * are collected once, and drained ones are dropped. Entry, which is pooled and reused meanwhile,
+     * only delays range
+     */
+    @SneakyThrows
+    private boolean awaitDrain(Node node, boolean timed, long deadline) {
+        node.drainer = Thread.currentThread();
+        try {
+            var entries = locks.pointsOf(id -> ORDER.compare(id, node.from) >= 0 && ORDER.compare(id, node.to) <= 0,
+                    node.exclusive);
+            while (true) {
+                entries.removeIf(entry -> !entry.hasPoints(node.exclusive));
+                if (entries.isEmpty()) {
+                    return true;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                if (!timed) {
+                    LockSupport.park(this);
+                } else {
+                    long rest = deadline - nanoTime();
+                    if (rest <= 0) {
+                        return false;
+                    }
+                    LockSupport.parkNanos(this, rest);
+                }
+            }
+        } finally {
+            node.drainer = null;
+        }
+    }
+
+    /**
+     * Async rows, which wait for range, are resumed, even if it wasn't granted
+     */
+    private void remove(Node node, boolean granted) {
+        lock.lock();
+        try {
+            unregister(node);
+            ranges = ranges.removed(node);
+            if (granted && node.exclusive) {
+                writeRanges--;
+            }
+        } finally {
+            lock.unlock();
+        }
+        partitions.exitRange(node.exclusive ? LockType.WRITE : LockType.READ);
+        Runnable action;
+        while ((action = rangeReleaseActions.poll()) != null) {
+            action.run();
+        }
+    }
+
+    private boolean grant(Node node, boolean timed, long deadline) {
+        lock.lock();
+        try {
+            if (!await(node, false, timed, deadline)) {
+                return false;
+            }
+            if (node.exclusive) {
+                writeRanges++;
+                writeVersion++;
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param barging - node waits only for granted nodes
+     */
+    @SneakyThrows
+    private boolean await(Node node, boolean barging, boolean timed, long deadline) {
+        while (blocked(root, node, barging)) {
+            if (node.waiting == null) {
+                node.waiting = lock.newCondition();
+            }
+            if (!timed) {
+                node.waiting.await();
+            } else if (node.waiting.awaitNanos(deadline - nanoTime()) <= 0 && blocked(root, node, barging)) {
+                return false;
+            }
+        }
+        node.granted = true;
+        return true;
+    }
+
+    private void register(Node node) {
+        node.seq = ++sequence;
+        root = insert(root, node);
+    }
+
+    /**
+     * Remove node and wake overlapping waiters, they could wait for it
+     */
+    private void unregister(Node node) {
+        root = remove(root, node);
+        signal(root, node.from, node.to);
+    }
+
+    private static boolean blocked(Node n, Node node, boolean barging) {
+        if (n == null || ORDER.compare(n.maxTo, node.from) < 0) {
+            return false;
+        }
+        if (blocked(n.left, node, barging)) {
+            return true;
+        }
+        if (ORDER.compare(n.from, node.to) > 0) {
+            return false;
+        }
+        if (ORDER.compare(n.to, node.from) >= 0 && conflicts(n, node, barging)) {
+            return true;
+        }
+        return blocked(n.right, node, barging);
+    }
+
+    private static boolean conflicts(Node other, Node node, boolean barging) {
+        return other != node && (other.range || node.range) && (other.exclusive || node.exclusive)
+                && (other.granted || !barging && other.seq < node.seq);
+    }
+
+    private static void signal(Node n, Object from, Object to) {
+        if (n == null || ORDER.compare(n.maxTo, from) < 0) {
+            return;
+        }
+        signal(n.left, from, to);
+        if (ORDER.compare(n.from, to) > 0) {
+            return;
+        }
+        if (ORDER.compare(n.to, from) >= 0 && n.waiting != null && !n.granted) {
+            n.waiting.signal();
+        }
+        signal(n.right, from, to);
+    }
+
+    //treap by lower bound and sequence
+
+    private static Node insert(Node n, Node node) {
+        if (n == null) {
+            return node;
+        }
+        if (compareKeys(node, n) < 0) {
+            n.left = insert(n.left, node);
+            if (n.left.priority > n.priority) {
+                n = rotateRight(n);
+            }
+        } else {
+            n.right = insert(n.right, node);
+            if (n.right.priority > n.priority) {
+                n = rotateLeft(n);
+            }
+        }
+        update(n);
+        return n;
+    }
+
+    private static Node remove(Node n, Node node) {
+        if (n == null) {
+            return null;
+        }
+        if (n == node) {
+            return merge(n.left, n.right);
+        }
+        if (compareKeys(node, n) < 0) {
+            n.left = remove(n.left, node);
+        } else {
+            n.right = remove(n.right, node);
+        }
+        update(n);
+        return n;
+    }
+
+    private static Node merge(Node left, Node right) {
+        if (left == null) {
+            return right;
+        }
+        if (right == null) {
+            return left;
+        }
+        if (left.priority > right.priority) {
+            left.right = merge(left.right, right);
+            update(left);
+            return left;
+        }
+        right.left = merge(left, right.left);
+        update(right);
+        return right;
+    }
+
+    private static Node rotateRight(Node n) {
+        var left = n.left;
+        n.left = left.right;
+        left.right = n;
+        update(n);
+        update(left);
+        return left;
+    }
+
+    private static Node rotateLeft(Node n) {
+        var right = n.right;
+        n.right = right.left;
+        right.left = n;
+        update(n);
+        update(right);
+        return right;
+    }
+
+    private static void update(Node n) {
+        var max = n.to;
+        if (n.left != null && ORDER.compare(n.left.maxTo, max) > 0) {
+            max = n.left.maxTo;
+        }
+        if (n.right != null && ORDER.compare(n.right.maxTo, max) > 0) {
+            max = n.right.maxTo;
+        }
+        n.maxTo = max;
+    }
+
+    private static int compareKeys(Node first, Node second) {
+        int res = ORDER.compare(first.from, second.from);
+        return res != 0 ? res : Long.compare(first.seq, second.seq);
+    }
+
+    /**
+     * Range or point, fields are guarded by lock
+     */
+    private static final class Node {
+        private final Object from;
+        private final Object to;
+        private final boolean exclusive;
+        private final boolean range;
+        private final int priority = ThreadLocalRandom.current().nextInt();
+        private long seq;
+        //max upper bound of subtree
+        private Object maxTo;
+        private Node left;
+        private Node right;
+        private boolean granted;
+        //created by first wait
+        private Condition waiting;
+        //thread of range, while it drains points
+        private volatile Thread drainer;
+
+        private Node(Object from, Object to, boolean exclusive, boolean range) {
+            this.from = from;
+            this.to = to;
+            this.exclusive = exclusive;
+            this.range = range;
+            this.maxTo = to;
+        }
+    }
+
+    /**
+     * Copy-on-write snapshot of ranges sorted by lower bound with prefix max of upper bounds,
+     * so point finds overlapping range by binary search and walk back, while prefix max reaches it
+     */
+    private static final class RangeIndex {
+        private static final RangeIndex EMPTY = new RangeIndex(new Node[0]);
+
+        private final Node[] nodes;
+        //max upper bound of nodes up to i, of all ones and of WRITE ones, null before the first WRITE
+        private final Object[] maxTo;
+        private final Object[] maxWriteTo;
+
+        private RangeIndex(Node[] nodes) {
+            this.nodes = nodes;
+            this.maxTo = new Object[nodes.length];
+            this.maxWriteTo = new Object[nodes.length];
+            Object max = null;
+            Object maxWrite = null;
+            for (int i = 0; i < nodes.length; i++) {
+                max = max(max, nodes[i].to);
+                if (nodes[i].exclusive) {
+                    maxWrite = max(maxWrite, nodes[i].to);
+                }
+                maxTo[i] = max;
+                maxWriteTo[i] = maxWrite;
+            }
+        }
+
+        boolean isEmpty() {
+            return nodes.length == 0;
+        }
+
+        RangeIndex added(Node node) {
+            int at = lastFrom(node.from) + 1;
+            var res = new Node[nodes.length + 1];
+            System.arraycopy(nodes, 0, res, 0, at);
+            res[at] = node;
+            System.arraycopy(nodes, at, res, at + 1, nodes.length - at);
+            return new RangeIndex(res);
+        }
+
+        RangeIndex removed(Node node) {
+            if (nodes.length == 1) {
+                return EMPTY;
+            }
+            var res = new Node[nodes.length - 1];
+            for (int i = 0, j = 0; i < nodes.length; i++) {
+                if (nodes[i] != node) {
+                    res[j++] = nodes[i];
+                }
+            }
+            return new RangeIndex(res);
+        }
+
+        /**
+         * @param exclusive - point is WRITE, it conflicts with READ ranges too
+         */
+        boolean overlaps(Object id, boolean exclusive) {
+            int last = lastFrom(id);
+            return last >= 0 && reaches((exclusive ? maxTo : maxWriteTo)[last], id);
+        }
+
+        /**
+         * Unpark ranges over id, which conflict with point and drain points
+         */
+        void wakeDrains(Object id, boolean exclusive) {
+            var max = exclusive ? maxTo : maxWriteTo;
+            for (int i = lastFrom(id); i >= 0 && reaches(max[i], id); i--) {
+                var node = nodes[i];
+                var drainer = node.drainer;
+                if (drainer != null && (exclusive || node.exclusive) && ORDER.compare(node.to, id) >= 0) {
+                    LockSupport.unpark(drainer);
+                }
+            }
+        }
+
+        //index of the last node, which lower bound isn't greater than id, or -1
+        private int lastFrom(Object id) {
+            int low = 0;
+            int high = nodes.length - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (ORDER.compare(nodes[mid].from, id) <= 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return high;
+        }
+
+        private static boolean reaches(Object max, Object id) {
+            return max != null && ORDER.compare(max, id) >= 0;
+        }
+
+        private static Object max(Object max, Object to) {
+            return max == null || ORDER.compare(to, max) > 0 ? to : max;
+        }
+    }
+}
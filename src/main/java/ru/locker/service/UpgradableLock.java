@@ -0,0 +1,29 @@
+package ru.locker.service;
+
+/**
+ * Lock of entity, given to function of {@link LockManager#executeUpgradable}.
+ * Function starts under read lock and can upgrade it to write and downgrade back
+ */
+public interface UpgradableLock {
+
+    /**
+     * Upgrade read lock to write, nothing if write is held already.
+     * If other reader of the id is upgrading, or a writer gets the lock between read and write,
+     * function is run again from the beginning under read lock
+     */
+    void upgrade();
+
+    /**
+     * Upgrade read lock to write without waiting for other upgrader
+     * @return false, if other reader of the id is upgrading, read lock is still held.
+     * Function is still run again, if a writer gets the lock between read and write
+     */
+    boolean tryUpgrade();
+
+    /**
+     * Downgrade write lock to read atomically, so no writer can come between them
+     */
+    void downgrade();
+
+    boolean isWriteLocked();
+}
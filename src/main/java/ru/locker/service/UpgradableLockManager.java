@@ -0,0 +1,31 @@
+package ru.locker.service;
+
+import ru.locker.domain.Lockable;
+
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
+
+/**
+ * Lock manager, which can upgrade read lock of function to write and downgrade it back
+ */
+@SuppressWarnings("java:S119")
+public interface UpgradableLockManager<E extends Lockable<ID>, ID> extends LockManager<E, ID> {
+
+    /**
+     * Execute function under read lock on entity.id, function can upgrade it to write and downgrade back.
+     * Function is run again on conflicting upgrade, so it must be side effect free before upgrade
+     * @param entity - entity to block
+     * @param function - function
+     */
+    <R> R executeUpgradable(E entity, BiFunction<E, UpgradableLock, R> function);
+
+    /**
+     * Execute function under read lock on entity.id, function can upgrade it to write and downgrade back.
+     * Function is run again on conflicting upgrade, so it must be side effect free before upgrade
+     * @param entity - entity to block
+     * @param timeout - timeout in ms waiting for acquire read and write lock, zero is infinity wait
+     * @param function - function
+     */
+    <R> R executeUpgradable(E entity, Long timeout, BiFunction<E, UpgradableLock, R> function)
+            throws TimeoutException;
+}
@@ -0,0 +1,175 @@
+package ru.locker.service;
+
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockType;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+import static java.lang.System.nanoTime;
+
+/**
+ * Upgradable lock of one function call.
+ * Java read lock can't become write in place, so upgrader releases read and waits for write.
+ * Only one reader of entry upgrades at a time, others give way to it by running function again.
+ * Version of entry is taken under read lock and validated under write,
+ * so writer, which came between them, is detected and function is run again.
+ * Row lock stays counted by GLOBAL barrier and registered in preventor during upgrade
+ *
+ * @param <ID>
+ */
+@SuppressWarnings("java:S119")
+class Upgrade<ID> implements UpgradableLock {
+
+    private final LockHelper<ID> locker;
+    private final LockEntry entry;
+    private final ID id;
+    private final boolean timed;
+    private final long deadline;
+    //null, if lock is lost by upgrade timeout
+    private LockType held;
+    private long stamp;
+    //re-entry into outer lock of current thread, outer lock can't be changed
+    private final boolean nested;
+
+    Upgrade(LockHelper<ID> locker, LockEntry entry, ID id, boolean timed, long deadline) {
+        this.locker = locker;
+        this.entry = entry;
+        this.id = id;
+        this.timed = timed;
+        this.deadline = deadline;
+        this.held = LockType.READ;
+        this.stamp = entry.tryOptimisticRead();
+        this.nested = false;
+    }
+
+    /**
+     * Handle of re-entry, thread holds the id by outer lock of type held
+     */
+    Upgrade(LockHelper<ID> locker, ID id, LockType held) {
+        this.locker = locker;
+        this.entry = null;
+        this.id = id;
+        this.timed = false;
+        this.deadline = 0L;
+        this.held = held;
+        this.nested = true;
+    }
+
+    @Override
+    public void upgrade() {
+        if (!tryUpgrade()) {
+            throw new Retry(this, false);
+        }
+    }
+
+    @Override
+    public boolean tryUpgrade() {
+        if (held == LockType.WRITE) {
+            return true;
+        }
+        if (nested) {
+            //write inside of own outer read throws PossibleDeadLockException
+            locker.tryReenter(id, LockType.WRITE);
+            return true;
+        }
+        if (!entry.tryBeginUpgrade()) {
+            return false;
+        }
+        try {
+            locker.registerUpgrade(id);
+            try {
+                var lock = entry.getLock();
+                lock.readLock().unlock();
+                held = null;
+                if (!lockWrite(lock.writeLock())) {
+                    throw new Retry(this, true);
+                }
+                held = LockType.WRITE;
+            } finally {
+                locker.upgradeFinished(id);
+            }
+        } finally {
+            entry.endUpgrade();
+        }
+        locker.changeLockType(id, LockType.WRITE);
+        //own write stamp invalidates version, so it's checked before
+        boolean valid = entry.validate(stamp);
+        entry.beginWrite();
+        if (!valid) {
+            //writer came between read and write, function has seen stale state
+            throw new Retry(this, false);
+        }
+        return true;
+    }
+
+    @Override
+    public void downgrade() {
+        if (held != LockType.WRITE || nested) {
+            return;
+        }
+        var lock = entry.getLock();
+        //read inside of own write doesn't wait
+        lock.readLock().lock();
+        entry.endWrite();
+        lock.writeLock().unlock();
+        held = LockType.READ;
+        locker.changeLockType(id, LockType.READ);
+        stamp = entry.tryOptimisticRead();
+    }
+
+    @Override
+    public boolean isWriteLocked() {
+        return held == LockType.WRITE;
+    }
+
+    LockType getHeld() {
+        return held;
+    }
+
+    /**
+     * @return lock to unlock, or null if lock is lost
+     */
+    Lock release() {
+        if (held == LockType.WRITE) {
+            entry.endWrite();
+            return entry.getLock().writeLock();
+        }
+        return held == LockType.READ ? entry.getLock().readLock() : null;
+    }
+
+    private boolean lockWrite(Lock lock) {
+        if (!timed) {
+            lock.lock();
+            return true;
+        }
+        try {
+            return lock.tryLock(deadline - nanoTime(), TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Function must be run again, it's control flow, so there is no stack trace
+     */
+    static final class Retry extends RuntimeException {
+        private final transient Upgrade<?> upgrade;
+        private final boolean timeout;
+
+        Retry(Upgrade<?> upgrade, boolean timeout) {
+            super("Upgrade of lock failed", null, false, false);
+            this.upgrade = upgrade;
+            this.timeout = timeout;
+        }
+
+        boolean isOf(Upgrade<?> other) {
+            return upgrade == other;
+        }
+
+        boolean isTimeout() {
+            return timeout;
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static java.lang.Thread.currentThread;
+
+/**
+ * Lock preventor, based on wait-for graph: id -> owner threads -> ids they wait for.
+ * Thread, which holds locks, publishes id it waits for and walks the graph,
+ * if walk comes back to current thread, cycle of any length is found.
+ * Thread without locks can't close a cycle, so it doesn't touch wait edges at all.
+ * Lock type isn't known here, so readers are treated as owners too
+ *
+ * @param <ID>
+ */
+@Slf4j
+@SuppressWarnings("java:S119")
+public class WaitForGraphDeadLockPreventor<ID> implements DeadLockPreventor<ID> {
+
+    //id -> owner threads with hold count
+    private final Map<ID, Map<Thread, Integer>> owners = new ConcurrentHashMap<>();
+    //thread -> id, which it waits for
+    private final Map<Thread, ID> waitsFor = new ConcurrentHashMap<>();
+    //locks, held by current thread, and its wait edge
+    private final ThreadLocal<ThreadState> threadState = ThreadLocal.withInitial(ThreadState::new);
+
+    @Override
+    public void registerLock(ID to) {
+        var current = currentThread();
+        var state = threadState.get();
+        state.waiting = state.held > 0 && !isOwner(to, current);
+        if (state.waiting) {
+            waitsFor.put(current, to);
+            if (closesCycle(to, current, false)) {
+                waitsFor.remove(current);
+                state.waiting = false;
+                log.warn("Possible deadlock");
+                throw new PossibleDeadLockException();
+            }
+        }
+    }
+
+    @Override
+    public void lockAcquired(ID to) {
+        var state = threadState.get();
+        stopWaiting(state);
+        addOwner(to, currentThread());
+        state.held++;
+    }
+
+    @Override
+    public void lockFailed(ID to) {
+        stopWaiting(threadState.get());
+    }
+
+    @Override
+    public void deregisterLock(ID to) {
+        removeOwner(to, currentThread());
+        threadState.get().held--;
+    }
+
+    /**
+     * Upgrader waits for other owners of its id, so it is owner and waiter at once
+     */
+    @Override
+    public void registerUpgrade(ID to) {
+        var current = currentThread();
+        var state = threadState.get();
+        waitsFor.put(current, to);
+        state.waiting = true;
+        if (closesCycle(to, current, true)) {
+            stopWaiting(state);
+            log.warn("Possible deadlock on upgrade");
+            throw new PossibleDeadLockException();
+        }
+    }
+
+    @Override
+    public void upgradeFinished(ID to) {
+        stopWaiting(threadState.get());
+    }
+
+    private void stopWaiting(ThreadState state) {
+        if (state.waiting) {
+            waitsFor.remove(currentThread());
+            state.waiting = false;
+        }
+    }
+
+    private boolean isOwner(ID id, Thread thread) {
+        var threads = owners.get(id);
+        return threads != null && threads.containsKey(thread);
+    }
+
+    /**
+     * @param upgrade - current thread owns id itself, only other owners are waited for
+     */
+    private boolean closesCycle(ID to, Thread current, boolean upgrade) {
+        var path = new ArrayDeque<ID>();
+        var visited = new HashSet<ID>();
+        path.push(to);
+        while (!path.isEmpty()) {
+            var id = path.pop();
+            var threads = owners.get(id);
+            if (threads == null || !visited.add(id)) {
+                continue;
+            }
+            for (Thread owner : threads.keySet()) {
+                if (owner == current && upgrade && id.equals(to)) {
+                    continue;
+                }
+                if (owner == current) {
+                    return true;
+                }
+                var next = waitsFor.get(owner);
+                if (next != null) {
+                    path.push(next);
+                }
+            }
+        }
+        return false;
+    }
+
+    private void addOwner(ID to, Thread current) {
+        owners.compute(to, (id, threads) -> {
+            var res = threads == null ? new ConcurrentHashMap<Thread, Integer>() : threads;
+            res.merge(current, 1, Integer::sum);
+            return res;
+        });
+    }
+
+    private void removeOwner(ID to, Thread current) {
+        owners.computeIfPresent(to, (id, threads) -> {
+            threads.computeIfPresent(current, (thread, count) -> count == 1 ? null : count - 1);
+            return threads.isEmpty() ? null : threads;
+        });
+    }
+
+    private static class ThreadState {
+        private int held;
+        private boolean waiting;
+    }
+}
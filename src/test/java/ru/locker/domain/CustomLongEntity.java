@@ -0,0 +1,15 @@
+package ru.locker.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Setter
+@Getter
+@AllArgsConstructor
+public class CustomLongEntity implements LongLockable {
+
+    private long longId;
+    private Integer payload;
+
+}
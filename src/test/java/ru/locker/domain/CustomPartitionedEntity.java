@@ -0,0 +1,16 @@
+package ru.locker.domain;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.Setter;
+
+@Setter
+@Getter
+@AllArgsConstructor
+public class CustomPartitionedEntity implements PartitionedLockable<Integer, String> {
+
+    private Integer id;
+    private String partition;
+    private Integer payload;
+
+}
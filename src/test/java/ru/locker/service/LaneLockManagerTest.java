@@ -0,0 +1,217 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import ru.locker.domain.CustomEntity;
+import ru.locker.domain.LockType;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.junit.Assert.*;
+
+@Slf4j
+public class LaneLockManagerTest {
+
+    private LaneLockManager<CustomEntity, Integer> lockService;
+
+    @Before
+    public void setUp() {
+        lockService = new LaneLockManager<>(4);
+    }
+
+    @After
+    public void tearDown() {
+        lockService.close();
+    }
+
+    @Test
+    public void testWritesOfIdAreSerial() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var writers = new AtomicInteger();
+        int tasksCount = 20000;
+        var tasks = new ArrayList<Future<?>>();
+        ExecutorService executor = newFixedThreadPool(16);
+        for (int i = 0; i < tasksCount; i++) {
+            var lockType = i % 4 == 1 ? LockType.READ : LockType.WRITE;
+            tasks.add(executor.submit(() -> lockService.execute(customEntity, lockType, e -> {
+                if (lockType == LockType.READ) {
+                    assertEquals(0, writers.get());
+                    return e;
+                }
+                assertEquals(1, writers.incrementAndGet());
+                e.setPayload(e.getPayload() + 1);
+                writers.decrementAndGet();
+                return e;
+            })));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(15000, customEntity.getPayload().intValue());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testQueuedWriteExpires() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var owner = lockService.executeAsync(customEntity, LockType.WRITE, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        });
+        locked.await();
+        //write and reader behind it wait for busy lane
+        try {
+            lockService.execute(customEntity, LockType.WRITE, 100L, this::increment);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //expected
+        }
+        try {
+            lockService.execute(customEntity, LockType.READ, 100L, Function.identity());
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //expected
+        }
+        //GLOBAL can't stop busy lane
+        try {
+            lockService.execute(customEntity, LockType.GLOBAL, 100L, this::increment);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //expected
+        }
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+        assertEquals(0, lockService.execute(customEntity, LockType.READ, 100L, CustomEntity::getPayload).intValue());
+        assertEquals(1, lockService.execute(customEntity, LockType.GLOBAL, 100L, this::increment).getPayload().intValue());
+    }
+
+    @Test
+    public void testGlobalAndBatchStopLanes() throws Exception {
+        var entities = new ArrayList<CustomEntity>();
+        for (int i = 0; i < 8; i++) {
+            entities.add(new CustomEntity(i, 0));
+        }
+        var running = new AtomicInteger();
+        int tasksCount = 4000;
+        var tasks = new ArrayList<Future<?>>();
+        ExecutorService executor = newFixedThreadPool(8);
+        for (int i = 0; i < tasksCount; i++) {
+            var entity = entities.get(i % entities.size());
+            int kind = i % 50;
+            tasks.add(executor.submit(() -> {
+                if (kind == 0) {
+                    return lockService.execute(entity, LockType.GLOBAL, e -> {
+                        assertEquals(0, running.get());
+                        return increment(e);
+                    });
+                } else if (kind == 1) {
+                    return lockService.executeAll(entities, LockType.WRITE, 0L, all -> {
+                        assertEquals(0, running.get());
+                        all.forEach(this::increment);
+                        return entity;
+                    });
+                }
+                return lockService.execute(entity, LockType.WRITE, e -> {
+                    running.incrementAndGet();
+                    increment(e);
+                    running.decrementAndGet();
+                    return e;
+                });
+            }));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        int total = entities.stream().mapToInt(CustomEntity::getPayload).sum();
+        assertEquals(tasksCount - tasksCount / 50 + (tasksCount / 50) * entities.size(), total);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testNestedCalls() {
+        //ids 1 and 2 belong to different lanes
+        var first = new CustomEntity(1, 0);
+        var second = new CustomEntity(2, 0);
+        var lane = lockService.execute(first, LockType.WRITE, e -> {
+            increment(lockService.execute(first, LockType.WRITE, this::increment));
+            return Thread.currentThread();
+        });
+        assertEquals(2, first.getPayload().intValue());
+        assertTrue(lane.getName().startsWith("lock-lane-"));
+
+        //write inside of read of caller would wait for itself
+        try {
+            lockService.execute(first, LockType.READ, e -> lockService.execute(first, LockType.WRITE, this::increment));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //expected
+        }
+        //lane stops lanes after it, id 1 goes to lane 1 and id 2 to lane 2
+        lockService.execute(first, LockType.WRITE, e -> lockService.execute(second, LockType.WRITE, this::increment));
+        assertEquals(1, second.getPayload().intValue());
+        assertEquals(3, lockService.execute(first, LockType.READ,
+                e -> lockService.execute(second, LockType.READ, s -> e.getPayload() + s.getPayload())).intValue());
+        //lane mustn't wait for lane before it
+        try {
+            lockService.execute(second, LockType.WRITE, e -> lockService.execute(first, LockType.WRITE, this::increment));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //expected
+        }
+        //GLOBAL holds all lanes
+        lockService.execute(first, LockType.GLOBAL, e -> lockService.execute(second, LockType.WRITE, this::increment));
+        assertEquals(2, second.getPayload().intValue());
+        assertEquals(2, lockService.executeAsync(first, LockType.READ, CustomEntity::getPayload).join().intValue());
+    }
+
+    @Test
+    public void testOrderedNestedCallsDontDeadlock() throws Exception {
+        var entities = new ArrayList<CustomEntity>();
+        for (int i = 0; i < 4; i++) {
+            entities.add(new CustomEntity(i, 0));
+        }
+        int tasksCount = 2000;
+        var tasks = new ArrayList<Future<?>>();
+        ExecutorService executor = newFixedThreadPool(8);
+        for (int i = 0; i < tasksCount; i++) {
+            //lanes are taken in order of index, GLOBAL stops them in the same order
+            int from = i % 3;
+            var outer = entities.get(from);
+            var inner = entities.get(from + 1);
+            boolean global = i % 10 == 0;
+            tasks.add(executor.submit(() -> global
+                    ? lockService.execute(outer, LockType.GLOBAL, this::increment)
+                    : lockService.execute(outer, LockType.WRITE,
+                            e -> lockService.execute(inner, LockType.WRITE, this::increment))));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(tasksCount, entities.stream().mapToInt(CustomEntity::getPayload).sum());
+        executor.shutdown();
+    }
+
+    private CustomEntity increment(CustomEntity e) {
+        e.setPayload(e.getPayload() + 1);
+        return e;
+    }
+}
@@ -1,17 +1,36 @@
 package ru.locker.service;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.Assert;
 import org.junit.Test;
 import ru.locker.domain.CustomEntity;
+import ru.locker.domain.CustomPartitionedEntity;
+import ru.locker.domain.LockEntry;
+import ru.locker.domain.LockPolicy;
 import ru.locker.domain.LockType;
+import ru.locker.domain.ThreadLocksHolder;
+import ru.locker.exception.DeadlineExceededException;
+import ru.locker.exception.LeaseExpiredException;
 import ru.locker.exception.PossibleDeadLockException;
+import ru.locker.exception.UncheckedDeadlineExceededException;
+import ru.locker.metrics.LockMetrics;
 
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
 
 import static java.lang.System.currentTimeMillis;
 import static java.lang.Thread.sleep;
@@ -101,6 +120,60 @@ public class LockManagerImplTest {
 
     }
 
+    @Test
+    public void testGlobalDrainsConcurrentRows() throws Exception {
+        int threads = 32;
+        int rowsPerThread = 2000;
+        var inRows = new AtomicInteger();
+        var violations = new AtomicInteger();
+        var stop = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(threads + 1);
+        var rows = new ArrayList<Future<?>>();
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            //disjoint ids, rows don't wait for each other
+            rows.add(executor.submit(() -> {
+                for (int i = 0; i < rowsPerThread; i++) {
+                    var entity = new CustomEntity(thread * rowsPerThread + i, 0);
+                    lockService.execute(entity, i % 3 == 0 ? LockType.READ : LockType.WRITE, e -> {
+                        inRows.incrementAndGet();
+                        try {
+                            return execute(e);
+                        } finally {
+                            inRows.decrementAndGet();
+                        }
+                    });
+                }
+            }));
+        }
+        var global = new CustomEntity(-1, 0);
+        Future<?> globals = executor.submit(() -> {
+            do {
+                lockService.execute(global, LockType.GLOBAL, e -> {
+                    //all rows are drained and new ones wait
+                    if (inRows.get() != 0) {
+                        violations.incrementAndGet();
+                    }
+                    Thread.yield();
+                    if (inRows.get() != 0) {
+                        violations.incrementAndGet();
+                    }
+                    return execute(e);
+                });
+            } while (stop.getCount() > 0);
+        });
+        for (Future<?> row : rows) {
+            row.get(30, TimeUnit.SECONDS);
+        }
+        stop.countDown();
+        globals.get(5, TimeUnit.SECONDS);
+
+        assertEquals(0, violations.get());
+        assertThat("globals", global.getPayload(), greaterThan(0));
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
     @Test
     public void testExecuteWithLockAndTimeout() {
         var customEntity = new CustomEntity(1, 0);
@@ -233,6 +306,1455 @@ public class LockManagerImplTest {
 
     }
 
+    @Test
+    public void testWaitForGraphFindsThreePartyCycle() throws InterruptedException {
+        LockManagerImpl<CustomEntity, Integer> graphLockService = new LockManagerImpl<>(
+                new WaitForGraphDeadLockPreventor<>()
+        );
+        int parties = 3;
+        var entities = new ArrayList<CustomEntity>();
+        for (int i = 0; i < parties; i++) {
+            entities.add(new CustomEntity(i, 0));
+        }
+        CyclicBarrier allLocked = new CyclicBarrier(parties);
+
+        ExecutorService executor = newFixedThreadPool(parties);
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < parties; i++) {
+            var first = entities.get(i);
+            var second = entities.get((i + 1) % parties);
+            futures.add(executor.submit(() ->
+                    graphLockService.execute(first, LockType.WRITE, e -> {
+                        try {
+                            allLocked.await();
+                        } catch (InterruptedException | BrokenBarrierException ex) {
+                            throw new IllegalStateException(ex);
+                        }
+                        return graphLockService.execute(second, LockType.WRITE, this::execute);
+                    })));
+        }
+
+        int deadLocks = 0;
+        for (Future future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof PossibleDeadLockException);
+                deadLocks++;
+            } catch (TimeoutException e) {
+                Assert.fail("Deadlock hasn't been found");
+            }
+        }
+        assertThat("deadlocks", deadLocks, greaterThan(0));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExecuteAllInOppositeOrder() {
+        var firstEntity = new CustomEntity(1, 0);
+        var secondEntity = new CustomEntity(2, 0);
+
+        int tasksCount = 10000;
+        CountDownLatch latch = new CountDownLatch(tasksCount * 2);
+
+        ExecutorService executor = newFixedThreadPool(20);
+        List<Future> futures = new ArrayList<>();
+        for (int i = 0; i < tasksCount; i++) {
+            futures.add(executor.submit(() -> {
+                try {
+                    return lockService.executeAll(List.of(firstEntity, secondEntity), LockType.WRITE, 0L,
+                            entities -> { entities.forEach(this::execute); return entities; });
+                } finally {
+                    latch.countDown();
+                }
+            }));
+            futures.add(executor.submit(() -> {
+                try {
+                    return lockService.executeAll(List.of(secondEntity, firstEntity, secondEntity), LockType.WRITE,
+                            0L, entities -> { execute(firstEntity); execute(secondEntity); return entities; });
+                } finally {
+                    latch.countDown();
+                }
+            }));
+        }
+
+        try {
+            latch.await();
+            for (Future future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            log.error("Exception thrown:", e);
+            Assert.fail();
+        }
+
+        assertEquals(tasksCount * 2, firstEntity.getPayload().longValue());
+        assertEquals(tasksCount * 2, secondEntity.getPayload().longValue());
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testExecuteAllHoldsAreOwnLocks() throws Exception {
+        var first = new CustomEntity(1, 0);
+        var second = new CustomEntity(2, 0);
+        var third = new CustomEntity(3, 0);
+        var batch = List.of(first, second);
+        //ids of batch are re-entered by nested calls
+        lockService.executeAll(batch, LockType.WRITE, 0L,
+                all -> lockService.execute(second, LockType.WRITE, this::execute));
+        assertEquals(1, second.getPayload().intValue());
+        try {
+            lockService.executeAll(batch, LockType.READ, 0L,
+                    all -> lockService.execute(first, LockType.WRITE, this::execute));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //write inside of own read batch
+        }
+        //batch under outer lock re-enters held id and locks others through preventor
+        lockService.execute(second, LockType.WRITE, s -> {
+            try {
+                return lockService.executeAll(List.of(first, second, third), LockType.WRITE, 0L,
+                        all -> lockService.execute(third, LockType.WRITE, this::execute));
+            } catch (TimeoutException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals(1, third.getPayload().intValue());
+        assertEquals(0, first.getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testExecuteAsyncWithSyncWriters() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        ExecutorService asyncExecutor = newFixedThreadPool(4);
+        LockManagerImpl<CustomEntity, Integer> asyncLockService = new LockManagerImpl<>(
+                new ListBasedDeadLockPreventor<>(), asyncExecutor
+        );
+
+        int tasksCount = 20000;
+        List<CompletableFuture<CustomEntity>> futures = new ArrayList<>();
+        ExecutorService executor = newFixedThreadPool(10);
+        CountDownLatch latch = new CountDownLatch(tasksCount);
+        for (int i = 0; i < tasksCount; i++) {
+            futures.add(asyncLockService.executeAsync(customEntity, LockType.WRITE, this::execute));
+            executor.submit(() -> {
+                try {
+                    asyncLockService.execute(customEntity, LockType.WRITE, this::execute);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(30, TimeUnit.SECONDS);
+        latch.await();
+
+        assertEquals(tasksCount * 2, customEntity.getPayload().longValue());
+        assertEquals(0, asyncLockService.lockTableSize());
+        asyncExecutor.shutdown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAsyncUnderLocksIsDeferredOnOwnExecutor() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var other = new CustomEntity(2, 0);
+        var executed = new AtomicInteger();
+        //direct executor runs hand-off on thread of caller
+        LockManagerImpl<CustomEntity, Integer> directLockService = new LockManagerImpl<>(
+                new ListBasedDeadLockPreventor<>(), task -> {
+                    executed.incrementAndGet();
+                    task.run();
+                }
+        );
+        var caller = Thread.currentThread();
+        var async = new AtomicReference<CompletableFuture<Thread>>();
+        directLockService.execute(other, LockType.WRITE, e -> {
+            async.set(directLockService.executeAsync(customEntity, LockType.WRITE, c -> Thread.currentThread()));
+            assertFalse(async.get().isDone());
+            return e;
+        });
+        //hand-off is repeated after release, on the same executor
+        assertEquals(caller, async.get().get(1, TimeUnit.SECONDS));
+        assertEquals(2, executed.get());
+        assertEquals(0, directLockService.lockTableSize());
+    }
+
+    @Test
+    public void testAsyncFunctionReentersOwnLock() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var other = new CustomEntity(2, 0);
+        var reentered = lockService.executeAsync(customEntity, LockType.WRITE,
+                e -> lockService.execute(customEntity, LockType.WRITE, this::execute));
+        assertEquals(1, reentered.get(1, TimeUnit.SECONDS).getPayload().intValue());
+        //async hold is seen by preventor path of nested locks
+        var nested = lockService.executeAsync(customEntity, LockType.READ,
+                e -> lockService.execute(other, LockType.WRITE, this::execute));
+        assertEquals(1, nested.get(1, TimeUnit.SECONDS).getPayload().intValue());
+        var upgrade = lockService.executeAsync(customEntity, LockType.READ,
+                e -> lockService.execute(customEntity, LockType.WRITE, this::execute));
+        try {
+            upgrade.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof PossibleDeadLockException);
+        }
+        assertEquals(1, customEntity.getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testExecuteAsyncWithTimeout() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        CountDownLatch locked = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(1);
+        executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, e -> {
+            locked.countDown();
+            return executeAndSleep(executeAndSleep(executeAndSleep(e)));
+        }));
+        locked.await();
+
+        var future = lockService.executeAsync(customEntity, LockType.READ, 10L, this::execute);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+
+        var result = lockService.executeAsync(customEntity, LockType.READ, this::execute).get(1, TimeUnit.SECONDS);
+        assertEquals(4, result.getPayload().longValue());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testMetricsFindHotKey() throws InterruptedException {
+        var metrics = new LockMetrics<Integer>(4, 0L);
+        LockManagerImpl<CustomEntity, Integer> metricsLockService = LockManagerImpl.<CustomEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .lockListener(metrics)
+                .build();
+        var hotEntity = new CustomEntity(1, 0);
+
+        int tasksCount = 10000;
+        CountDownLatch latch = new CountDownLatch(tasksCount);
+        ExecutorService executor = newFixedThreadPool(10);
+        for (int i = 0; i < tasksCount; i++) {
+            var entity = i % 10 == 0 ? new CustomEntity(i + 2, 0) : hotEntity;
+            executor.submit(() -> {
+                try {
+                    metricsLockService.execute(entity, LockType.WRITE, this::execute);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+
+        assertEquals(tasksCount, metrics.getWaitTime(LockType.WRITE).getCount());
+        assertEquals(tasksCount, metrics.getHoldTime(LockType.WRITE).getCount());
+        assertEquals(0, metrics.getWaitTime(LockType.READ).getCount());
+        assertEquals(hotEntity.getId(), metrics.getContendedKeys().keySet().iterator().next());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testMetricsCountReentryRejections() {
+        var metrics = new LockMetrics<Integer>(4, 0L);
+        LockManagerImpl<CustomEntity, Integer> metricsLockService = LockManagerImpl.<CustomEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .lockListener(metrics)
+                .build();
+        var customEntity = new CustomEntity(1, 0);
+
+        try {
+            metricsLockService.execute(customEntity, LockType.READ,
+                    e -> metricsLockService.execute(e, LockType.WRITE, this::execute));
+            Assert.fail("Write inside of read lock of the same id must be rejected");
+        } catch (PossibleDeadLockException e) {
+            //expected
+        }
+
+        assertEquals(1, metrics.getDeadLocks(LockType.WRITE));
+        assertEquals(0, metrics.getDeadLocks(LockType.READ));
+    }
+
+    @Test
+    public void testOptimisticReadSeesConsistentState() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+
+        int tasksCount = 20000;
+        ExecutorService executor = newFixedThreadPool(8);
+        List<Future<Boolean>> reads = new ArrayList<>();
+        for (int i = 0; i < tasksCount; i++) {
+            executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, this::execute));
+            reads.add(executor.submit(() -> lockService.execute(customEntity, LockType.OPTIMISTIC_READ, e -> {
+                int before = e.getPayload();
+                Thread.yield();
+                return before == e.getPayload();
+            })));
+        }
+        for (Future<Boolean> read : reads) {
+            Assert.assertTrue(read.get());
+        }
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLockTableDoesNotGrowOnUniqueIds() {
+        int threads = 8;
+        int idsPerThread = 250000;
+        CountDownLatch latch = new CountDownLatch(threads);
+
+        ExecutorService executor = newFixedThreadPool(threads);
+        for (int i = 0; i < threads; i++) {
+            int offset = i * idsPerThread;
+            executor.submit(() -> {
+                try {
+                    for (int id = offset; id < offset + idsPerThread; id++) {
+                        lockService.execute(new CustomEntity(id, 0), LockType.WRITE, this::execute);
+                        assertThat("lock table size", lockService.lockTableSize(), lessThan(threads + 1));
+                    }
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            log.error("Exception thrown:", e);
+            Assert.fail();
+        }
+
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testUncontendedExecuteDoesNotAllocate() {
+        assertEquals(0, allocatedBytes(lockService));
+        assertEquals(0, allocatedBytes(new LockManagerImpl<>(new NoOpDeadLockPreventor<>())));
+    }
+
+    @Test
+    public void testExpiredLeaseFailsWaitersAndOwner() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var locked = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(2);
+
+        Future<CustomEntity> owner = executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, 0L, 100L, e -> {
+            locked.countDown();
+            try {
+                //hangs until lease interrupts it
+                sleep(10000);
+            } catch (InterruptedException ex) {
+                log.info("Owner is interrupted by lease");
+            }
+            return e;
+        }));
+        locked.await();
+        long start = currentTimeMillis();
+        Future<CustomEntity> waiter = executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, this::execute));
+
+        try {
+            waiter.get(5, TimeUnit.SECONDS);
+            Assert.fail("Waiter must fail fast");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LeaseExpiredException);
+        }
+        try {
+            owner.get(5, TimeUnit.SECONDS);
+            Assert.fail("Owner must see expired lease");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LeaseExpiredException);
+        }
+        assertThat("expiry time", currentTimeMillis() - start, lessThan(5000L));
+        assertEquals(0, customEntity.getPayload().intValue());
+
+        //lock is usable after expiry
+        assertEquals(1, lockService.execute(customEntity, LockType.WRITE, this::execute).getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLateWaiterFailsWhileExpiredOwnerHolds() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var other = new CustomEntity(2, 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var wheel = new HashedTimerWheel(10, TimeUnit.MILLISECONDS, 64);
+        var manager = LockManagerImpl.<CustomEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .leaseWheel(wheel)
+                .build();
+        ExecutorService executor = newFixedThreadPool(1);
+        //owner ignores interrupt of lease and holds the lock after expiry
+        Future<CustomEntity> owner = executor.submit(() -> manager.execute(customEntity, LockType.WRITE, 0L, 50L, e -> {
+            locked.countDown();
+            while (release.getCount() > 0) {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    log.info("Owner ignores interrupt of lease");
+                }
+            }
+            return e;
+        }));
+        locked.await();
+        sleep(200);
+        long start = currentTimeMillis();
+        try {
+            manager.execute(customEntity, LockType.WRITE, this::execute);
+            Assert.fail("Waiter must fail fast");
+        } catch (LeaseExpiredException e) {
+            assertThat("fail time", currentTimeMillis() - start, lessThan(1000L));
+        }
+        //other ids don't wait in slices and don't see the lease
+        assertEquals(1, manager.execute(other, LockType.WRITE, this::execute).getPayload().intValue());
+        assertFalse(Thread.currentThread().isInterrupted());
+        release.countDown();
+        try {
+            owner.get(5, TimeUnit.SECONDS);
+            Assert.fail("Owner must see expired lease");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LeaseExpiredException);
+        }
+        assertEquals(1, manager.execute(customEntity, LockType.WRITE, this::execute).getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+        wheel.close();
+        //closed wheel can't expire lease, it's rejected and lock is released
+        try {
+            manager.execute(customEntity, LockType.WRITE, 0L, 50L, this::execute);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            //expected
+        }
+        assertEquals(2, manager.execute(customEntity, LockType.WRITE, 100L, this::execute).getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testExpiredLeaseKeepsOwnInterrupt() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        try {
+            lockService.execute(customEntity, LockType.WRITE, 0L, 20L, e -> {
+                Thread.currentThread().interrupt();
+                long end = currentTimeMillis() + 200;
+                while (currentTimeMillis() < end) {
+                    Thread.onSpinWait();
+                }
+                return e;
+            });
+            Assert.fail();
+        } catch (LeaseExpiredException e) {
+            //interrupt of caller isn't cleared with interrupt of lease
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testSingleLockSkipsPreventor() {
+        var registered = new ArrayList<Integer>();
+        var preventor = new ListBasedDeadLockPreventor<Integer>() {
+            @Override
+            public void registerLock(Integer to) {
+                registered.add(to);
+                super.registerLock(to);
+            }
+        };
+        var manager = new LockManagerImpl<CustomEntity, Integer>(preventor);
+        var firstEntity = new CustomEntity(1, 0);
+        var secondEntity = new CustomEntity(2, 0);
+
+        manager.execute(firstEntity, LockType.WRITE, this::execute);
+        assertTrue(registered.isEmpty());
+
+        manager.execute(firstEntity, LockType.WRITE, e -> manager.execute(secondEntity, LockType.WRITE, this::execute));
+        assertEquals(List.of(1, 2), registered);
+        assertNull(preventor.lockHolder.findHolders(1));
+        assertNull(preventor.lockHolder.findHolders(2));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPartitionWriteBlocksOnlyOwnPartition() throws Exception {
+        var manager = new LockManagerImpl<CustomPartitionedEntity, Integer>(new ListBasedDeadLockPreventor<>());
+        var tenantA = new CustomPartitionedEntity(1, "a", 0);
+        var otherRowA = new CustomPartitionedEntity(2, "a", 0);
+        var rowB = new CustomPartitionedEntity(3, "b", 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+
+        ExecutorService executor = newFixedThreadPool(1);
+        Future<?> partition = executor.submit(() -> manager.execute(tenantA, LockType.PARTITION_WRITE, e -> {
+            //own X covers rows of partition
+            manager.execute(otherRowA, LockType.WRITE, this::increment);
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        locked.await();
+
+        //other partition pays nothing
+        assertEquals(1, manager.execute(rowB, LockType.WRITE, 100L, this::increment).getPayload().intValue());
+        try {
+            manager.execute(otherRowA, LockType.READ, 100L, Function.identity());
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //row of locked partition waits
+        }
+        var async = manager.executeAsync(otherRowA, LockType.WRITE, this::increment);
+        assertFalse(async.isDone());
+
+        release.countDown();
+        partition.get(1, TimeUnit.SECONDS);
+        assertEquals(2, async.get(1, TimeUnit.SECONDS).getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+        try {
+            manager.execute(tenantA, LockType.PARTITION_READ, e -> manager.execute(otherRowA, LockType.WRITE,
+                    this::increment));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //row write inside of own S would wait for itself
+        }
+        //partitions aren't kept after release
+        assertEquals(0, manager.partitionCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRangeConflictsWithPartitionLocks() throws Exception {
+        var manager = new LockManagerImpl<CustomPartitionedEntity, Integer>(new ListBasedDeadLockPreventor<>());
+        var row = new CustomPartitionedEntity(1, "a", 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(2);
+        Future<?> partition = executor.submit(() -> manager.execute(row, LockType.PARTITION_READ, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        locked.await();
+        //READ range is IS on all partitions, WRITE one is IX
+        assertEquals(Integer.valueOf(1), manager.executeRange(0, 10, LockType.READ, 100L, () -> 1));
+        try {
+            manager.executeRange(0, 10, LockType.WRITE, 100L, () -> null);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //S of some partition is held
+        }
+        var range = executor.submit(() -> manager.executeRange(0, 10, LockType.WRITE, () -> 2));
+        release.countDown();
+        partition.get(1, TimeUnit.SECONDS);
+        assertEquals(Integer.valueOf(2), range.get(1, TimeUnit.SECONDS));
+
+        var rangeLocked = new CountDownLatch(1);
+        var rangeRelease = new CountDownLatch(1);
+        Future<?> writeRange = executor.submit(() -> manager.executeRange(100, 200, LockType.WRITE, () -> {
+            rangeLocked.countDown();
+            try {
+                rangeRelease.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return null;
+        }));
+        rangeLocked.await();
+        try {
+            manager.execute(row, LockType.PARTITION_WRITE, 100L, Function.identity());
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //WRITE range may cover rows of partition
+        }
+        rangeRelease.countDown();
+        writeRange.get(1, TimeUnit.SECONDS);
+
+        try {
+            manager.executeRange(0, 10, LockType.READ, () -> manager.execute(row, LockType.PARTITION_READ,
+                    Function.identity()));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //own range is intention on the partition
+        }
+        try {
+            manager.execute(row, LockType.PARTITION_READ, e -> manager.executeRange(0, 10, LockType.READ, () -> e));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //range would wait for own partition lock
+        }
+        assertEquals(0, manager.partitionCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testPartitionWriteExcludesRowsWhileIdlePartitionsAreSwept() throws Exception {
+        var manager = new LockManagerImpl<CustomPartitionedEntity, Integer>(new ListBasedDeadLockPreventor<>());
+        int partitions = 500;
+        var inPartition = new AtomicInteger[partitions];
+        for (int i = 0; i < partitions; i++) {
+            inPartition[i] = new AtomicInteger();
+        }
+        ExecutorService executor = newFixedThreadPool(8);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            futures.add(executor.submit(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    int p = (i * 7 + thread) % partitions;
+                    var row = new CustomPartitionedEntity(i, String.valueOf(p), 0);
+                    if (i % 4 == 0) {
+                        manager.execute(row, LockType.PARTITION_WRITE, e -> {
+                            //X of partition sees no rows of it, even if its previous lock was evicted
+                            if (inPartition[p].get() != 0) {
+                                Assert.fail();
+                            }
+                            return e;
+                        });
+                    } else {
+                        manager.execute(row, LockType.WRITE, e -> {
+                            inPartition[p].incrementAndGet();
+                            inPartition[p].decrementAndGet();
+                            return e;
+                        });
+                    }
+                }
+                return null;
+            }));
+        }
+        for (var future : futures) {
+            future.get(30, TimeUnit.SECONDS);
+        }
+        assertEquals(0, manager.lockTableSize());
+        assertEquals(0, manager.partitionCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testReentryIsCountedWithoutPreventor() {
+        var registered = new ArrayList<Integer>();
+        var preventor = new ListBasedDeadLockPreventor<Integer>() {
+            @Override
+            public void registerLock(Integer to) {
+                registered.add(to);
+                super.registerLock(to);
+            }
+        };
+        var manager = new LockManagerImpl<CustomEntity, Integer>(preventor);
+        var firstEntity = new CustomEntity(1, 0);
+        var secondEntity = new CustomEntity(2, 0);
+
+        manager.execute(firstEntity, LockType.WRITE, first -> manager.execute(secondEntity, LockType.READ, second -> {
+            for (int i = 0; i < 100; i++) {
+                manager.execute(firstEntity, LockType.READ, e -> manager.execute(firstEntity, LockType.WRITE, this::execute));
+                manager.execute(secondEntity, LockType.OPTIMISTIC_READ, Function.identity());
+            }
+            assertEquals(2, preventor.lockHolder.findCurrentThreadLocks().size());
+            return second;
+        }));
+        assertEquals(List.of(1, 2), registered);
+        assertEquals(100, firstEntity.getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+        try {
+            manager.execute(firstEntity, LockType.READ, e -> manager.execute(firstEntity, LockType.WRITE, this::execute));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //write inside of own read
+        }
+
+        //holder counts re-entries of id instead of duplicates
+        var holder = new ThreadLocksHolder<Integer>();
+        holder.updateLocks(1);
+        holder.updateLocks(1);
+        holder.updateLocks(1);
+        assertEquals(1, holder.findCurrentThreadLocks().size());
+        assertEquals(3, holder.findCurrentThreadLocks().getHoldCount(0));
+        assertEquals(1, holder.findHolders(1).size());
+        holder.deleteThreadLocks(1);
+        holder.deleteThreadLocks(1);
+        assertNotNull(holder.findHolders(1));
+        holder.deleteThreadLocks(1);
+        assertNull(holder.findHolders(1));
+        assertEquals(0, holder.findCurrentThreadLocks().size());
+    }
+
+    @Test
+    public void testThreadLocksAreReleasedOutOfOrder() throws Exception {
+        var holder = new ThreadLocksHolder<Integer>();
+        ExecutorService executor = newFixedThreadPool(1);
+        //other thread holds id 2 too
+        executor.submit(() -> holder.updateLocks(2)).get(1, TimeUnit.SECONDS);
+        holder.updateLocks(1);
+        holder.updateLocks(2);
+        holder.updateLocks(3);
+        holder.updateLocks(1);
+        var myLocks = holder.findCurrentThreadLocks();
+        assertEquals(3, myLocks.size());
+        assertEquals(2, holder.findHolders(2).size());
+
+        //middle id is released first, order and counts of others are kept
+        holder.deleteThreadLocks(2);
+        assertEquals(2, myLocks.size());
+        assertEquals(1, myLocks.get(0).intValue());
+        assertEquals(2, myLocks.getHoldCount(0));
+        assertEquals(3, myLocks.get(1).intValue());
+        assertEquals(1, holder.findHolders(2).size());
+        assertTrue(myLocks != holder.findHolders(2).get(0));
+        //outer hold of 1 outlives 3
+        holder.deleteThreadLocks(1);
+        assertEquals(0, myLocks.indexOf(1));
+        assertEquals(1, myLocks.getHoldCount(0));
+        holder.deleteThreadLocks(3);
+        assertNull(holder.findHolders(3));
+        holder.deleteThreadLocks(1);
+        assertNull(holder.findHolders(1));
+        assertEquals(0, myLocks.size());
+        //release of not held id changes nothing
+        holder.deleteThreadLocks(2);
+        assertEquals(1, holder.findHolders(2).size());
+
+        //index keeps colliding ids after removal of others in any order
+        int ids = 100;
+        for (int i = 0; i < ids; i++) {
+            holder.updateLocks(i * 64);
+        }
+        for (int i = 0; i < ids; i += 2) {
+            holder.deleteThreadLocks(i * 64);
+        }
+        for (int i = 0; i < ids; i++) {
+            assertEquals(i % 2 == 1, holder.findHolders(i * 64) != null);
+        }
+        for (int i = ids - 1; i > 0; i -= 2) {
+            holder.deleteThreadLocks(i * 64);
+        }
+        assertEquals(0, myLocks.size());
+        assertNull(holder.findHolders(64));
+        executor.submit(() -> holder.deleteThreadLocks(2)).get(1, TimeUnit.SECONDS);
+        assertNull(holder.findHolders(2));
+        executor.shutdown();
+    }
+
+    @Test
+    public void testAdaptiveSpin() throws Exception {
+        var manager = LockManagerImpl.<CustomEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .adaptiveSpin(true)
+                .build();
+        var customEntity = new CustomEntity(1, 0);
+        int tasksCount = 20000;
+        var tasks = new ArrayList<Future<?>>();
+        ExecutorService executor = newFixedThreadPool(8);
+        for (int i = 0; i < tasksCount; i++) {
+            tasks.add(executor.submit(() -> manager.execute(customEntity, LockType.WRITE, this::execute)));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(tasksCount, customEntity.getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+        executor.shutdown();
+
+        //long holds switch spinning off, short ones bring it back
+        var entry = new LockEntry();
+        for (int i = 0; i < 100; i++) {
+            entry.recordHold(1_000_000L);
+        }
+        assertThat("hold", entry.getHoldNanos(), greaterThan(100_000L));
+        for (int i = 0; i < 100; i++) {
+            entry.recordHold(100L);
+        }
+        assertThat("hold", entry.getHoldNanos(), lessThan(1_000L));
+    }
+
+    @Test
+    public void testUpgradeAndDowngrade() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        int limit = 1000;
+        var tasks = new ArrayList<Future<?>>();
+        ExecutorService executor = newFixedThreadPool(8);
+        //check-then-modify doesn't overshoot, checks run under read lock
+        for (int i = 0; i < limit * 2; i++) {
+            tasks.add(executor.submit(() -> lockService.executeUpgradable(customEntity, 0L, (e, lock) -> {
+                if (e.getPayload() >= limit) {
+                    return e;
+                }
+                lock.upgrade();
+                assertTrue(lock.isWriteLocked());
+                return execute(e);
+            })));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        assertEquals(limit, customEntity.getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+
+        //downgraded lock lets readers in, but not writers
+        var downgraded = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Future<?> owner = executor.submit(() -> lockService.executeUpgradable(customEntity, 0L, (e, lock) -> {
+            lock.upgrade();
+            execute(e);
+            lock.downgrade();
+            assertFalse(lock.isWriteLocked());
+            downgraded.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        downgraded.await();
+        assertEquals(limit + 1, lockService.execute(customEntity, LockType.READ, 100L, CustomEntity::getPayload).intValue());
+        try {
+            lockService.execute(customEntity, LockType.WRITE, 100L, this::execute);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //read lock is still held
+        }
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+
+        //upgrade inside of own read would wait for itself
+        try {
+            lockService.execute(customEntity, LockType.READ, e -> lockService.executeUpgradable(customEntity,
+                    (inner, lock) -> {
+                        lock.upgrade();
+                        return inner;
+                    }));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //expected
+        }
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLockPolicies() throws Exception {
+        for (LockPolicy policy : LockPolicy.values()) {
+            var manager = LockManagerImpl.<CustomEntity, Integer>builder()
+                    .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                    .lockPolicy(policy)
+                    .build();
+            var customEntity = new CustomEntity(1, 0);
+            var locked = new CountDownLatch(1);
+            var release = new CountDownLatch(1);
+            ExecutorService executor = newFixedThreadPool(2);
+
+            Future<?> reader = executor.submit(() -> manager.execute(customEntity, LockType.READ, e -> {
+                locked.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException interruptedException) {
+                    Assert.fail();
+                }
+                return e;
+            }));
+            locked.await();
+            Future<CustomEntity> writer = executor.submit(() -> manager.execute(customEntity, LockType.WRITE, this::execute));
+            sleep(100);
+
+            //new reader bypasses waiting writer only with reader preference, bounded one is within its limit
+            boolean bypassed;
+            try {
+                manager.execute(customEntity, LockType.READ, 100L, Function.identity());
+                bypassed = true;
+            } catch (TimeoutException e) {
+                bypassed = false;
+            }
+            assertEquals(policy.toString(), policy == LockPolicy.READER_PREFERENCE
+                    || policy == LockPolicy.BOUNDED_BYPASS, bypassed);
+
+            release.countDown();
+            reader.get(1, TimeUnit.SECONDS);
+            assertEquals(1, writer.get(1, TimeUnit.SECONDS).getPayload().intValue());
+
+            //mixed load keeps mutual exclusion
+            int tasksCount = 2000;
+            var tasks = new ArrayList<Future<?>>();
+            ExecutorService pool = newFixedThreadPool(8);
+            for (int i = 0; i < tasksCount; i++) {
+                var lockType = i % 4 == 0 ? LockType.WRITE : i % 100 == 1 ? LockType.GLOBAL : LockType.READ;
+                tasks.add(pool.submit(() -> manager.execute(customEntity, lockType,
+                        lockType == LockType.READ ? Function.identity() : this::execute)));
+            }
+            for (Future<?> task : tasks) {
+                task.get(10, TimeUnit.SECONDS);
+            }
+            assertEquals(policy.toString(), 1 + tasksCount / 4 + tasksCount / 100, customEntity.getPayload().intValue());
+            assertEquals(0, manager.lockTableSize());
+
+            //condition of write lock releases all holds while waiting and takes them back
+            var lock = policy.newLock();
+            var condition = lock.writeLock().newCondition();
+            lock.writeLock().lock();
+            lock.writeLock().lock();
+            Future<?> signaller = executor.submit(() -> {
+                lock.writeLock().lock();
+                try {
+                    condition.signalAll();
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            });
+            assertTrue(policy.toString(), condition.await(1, TimeUnit.SECONDS));
+            signaller.get(1, TimeUnit.SECONDS);
+            assertFalse(executor.submit(() -> lock.readLock().tryLock()).get(1, TimeUnit.SECONDS));
+            lock.writeLock().unlock();
+            lock.writeLock().unlock();
+            assertTrue(executor.submit(() -> lock.readLock().tryLock()).get(1, TimeUnit.SECONDS));
+            executor.shutdown();
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testExecuteCombining() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        int tasksCount = 20000;
+        var tasks = new ArrayList<Future<Integer>>();
+        ExecutorService executor = newFixedThreadPool(8);
+        //every fifth function fails, its exception belongs only to its caller
+        for (int i = 0; i < tasksCount; i++) {
+            boolean fail = i % 5 == 0;
+            tasks.add(executor.submit(() -> lockService.executeCombining(customEntity, e -> {
+                execute(e);
+                if (fail) {
+                    throw new IllegalStateException("failed");
+                }
+                return e.getPayload();
+            })));
+        }
+        int failed = 0;
+        for (Future<Integer> task : tasks) {
+            try {
+                assertTrue(task.get(10, TimeUnit.SECONDS) > 0);
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalStateException);
+                failed++;
+            }
+        }
+        assertEquals(tasksCount / 5, failed);
+        assertEquals(tasksCount, customEntity.getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+
+        //waiter, which isn't served in time, isn't run at all
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Future<?> owner = executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        locked.await();
+        try {
+            lockService.executeCombining(customEntity, 100L, this::execute);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //lock is held by owner
+        }
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+        assertEquals(tasksCount, customEntity.getPayload().intValue());
+
+        //function of caller with other locks is run by caller itself
+        var other = new CustomEntity(2, 0);
+        var thread = Thread.currentThread();
+        lockService.execute(other, LockType.WRITE, o -> lockService.executeCombining(customEntity, e -> {
+            assertSame(thread, Thread.currentThread());
+            return execute(e);
+        }));
+        assertEquals(tasksCount + 1, customEntity.getPayload().intValue());
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCombinerServesWithinCallerDeadline() throws Exception {
+        var metrics = new LockMetrics<Integer>(4, 0L);
+        LockManagerImpl<CustomEntity, Integer> metricsLockService = LockManagerImpl.<CustomEntity, Integer>builder()
+                .deadLockPreventor(new ListBasedDeadLockPreventor<>())
+                .lockListener(metrics)
+                .build();
+        var customEntity = new CustomEntity(1, 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(2);
+        Future<Thread> owner = executor.submit(() -> metricsLockService.executeCombining(customEntity, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return Thread.currentThread();
+        }));
+        locked.await();
+        var callerDeadline = new AtomicReference<Deadline>();
+        var servedDeadline = new AtomicReference<Deadline>();
+        var servedThread = new AtomicReference<Thread>();
+        Future<?> caller = executor.submit(() -> Deadline.within(5000, () -> {
+            callerDeadline.set(Deadline.current());
+            return metricsLockService.executeCombining(customEntity, e -> {
+                servedDeadline.set(Deadline.current());
+                servedThread.set(Thread.currentThread());
+                return execute(e);
+            });
+        }));
+        //caller publishes its function, while owner holds the lock
+        sleep(100);
+        release.countDown();
+        var ownerThread = owner.get(1, TimeUnit.SECONDS);
+        caller.get(1, TimeUnit.SECONDS);
+
+        assertSame(ownerThread, servedThread.get());
+        assertSame(callerDeadline.get(), servedDeadline.get());
+        assertEquals(2, metrics.getWaitTime(LockType.WRITE).getCount());
+        assertEquals(2, metrics.getHoldTime(LockType.WRITE).getCount());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        var file = Files.createTempFile("locker", ".jfr");
+        var customEntity = new CustomEntity(1, 0);
+        try (var recording = new Recording()) {
+            recording.enable("ru.locker.LockWait").withThreshold(Duration.ofMillis(50));
+            recording.enable("ru.locker.LockHold").withThreshold(Duration.ofMillis(50));
+            recording.enable("ru.locker.LockTimeout");
+            recording.enable("ru.locker.DeadLockRejected");
+            recording.start();
+
+            //short waits and holds are below threshold
+            for (int i = 0; i < 100; i++) {
+                lockService.execute(customEntity, LockType.WRITE, this::execute);
+            }
+            var locked = new CountDownLatch(1);
+            ExecutorService executor = newFixedThreadPool(1);
+            Future<?> owner = executor.submit(() -> lockService.execute(customEntity, LockType.WRITE, e -> {
+                locked.countDown();
+                return executeAndSleep(e);
+            }));
+            locked.await();
+            try {
+                lockService.execute(customEntity, LockType.WRITE, 10L, this::execute);
+                Assert.fail();
+            } catch (TimeoutException e) {
+                //expected
+            }
+            lockService.execute(customEntity, LockType.WRITE, this::execute);
+            owner.get(1, TimeUnit.SECONDS);
+            try {
+                lockService.execute(customEntity, LockType.READ,
+                        e -> lockService.execute(customEntity, LockType.WRITE, this::execute));
+                Assert.fail();
+            } catch (PossibleDeadLockException e) {
+                //expected
+            }
+            recording.stop();
+            recording.dump(file);
+            executor.shutdown();
+        }
+        var counts = new HashMap<String, Integer>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+            assertEquals("1", event.getString("id"));
+            counts.merge(event.getEventType().getName(), 1, Integer::sum);
+        }
+        Files.delete(file);
+        assertEquals(1, counts.get("ru.locker.LockWait").intValue());
+        assertEquals(1, counts.get("ru.locker.LockHold").intValue());
+        assertEquals(1, counts.get("ru.locker.LockTimeout").intValue());
+        assertEquals(1, counts.get("ru.locker.DeadLockRejected").intValue());
+    }
+
+    @Test
+    public void testLockSnapshot() throws Exception {
+        var manager = new LockManagerImpl<CustomEntity, Integer>(new ListBasedDeadLockPreventor<>());
+        var first = new CustomEntity(1, 0);
+        var second = new CustomEntity(2, 0);
+        var third = new CustomEntity(3, 0);
+        var single = new CustomEntity(4, 0);
+        var locked = new CountDownLatch(2);
+        var release = new CountDownLatch(1);
+        ExecutorService executor = newFixedThreadPool(4);
+        Function<CustomEntity, CustomEntity> hold = e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        };
+        Future<?> owner = executor.submit(() -> manager.execute(first, LockType.WRITE,
+                e -> manager.execute(second, LockType.WRITE, hold)));
+        //the only lock of thread isn't registered in preventor, snapshot sees it
+        Future<?> singleOwner = executor.submit(() -> manager.execute(single, LockType.WRITE, hold));
+        locked.await();
+        Future<?> waiter = executor.submit(() -> manager.execute(third, LockType.WRITE,
+                e -> manager.execute(first, LockType.WRITE, this::execute)));
+        Future<?> firstLockWaiter = executor.submit(() -> manager.execute(second, LockType.READ, this::execute));
+        //async waiter has no thread, it's counted as queued
+        var queued = manager.executeAsync(single, LockType.WRITE, this::execute);
+        long deadline = currentTimeMillis() + 1000;
+        while (manager.snapshot().find(1).getWaiters().isEmpty() || manager.snapshot().find(2).getWaiters().isEmpty()) {
+            assertTrue(currentTimeMillis() < deadline);
+            sleep(10);
+        }
+        var snapshot = manager.snapshot();
+        log.info("Locks:\n{}", snapshot);
+        var ownerThread = snapshot.find(2).getOwners().get(0);
+        var waiterThread = snapshot.find(3).getOwners().get(0);
+        assertEquals(List.of(ownerThread), snapshot.find(1).getOwners());
+        assertEquals(List.of(waiterThread), snapshot.find(1).getWaiters());
+        assertEquals(1, snapshot.find(2).getWaiters().size());
+        assertEquals(1, snapshot.find(4).getOwners().size());
+        assertTrue(snapshot.find(4).getWaiters().isEmpty());
+        assertEquals(1, snapshot.find(4).getQueued());
+        assertEquals(4, snapshot.getEntries().size());
+        assertNull(snapshot.findGlobal());
+
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+        singleOwner.get(1, TimeUnit.SECONDS);
+        waiter.get(1, TimeUnit.SECONDS);
+        firstLockWaiter.get(1, TimeUnit.SECONDS);
+        assertEquals(1, queued.get(1, TimeUnit.SECONDS).getPayload().intValue());
+        assertTrue(manager.snapshot().getEntries().isEmpty());
+
+        //GLOBAL isn't shown as lock of entity id
+        var globalLocked = new CountDownLatch(1);
+        var globalRelease = new CountDownLatch(1);
+        Future<?> global = executor.submit(() -> manager.execute(first, LockType.GLOBAL, e -> {
+            globalLocked.countDown();
+            try {
+                globalRelease.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        globalLocked.await();
+        snapshot = manager.snapshot();
+        assertEquals(1, snapshot.findGlobal().getOwners().size());
+        assertTrue(snapshot.find(1) == null || snapshot.find(1).getOwners().isEmpty());
+        globalRelease.countDown();
+        global.get(1, TimeUnit.SECONDS);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testOrderedPreventor() {
+        var manager = new LockManagerImpl<CustomEntity, Integer>(new OrderedDeadLockPreventor<>());
+        var first = new CustomEntity(1, 0);
+        var second = new CustomEntity(2, 0);
+        var third = new CustomEntity(3, 0);
+        //ascending ids and re-entry of held ones
+        manager.execute(first, LockType.WRITE, e -> manager.execute(second, LockType.READ,
+                inner -> manager.execute(third, LockType.WRITE,
+                        last -> manager.execute(first, LockType.WRITE, this::execute))));
+        assertEquals(1, first.getPayload().intValue());
+        //out of order id is rejected at once, even if it is free
+        try {
+            manager.execute(first, LockType.WRITE, e -> manager.execute(third, LockType.WRITE,
+                    inner -> manager.execute(second, LockType.WRITE, this::execute)));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //expected
+        }
+        //rejected id is forgotten, thread can go on in order
+        manager.execute(first, LockType.WRITE, e -> manager.execute(third, LockType.WRITE, this::execute));
+        assertEquals(1, third.getPayload().intValue());
+        assertEquals(0, manager.lockTableSize());
+
+        var reversed = new LockManagerImpl<CustomEntity, Integer>(
+                new OrderedDeadLockPreventor<>(Comparator.reverseOrder()));
+        reversed.execute(third, LockType.WRITE, e -> reversed.execute(first, LockType.WRITE, this::execute));
+        assertEquals(2, first.getPayload().intValue());
+    }
+
+    @Test
+    public void testRangeLocks() throws Exception {
+        var entities = new CustomEntity[50];
+        for (int i = 0; i < entities.length; i++) {
+            entities[i] = new CustomEntity(i, 0);
+        }
+        ExecutorService executor = newFixedThreadPool(4);
+        //held range blocks ids and overlapping ranges inside of it only
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Future<?> owner = executor.submit(() -> lockService.executeRange(10, 20, LockType.WRITE, () -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return null;
+        }));
+        locked.await();
+        try {
+            lockService.execute(entities[15], LockType.READ, 100L, this::execute);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //id is inside of held range
+        }
+        try {
+            lockService.executeRange(20, 30, LockType.READ, 100L, () -> null);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //ranges overlap
+        }
+        lockService.execute(entities[25], LockType.WRITE, 100L, this::execute);
+        assertEquals(1, entities[25].getPayload().intValue());
+        assertEquals(Integer.valueOf(30), lockService.executeRange(21, 30, LockType.WRITE, 100L, () -> 30));
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+
+        //range waits only for rows inside of it
+        var rowLocked = new CountDownLatch(1);
+        var rowRelease = new CountDownLatch(1);
+        Future<?> rowOwner = executor.submit(() -> lockService.execute(entities[40], LockType.WRITE, e -> {
+            rowLocked.countDown();
+            try {
+                rowRelease.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        rowLocked.await();
+        assertEquals(Integer.valueOf(10), lockService.executeRange(0, 10, LockType.WRITE, 100L, () -> 10));
+        try {
+            lockService.executeRange(35, 45, LockType.WRITE, 100L, () -> null);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //row inside of range is held
+        }
+        rowRelease.countDown();
+        rowOwner.get(1, TimeUnit.SECONDS);
+        lockService.execute(entities[15], LockType.WRITE, 100L, this::execute);
+        assertEquals(1, entities[15].getPayload().intValue());
+
+        //READ range doesn't wait for READ rows, WRITE one does
+        var readLocked = new CountDownLatch(1);
+        var readRelease = new CountDownLatch(1);
+        Future<?> reader = executor.submit(() -> lockService.execute(entities[45], LockType.READ, e -> {
+            readLocked.countDown();
+            try {
+                readRelease.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        readLocked.await();
+        assertEquals(Integer.valueOf(45), lockService.executeRange(40, 49, LockType.READ, 100L, () -> 45));
+        try {
+            lockService.executeRange(40, 49, LockType.WRITE, 100L, () -> null);
+            Assert.fail();
+        } catch (TimeoutException e) {
+            //READ row inside of range is held
+        }
+        var writeRange = executor.submit(() -> lockService.executeRange(40, 49, LockType.WRITE, () -> 49));
+        readRelease.countDown();
+        reader.get(1, TimeUnit.SECONDS);
+        //exit of the point wakes draining range
+        assertEquals(Integer.valueOf(49), writeRange.get(1, TimeUnit.SECONDS));
+
+        //ranges and single ids don't lose increments
+        int tasksCount = 2000;
+        var tasks = new ArrayList<Future<?>>();
+        for (int i = 0; i < tasksCount; i++) {
+            int from = i % 40;
+            var entity = entities[(i * 7) % entities.length];
+            tasks.add(executor.submit(() -> lockService.executeRange(from, from + 9, LockType.WRITE, () -> {
+                for (int id = from; id <= from + 9; id++) {
+                    execute(entities[id]);
+                }
+                return null;
+            })));
+            tasks.add(executor.submit(() -> lockService.execute(entity, LockType.WRITE, this::execute)));
+        }
+        for (Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+        int total = 0;
+        for (CustomEntity entity : entities) {
+            total += entity.getPayload();
+        }
+        assertEquals(2 + tasksCount * 10 + tasksCount, total);
+
+        //ids and ranges inside of own range are covered by it
+        lockService.executeRange(0, 9, LockType.WRITE,
+                () -> lockService.executeRange(2, 3, LockType.READ,
+                        () -> lockService.execute(entities[2], LockType.WRITE, this::execute)));
+        assertEquals(entities[2].getPayload().intValue(), lockService.executeRange(0, 9, LockType.READ,
+                () -> lockService.execute(entities[2], LockType.READ, CustomEntity::getPayload)).intValue());
+        try {
+            lockService.executeRange(0, 9, LockType.READ,
+                    () -> lockService.execute(entities[2], LockType.WRITE, this::execute));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //write inside of read range
+        }
+        try {
+            lockService.execute(entities[2], LockType.WRITE,
+                    e -> lockService.executeRange(0, 9, LockType.WRITE, () -> null));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //range isn't ordered with row lock
+        }
+        try {
+            lockService.executeRange(0, 9, LockType.WRITE,
+                    () -> lockService.execute(entities[20], LockType.WRITE, this::execute));
+            Assert.fail();
+        } catch (PossibleDeadLockException e) {
+            //row outside of own range isn't ordered with it
+        }
+        try {
+            lockService.executeRange(9, 0, LockType.WRITE, () -> null);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            //empty range
+        }
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testDeadlineIsSharedByNestedCalls() throws Exception {
+        var held = new CustomEntity(1, 0);
+        var free = new CustomEntity(2, 0);
+        ExecutorService executor = newFixedThreadPool(1);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        Future<?> owner = executor.submit(() -> lockService.execute(held, LockType.WRITE, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException interruptedException) {
+                Assert.fail();
+            }
+            return e;
+        }));
+        locked.await();
+        //infinity wait is cut by deadline
+        long start = currentTimeMillis();
+        try {
+            Deadline.within(100, () -> lockService.execute(free, LockType.WRITE,
+                    e -> lockService.execute(held, LockType.READ, this::execute)));
+            Assert.fail();
+        } catch (DeadlineExceededException e) {
+            assertThat("wait time", currentTimeMillis() - start, lessThan(1000L));
+        }
+        //own timeout of call is shorter, then budget of the next call is the rest of deadline
+        start = currentTimeMillis();
+        var timeouts = Deadline.within(150, () -> {
+            int res = 0;
+            try {
+                lockService.execute(held, LockType.WRITE, 100L, this::execute);
+            } catch (TimeoutException e) {
+                res++;
+            }
+            try {
+                lockService.execute(held, LockType.WRITE, 100L, this::execute);
+            } catch (DeadlineExceededException e) {
+                res++;
+            } catch (TimeoutException e) {
+                Assert.fail();
+            }
+            return res;
+        });
+        assertEquals(2, timeouts.intValue());
+        assertThat("wait time", currentTimeMillis() - start, lessThan(300L));
+        //exceeded deadline fails at once, even on free id
+        try {
+            Deadline.within(1, () -> {
+                try {
+                    sleep(5);
+                } catch (InterruptedException interruptedException) {
+                    Assert.fail();
+                }
+                return lockService.execute(free, LockType.WRITE, this::execute);
+            });
+            Assert.fail();
+        } catch (DeadlineExceededException e) {
+            //expected
+        }
+        //untimed call doesn't declare timeout, it throws unchecked exception
+        var unchecked = Deadline.within(1, () -> {
+            try {
+                sleep(5);
+                lockService.execute(free, LockType.WRITE, this::execute);
+                return false;
+            } catch (UncheckedDeadlineExceededException e) {
+                return e.getCause() != null;
+            } catch (InterruptedException interruptedException) {
+                return false;
+            }
+        });
+        assertTrue(unchecked);
+        //async function runs within deadline of caller
+        var async = Deadline.within(1000, () -> lockService.executeAsync(free, LockType.WRITE,
+                e -> Deadline.current().remaining()));
+        assertThat("remaining", async.get(1, TimeUnit.SECONDS), greaterThan(0L));
+        var blocked = Deadline.within(100, () -> lockService.executeAsync(held, LockType.WRITE, this::execute));
+        try {
+            blocked.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+        assertNull(Deadline.current());
+        release.countDown();
+        owner.get(1, TimeUnit.SECONDS);
+        assertEquals(0, free.getPayload().intValue());
+        assertEquals(0, held.getPayload().intValue());
+        executor.shutdown();
+    }
+
+    private CustomPartitionedEntity increment(CustomPartitionedEntity e) {
+        e.setPayload(e.getPayload() + 1);
+        return e;
+    }
+
+    private long allocatedBytes(LockManagerImpl<CustomEntity, Integer> manager) {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        var entities = new CustomEntity[]{new CustomEntity(1000, 0), new CustomEntity(2000, 0)};
+        Function<CustomEntity, CustomEntity> function = Function.identity();
+        //pools, thread locals and table segments are filled by warm up
+        for (int i = 0; i < 20000; i++) {
+            manager.execute(entities[i & 1], LockType.WRITE, function);
+            manager.execute(entities[i & 1], LockType.READ, function);
+        }
+        long idle = threads.getCurrentThreadAllocatedBytes();
+        idle = threads.getCurrentThreadAllocatedBytes() - idle;
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < 20000; i++) {
+            manager.execute(entities[i & 1], LockType.WRITE, function);
+            manager.execute(entities[i & 1], LockType.READ, function);
+        }
+        return threads.getCurrentThreadAllocatedBytes() - before - idle;
+    }
+
     private CustomEntity execute(CustomEntity e) {
         return execute(e, false);
     }
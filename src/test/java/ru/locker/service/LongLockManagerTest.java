@@ -0,0 +1,101 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+import ru.locker.domain.CustomLongEntity;
+import ru.locker.domain.LockType;
+import ru.locker.exception.PossibleDeadLockException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.junit.Assert.*;
+
+@Slf4j
+public class LongLockManagerTest {
+
+    LongLockManager<CustomLongEntity> lockService = new LongLockManager<>(
+            new LongWaitForGraphDeadLockPreventor()
+    );
+
+    @Test
+    public void testExecuteWithLock() throws InterruptedException {
+        var customEntity = new CustomLongEntity(Long.MAX_VALUE, 0);
+
+        int tasksCount = 100000;
+        CountDownLatch latch = new CountDownLatch(tasksCount);
+
+        ExecutorService executor = newFixedThreadPool(100);
+        for (int i = 0; i < tasksCount; i++) {
+            executor.submit(() -> {
+                try {
+                    lockService.execute(customEntity, LockType.WRITE, this::execute);
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+
+        assertEquals(100000, customEntity.getPayload().longValue());
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLockTableDoesNotGrowOnUniqueIds() {
+        for (long i = 0; i < 100000; i++) {
+            var entity = new CustomLongEntity(i * 31, 0);
+            lockService.execute(entity, LockType.READ, e ->
+                    lockService.execute(new CustomLongEntity(e.getLongId() + 1, 0), LockType.WRITE, this::execute));
+        }
+        assertEquals(0, lockService.lockTableSize());
+    }
+
+    @Test
+    public void testDeadLocks() throws InterruptedException {
+        var firstEntity = new CustomLongEntity(1, 0);
+        var secondEntity = new CustomLongEntity(2, 0);
+        CyclicBarrier allLocked = new CyclicBarrier(2);
+
+        ExecutorService executor = newFixedThreadPool(2);
+        List<Future> futures = new ArrayList<>();
+        futures.add(executor.submit(() -> lockNested(firstEntity, secondEntity, allLocked)));
+        futures.add(executor.submit(() -> lockNested(secondEntity, firstEntity, allLocked)));
+
+        int deadLocks = 0;
+        for (Future future : futures) {
+            try {
+                future.get(10, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                Assert.assertTrue(e.getCause() instanceof PossibleDeadLockException);
+                deadLocks++;
+            } catch (TimeoutException e) {
+                Assert.fail("Deadlock hasn't been found");
+            }
+        }
+        assertThat("deadlocks", deadLocks, greaterThan(0));
+        assertEquals(0, lockService.lockTableSize());
+        executor.shutdown();
+    }
+
+    private Integer lockNested(CustomLongEntity first, CustomLongEntity second, CyclicBarrier allLocked) {
+        return lockService.execute(first, LockType.WRITE, e -> {
+            try {
+                allLocked.await();
+            } catch (InterruptedException | BrokenBarrierException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return lockService.execute(second, LockType.WRITE, this::execute);
+        });
+    }
+
+    private Integer execute(CustomLongEntity entity) {
+        entity.setPayload(entity.getPayload() + 1);
+        return entity.getPayload();
+    }
+}
@@ -0,0 +1,132 @@
+package ru.locker.service;
+
+import lombok.extern.slf4j.Slf4j;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import ru.locker.domain.CustomEntity;
+import ru.locker.domain.LockType;
+import ru.locker.domain.MappedLockTable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeoutException;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static org.junit.Assert.*;
+
+@Slf4j
+public class MappedFileLockManagerTest {
+
+    private static final int SLOTS = 1024;
+
+    private Path file;
+    private MappedFileLockManager<CustomEntity, Integer> first;
+    private MappedFileLockManager<CustomEntity, Integer> second;
+
+    @Before
+    public void setUp() throws IOException {
+        file = Files.createTempFile("locker", ".lock");
+        //two tables on one file behave like two processes
+        first = new MappedFileLockManager<>(file, SLOTS, new ListBasedDeadLockPreventor<>());
+        second = new MappedFileLockManager<>(file, SLOTS, new ListBasedDeadLockPreventor<>());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        first.close();
+        second.close();
+        Files.deleteIfExists(file);
+    }
+
+    @Test
+    public void testExecuteWithLockFromTwoTables() throws InterruptedException {
+        var customEntity = new CustomEntity(1, 0);
+
+        int tasksCount = 20000;
+        CountDownLatch latch = new CountDownLatch(tasksCount);
+
+        ExecutorService executor = newFixedThreadPool(16);
+        for (int i = 0; i < tasksCount; i++) {
+            var manager = i % 2 == 0 ? first : second;
+            var lockType = i % 4 == 1 ? LockType.READ : LockType.WRITE;
+            executor.submit(() -> {
+                try {
+                    manager.execute(customEntity, lockType, e -> {
+                        if (lockType == LockType.WRITE) {
+                            e.setPayload(e.getPayload() + 1);
+                        }
+                        return e;
+                    });
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+
+        assertEquals(15000, customEntity.getPayload().intValue());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testLockOfDeadProcessIsRecovered() throws Exception {
+        var process = new ProcessBuilder("java", "-version").start();
+        process.waitFor();
+        var customEntity = new CustomEntity(1, 0);
+
+        //writer word of slot is taken by dead process, token is its pid
+        int slot;
+        try (var table = new MappedLockTable(file, SLOTS)) {
+            slot = table.slotOf(customEntity.getId());
+        }
+        try (var channel = FileChannel.open(file, WRITE)) {
+            var word = ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(0, process.pid());
+            channel.write(word, 64 + slot * 64L);
+        }
+
+        assertEquals(customEntity, first.execute(customEntity, LockType.WRITE, 5000L, e -> e));
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testWriterOfOtherTableBlocks() throws Exception {
+        var customEntity = new CustomEntity(1, 0);
+        var locked = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var holder = new Thread(() -> first.execute(customEntity, LockType.WRITE, e -> {
+            locked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            return e;
+        }));
+        holder.start();
+        locked.await();
+        try {
+            second.execute(customEntity, LockType.READ, 200L, e -> e);
+        } finally {
+            release.countDown();
+            holder.join();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testForeignFileIsRejected() throws Exception {
+        var foreign = Files.createTempFile("locker", ".data");
+        Files.write(foreign, "not a lock table".getBytes());
+        try {
+            new MappedLockTable(foreign, SLOTS).close();
+        } finally {
+            Files.deleteIfExists(foreign);
+        }
+    }
+}